@@ -0,0 +1,218 @@
+package gov.usgs.cida.geotools.datastore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+import org.geotools.data.DataStore;
+import org.geotools.data.FeatureReader;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Per-file child data stores of a directory data store, keyed by type name.
+ * Type names are known up front but a child store is only created on first
+ * access and is disposed again once it hasn't been accessed for the idle
+ * period and has no open readers.
+ *
+ * @author tkunicki
+ */
+public class LazyDataStoreMap<D extends DataStore> {
+
+    private static final Logger LOGGER = org.geotools.util.logging.Logging.getLogger("org.geotools.data");
+
+    public final static long DEFAULT_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final static ScheduledExecutorService EVICTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "LazyDataStoreMapEvictor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public interface Loader<D extends DataStore> {
+        D load(String typeName, File file) throws IOException;
+    }
+
+    public interface ReaderOpener<D extends DataStore> {
+        FeatureReader<SimpleFeatureType, SimpleFeature> open(D dataStore) throws IOException;
+    }
+
+    private final Map<String, Entry<D>> entryMap;
+    private final Loader<D> loader;
+    private final long idleMillis;
+    private final ScheduledFuture<?> evictionFuture;
+
+    public LazyDataStoreMap(Map<String, File> typeNameToFileMap, Loader<D> loader) {
+        this(typeNameToFileMap, loader, DEFAULT_IDLE_MILLIS);
+    }
+
+    public LazyDataStoreMap(Map<String, File> typeNameToFileMap, Loader<D> loader, long idleMillis) {
+        this.entryMap = new TreeMap<String, Entry<D>>();
+        for (Map.Entry<String, File> typeNameToFile : typeNameToFileMap.entrySet()) {
+            entryMap.put(typeNameToFile.getKey(), new Entry<D>(typeNameToFile.getValue()));
+        }
+        this.loader = loader;
+        this.idleMillis = idleMillis;
+        long periodMillis = Math.max(idleMillis / 2, 1);
+        this.evictionFuture = EVICTOR.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public Set<String> getTypeNames() {
+        return Collections.unmodifiableSet(entryMap.keySet());
+    }
+
+    /**
+     * @return the child store for the type name, created if it isn't loaded.
+     * @throws IOException if there is no such type name or the store can't
+     *         be created.
+     */
+    public D get(String typeName) throws IOException {
+        Entry<D> entry = getEntry(typeName);
+        synchronized (entry) {
+            return load(typeName, entry);
+        }
+    }
+
+    /**
+     * Opens a reader on the child store for the type name, the child isn't
+     * disposed as idle until the reader is closed.
+     */
+    public FeatureReader<SimpleFeatureType, SimpleFeature> getFeatureReader(String typeName, ReaderOpener<D> opener) throws IOException {
+        Entry<D> entry = getEntry(typeName);
+        D dataStore;
+        synchronized (entry) {
+            dataStore = load(typeName, entry);
+            ++entry.readerCount;
+        }
+        FeatureReader<SimpleFeatureType, SimpleFeature> reader = null;
+        try {
+            reader = new TrackingFeatureReader(entry, opener.open(dataStore));
+        } finally {
+            if (reader == null) {
+                entry.releaseReader();
+            }
+        }
+        return reader;
+    }
+
+    private Entry<D> getEntry(String typeName) throws IOException {
+        Entry<D> entry = entryMap.get(typeName);
+        if (entry == null) {
+            throw new IOException("Unknown type name " + typeName);
+        }
+        return entry;
+    }
+
+    // call while holding the entry lock
+    private D load(String typeName, Entry<D> entry) throws IOException {
+        if (entry.dataStore == null) {
+            entry.dataStore = loader.load(typeName, entry.file);
+        }
+        entry.lastAccessMillis = System.currentTimeMillis();
+        return entry.dataStore;
+    }
+
+    /**
+     * @return the type name of the first entry, null if there are none.
+     */
+    public String getFirstTypeName() {
+        return entryMap.isEmpty() ? null : entryMap.keySet().iterator().next();
+    }
+
+    public void evictIdle() {
+        long evictMillis = System.currentTimeMillis() - idleMillis;
+        for (Map.Entry<String, Entry<D>> mapEntry : entryMap.entrySet()) {
+            Entry<D> entry = mapEntry.getValue();
+            synchronized (entry) {
+                if (entry.dataStore != null && entry.readerCount == 0 && entry.lastAccessMillis < evictMillis) {
+                    LOGGER.log(Level.FINE, "Disposing idle data store for {0}", mapEntry.getKey());
+                    entry.dataStore.dispose();
+                    entry.dataStore = null;
+                }
+            }
+        }
+    }
+
+    public void dispose() {
+        evictionFuture.cancel(false);
+        for (Entry<D> entry : entryMap.values()) {
+            synchronized (entry) {
+                if (entry.dataStore != null) {
+                    entry.dataStore.dispose();
+                    entry.dataStore = null;
+                }
+            }
+        }
+    }
+
+    private final static class Entry<D> {
+        private final File file;
+        private D dataStore;
+        private long lastAccessMillis;
+        private int readerCount; // open readers from getFeatureReader()
+        private Entry(File file) {
+            this.file = file;
+        }
+        private synchronized void releaseReader() {
+            --readerCount;
+            lastAccessMillis = System.currentTimeMillis();
+        }
+    }
+
+    private final static class TrackingFeatureReader implements FeatureReader<SimpleFeatureType, SimpleFeature> {
+
+        private final Entry<?> entry;
+        private final FeatureReader<SimpleFeatureType, SimpleFeature> delegate;
+        private boolean closed;
+
+        private TrackingFeatureReader(Entry<?> entry, FeatureReader<SimpleFeatureType, SimpleFeature> delegate) {
+            this.entry = entry;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public SimpleFeatureType getFeatureType() {
+            return delegate.getFeatureType();
+        }
+
+        @Override
+        public SimpleFeature next() throws IOException, IllegalArgumentException, NoSuchElementException {
+            return delegate.next();
+        }
+
+        @Override
+        public boolean hasNext() throws IOException {
+            return delegate.hasNext();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                try {
+                    delegate.close();
+                } finally {
+                    entry.releaseReader();
+                }
+            }
+        }
+    }
+}
@@ -9,11 +9,23 @@ import org.geotools.data.DataUtilities;
 import org.geotools.data.Query;
 import org.geotools.filter.visitor.DefaultFilterVisitor;
 import org.opengis.feature.type.AttributeDescriptor;
+import org.geotools.util.Range;
 import org.opengis.filter.Filter;
+import org.opengis.filter.Not;
+import org.opengis.filter.Or;
+import org.opengis.filter.PropertyIsBetween;
 import org.opengis.filter.PropertyIsEqualTo;
+import org.opengis.filter.PropertyIsGreaterThan;
+import org.opengis.filter.PropertyIsGreaterThanOrEqualTo;
+import org.opengis.filter.PropertyIsLessThan;
+import org.opengis.filter.PropertyIsLessThanOrEqualTo;
 import org.opengis.filter.expression.Expression;
 import org.opengis.filter.expression.Literal;
 import org.opengis.filter.expression.PropertyName;
+import org.opengis.filter.temporal.During;
+import org.opengis.filter.temporal.TEquals;
+import org.opengis.temporal.Instant;
+import org.opengis.temporal.Period;
 
 /**
  *
@@ -54,6 +66,29 @@ public class QueryUtil {
         return extractor.getValue();
     }
     
+    /**
+     * Extracts the range of values a query filter allows for a property.
+     * Understands equality, BETWEEN, greater/less than comparisons and the
+     * temporal During and TEquals operators.  Constraints combined with AND
+     * are intersected, constraints combined with OR are unioned and negated
+     * constraints are ignored.
+     *
+     * @return the range, with null minimum or maximum values if unbounded, or
+     *         null if the filter doesn't constrain the property.
+     */
+    public static <T extends Comparable<? super T>> Range<T> extractRangeFromQueryFilter(Query query, String propertyName, Class<T> propertyClass) {
+        if (query == null) {
+            return null;
+        }
+        Filter filter = query.getFilter();
+        if (filter == null) {
+            return null;
+        }
+        PropertyRangeVisitor<T> extractor = new PropertyRangeVisitor<T>(propertyName, propertyClass);
+        filter.accept(extractor, null);
+        return extractor.getRange();
+    }
+    
     private static class PropertyEqualToVisitor<T> extends DefaultFilterVisitor {
     
         private final String propertyName;
@@ -97,4 +132,228 @@ public class QueryUtil {
             return value;
         }
     }
+    
+    private static class PropertyRangeVisitor<T extends Comparable<? super T>> extends DefaultFilterVisitor {
+    
+        private final String propertyName;
+        private final Class<T> propertyClass;
+
+        private boolean constrained = false;
+        private T minimum = null;
+        private boolean minimumIncluded = true;
+        private T maximum = null;
+        private boolean maximumIncluded = true;
+
+        public PropertyRangeVisitor(String propertyName, Class<T> propertyClass) {
+            this.propertyName = propertyName;
+            this.propertyClass = propertyClass;
+        }
+
+        @Override
+        public Object visit(PropertyIsEqualTo filter, Object data) {
+            T value = extractLiteral(filter.getExpression1(), filter.getExpression2());
+            if (value == null) {
+                value = extractLiteral(filter.getExpression2(), filter.getExpression1());
+            }
+            if (value != null) {
+                intersectMinimum(value, true);
+                intersectMaximum(value, true);
+            }
+            return null;
+        }
+
+        @Override
+        public Object visit(PropertyIsBetween filter, Object data) {
+            if (isProperty(filter.getExpression())) {
+                T lower = convert(filter.getLowerBoundary());
+                T upper = convert(filter.getUpperBoundary());
+                if (lower != null) {
+                    intersectMinimum(lower, true);
+                }
+                if (upper != null) {
+                    intersectMaximum(upper, true);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Object visit(PropertyIsGreaterThan filter, Object data) {
+            visitComparison(filter.getExpression1(), filter.getExpression2(), false, false);
+            return null;
+        }
+
+        @Override
+        public Object visit(PropertyIsGreaterThanOrEqualTo filter, Object data) {
+            visitComparison(filter.getExpression1(), filter.getExpression2(), false, true);
+            return null;
+        }
+
+        @Override
+        public Object visit(PropertyIsLessThan filter, Object data) {
+            visitComparison(filter.getExpression1(), filter.getExpression2(), true, false);
+            return null;
+        }
+
+        @Override
+        public Object visit(PropertyIsLessThanOrEqualTo filter, Object data) {
+            visitComparison(filter.getExpression1(), filter.getExpression2(), true, true);
+            return null;
+        }
+
+        @Override
+        public Object visit(During filter, Object data) {
+            if (isProperty(filter.getExpression1()) && filter.getExpression2() instanceof Literal) {
+                Object o = ((Literal) filter.getExpression2()).getValue();
+                if (o instanceof Period) {
+                    Period period = (Period) o;
+                    T beginning = convert(period.getBeginning());
+                    T ending = convert(period.getEnding());
+                    if (beginning != null) {
+                        intersectMinimum(beginning, false);
+                    }
+                    if (ending != null) {
+                        intersectMaximum(ending, false);
+                    }
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Object visit(TEquals filter, Object data) {
+            if (isProperty(filter.getExpression1()) && filter.getExpression2() instanceof Literal) {
+                T value = convert(((Literal) filter.getExpression2()).getValue());
+                if (value != null) {
+                    intersectMinimum(value, true);
+                    intersectMaximum(value, true);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Object visit(Or filter, Object data) {
+            // union of the children, unconstrained if any child is unconstrained
+            Range<T> union = null;
+            for (Filter child : filter.getChildren()) {
+                PropertyRangeVisitor<T> childVisitor = new PropertyRangeVisitor<T>(propertyName, propertyClass);
+                child.accept(childVisitor, null);
+                Range<T> childRange = childVisitor.getRange();
+                if (childRange == null) {
+                    return null;
+                }
+                union = union == null ? childRange : union(union, childRange);
+            }
+            if (union != null) {
+                if (union.getMinValue() != null) {
+                    intersectMinimum(union.getMinValue(), union.isMinIncluded());
+                }
+                if (union.getMaxValue() != null) {
+                    intersectMaximum(union.getMaxValue(), union.isMaxIncluded());
+                }
+                constrained = true;
+            }
+            return null;
+        }
+
+        @Override
+        public Object visit(Not filter, Object data) {
+            // negations can't narrow the range, don't descend.
+            return null;
+        }
+
+        // expression1 <op> expression2 where lessThan indicates <op> is < or <=
+        private void visitComparison(Expression expression1, Expression expression2, boolean lessThan, boolean included) {
+            T value = extractLiteral(expression1, expression2);
+            if (value == null) {
+                value = extractLiteral(expression2, expression1);
+                if (value == null) {
+                    return;
+                }
+                // literal <op> property, flip the comparison
+                lessThan = !lessThan;
+            }
+            if (lessThan) {
+                intersectMaximum(value, included);
+            } else {
+                intersectMinimum(value, included);
+            }
+        }
+
+        private void intersectMinimum(T value, boolean included) {
+            constrained = true;
+            int compare = minimum == null ? 1 : value.compareTo(minimum);
+            if (compare > 0) {
+                minimum = value;
+                minimumIncluded = included;
+            } else if (compare == 0) {
+                minimumIncluded = minimumIncluded && included;
+            }
+        }
+
+        private void intersectMaximum(T value, boolean included) {
+            constrained = true;
+            int compare = maximum == null ? -1 : value.compareTo(maximum);
+            if (compare < 0) {
+                maximum = value;
+                maximumIncluded = included;
+            } else if (compare == 0) {
+                maximumIncluded = maximumIncluded && included;
+            }
+        }
+
+        private Range<T> union(Range<T> r1, Range<T> r2) {
+            T min;
+            boolean minIncluded;
+            if (r1.getMinValue() == null || r2.getMinValue() == null) {
+                min = null;
+                minIncluded = true;
+            } else {
+                int compare = r1.getMinValue().compareTo(r2.getMinValue());
+                min = compare <= 0 ? r1.getMinValue() : r2.getMinValue();
+                minIncluded = compare < 0 ? r1.isMinIncluded() : compare > 0 ? r2.isMinIncluded() : r1.isMinIncluded() || r2.isMinIncluded();
+            }
+            T max;
+            boolean maxIncluded;
+            if (r1.getMaxValue() == null || r2.getMaxValue() == null) {
+                max = null;
+                maxIncluded = true;
+            } else {
+                int compare = r1.getMaxValue().compareTo(r2.getMaxValue());
+                max = compare >= 0 ? r1.getMaxValue() : r2.getMaxValue();
+                maxIncluded = compare > 0 ? r1.isMaxIncluded() : compare < 0 ? r2.isMaxIncluded() : r1.isMaxIncluded() || r2.isMaxIncluded();
+            }
+            return new Range<T>(propertyClass, min, minIncluded, max, maxIncluded);
+        }
+
+        private boolean isProperty(Expression expression) {
+            return expression instanceof PropertyName &&
+                    propertyName.equals(((PropertyName) expression).getPropertyName());
+        }
+
+        private T extractLiteral(Expression e1, Expression e2) {
+            return isProperty(e1) ? convert(e2) : null;
+        }
+
+        private T convert(Object o) {
+            if (o instanceof Instant) {
+                o = ((Instant) o).getPosition().getDate();
+            }
+            if (o instanceof Literal) {
+                Literal literal = (Literal) o;
+                o = literal.getValue();
+                if (!propertyClass.isInstance(o)) {
+                    o = literal.evaluate(null, propertyClass);
+                }
+            }
+            return propertyClass.isInstance(o) ? propertyClass.cast(o) : null;
+        }
+
+        public Range<T> getRange() {
+            return constrained ?
+                    new Range<T>(propertyClass, minimum, minimumIncluded, maximum, maximumIncluded) :
+                    null;
+        }
+    }
 }
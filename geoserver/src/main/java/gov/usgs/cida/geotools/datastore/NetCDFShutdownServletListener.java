@@ -3,7 +3,6 @@ package gov.usgs.cida.geotools.datastore;
 
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
-import ucar.nc2.dataset.NetcdfDataset;
 
 /**
  * Web application lifecycle listener.
@@ -18,6 +17,6 @@ public class NetCDFShutdownServletListener implements ServletContextListener {
 
     @Override
     public void contextDestroyed(ServletContextEvent sce) {
-         NetcdfDataset.shutdown();
+         NetCDFFileCache.shutdown();
     }
 }
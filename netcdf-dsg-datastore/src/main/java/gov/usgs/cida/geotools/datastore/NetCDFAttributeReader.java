@@ -1,7 +1,6 @@
 package gov.usgs.cida.geotools.datastore;
 
 import java.io.IOException;
-import java.net.URL;
 import java.util.List;
 import java.util.NoSuchElementException;
 import org.geotools.data.AttributeReader;
@@ -19,7 +18,8 @@ import ucar.nc2.time.CalendarDateRange;
  */
 public class NetCDFAttributeReader implements AttributeReader {
     
-    private final FeatureDataset featureDataset;
+    private final NetCDFFeatureDatasetPool featureDatasetPool;
+    private FeatureDataset featureDataset; // released on close
     private final SimpleFeatureType featureType;
     private final int attributeCount;
     
@@ -28,11 +28,12 @@ public class NetCDFAttributeReader implements AttributeReader {
     
     private PointFeature pointFeature;
 
-    NetCDFAttributeReader(URL netCDFURL, SimpleFeatureType featureType) throws IOException {
+    NetCDFAttributeReader(NetCDFFeatureDatasetPool featureDatasetPool, SimpleFeatureType featureType) throws IOException {
         this.featureType = featureType;
         this.attributeCount = featureType.getAttributeCount();
         
-        this.featureDataset = NetCDFUtil.acquireDataSet(netCDFURL);
+        this.featureDatasetPool = featureDatasetPool;
+        this.featureDataset = featureDatasetPool.acquire();
         
         StationTimeSeriesFeatureCollection stationTimeSeriesFeatureCollection = NetCDFUtil.extractStationTimeSeriesFeatureCollection(featureDataset);
         
@@ -64,11 +65,8 @@ public class NetCDFAttributeReader implements AttributeReader {
     @Override
     public void close() throws IOException {
         pointFeatureCollection.finish();
-        try {
-            featureDataset.close();
-        } catch (IOException e) {
-            // don't care
-        }
+        featureDatasetPool.release(featureDataset);
+        featureDataset = null;
     }
 
     @Override
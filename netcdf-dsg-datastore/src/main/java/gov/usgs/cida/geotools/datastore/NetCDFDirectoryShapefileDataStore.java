@@ -18,19 +18,30 @@ import org.opengis.filter.Filter;
  */
 public class NetCDFDirectoryShapefileDataStore extends AbstractDataStore {
 
-    private TreeMap<String, NetCDFShapefileDataStore> netCDFDataStoreMap;
+    private final LazyDataStoreMap<NetCDFShapefileDataStore> netCDFDataStoreMap;
     private ReferencedEnvelope bounds;
 
-    public NetCDFDirectoryShapefileDataStore(URI namespaceURI, URL netCDFDirectoryURL, URL shapefileURL, String shapefileNHRUAttributeName) throws MalformedURLException, IOException {
-        netCDFDataStoreMap = new TreeMap<String, NetCDFShapefileDataStore>();
-        for (File file : getNetCDFFiles(netCDFDirectoryURL)) {
-            NetCDFShapefileDataStore dataStore = new NetCDFShapefileDataStore(namespaceURI, file.toURI().toURL(), shapefileURL, shapefileNHRUAttributeName);
-            dataStore.getSchema(); // prime schemas
-            netCDFDataStoreMap.put(dataStore.getTypeNames()[0], dataStore);
+    /**
+     * Type names are taken from the NetCDF file names, the per-file store for
+     * a type is created on first access and disposed again when idle.
+     */
+    public NetCDFDirectoryShapefileDataStore(final URI namespaceURI, URL netCDFDirectoryURL, final URL shapefileURL, final String shapefileNHRUAttributeName) throws MalformedURLException, IOException {
+        Map<String, File> typeNameToFileMap = new TreeMap<String, File>();
+        List<File> netCDFFiles = getNetCDFFiles(netCDFDirectoryURL);
+        if (netCDFFiles.isEmpty()) {
+            throw new IllegalArgumentException(netCDFDirectoryURL + " contains no NetCDF files");
         }
-        
-        NetCDFShapefileDataStore netCDFDataStore = netCDFDataStoreMap.firstEntry().getValue();
-        bounds = netCDFDataStore.getBounds(Query.ALL);
+        for (File file : netCDFFiles) {
+            typeNameToFileMap.put(NetCDFShapefileDataStore.createFeatureTypeName(file), file);
+        }
+        netCDFDataStoreMap = new LazyDataStoreMap<NetCDFShapefileDataStore>(
+                typeNameToFileMap,
+                new LazyDataStoreMap.Loader<NetCDFShapefileDataStore>() {
+            @Override
+            public NetCDFShapefileDataStore load(String typeName, File file) throws IOException {
+                return new NetCDFShapefileDataStore(namespaceURI, file.toURI().toURL(), shapefileURL, shapefileNHRUAttributeName);
+            }
+        });
     }
     
     private List<File> getNetCDFFiles(URL url) {
@@ -55,7 +66,7 @@ public class NetCDFDirectoryShapefileDataStore extends AbstractDataStore {
 
     @Override
     public String[] getTypeNames() throws IOException {
-        return netCDFDataStoreMap.keySet().toArray(new String[0]);
+        return netCDFDataStoreMap.getTypeNames().toArray(new String[0]);
     }
 
     @Override
@@ -65,32 +76,53 @@ public class NetCDFDirectoryShapefileDataStore extends AbstractDataStore {
 
     @Override
     protected FeatureReader<SimpleFeatureType, SimpleFeature> getFeatureReader(String typeName) throws IOException {
-        return netCDFDataStoreMap.get(typeName).getFeatureReader();
+        return netCDFDataStoreMap.getFeatureReader(typeName, new LazyDataStoreMap.ReaderOpener<NetCDFShapefileDataStore>() {
+            @Override
+            public FeatureReader<SimpleFeatureType, SimpleFeature> open(NetCDFShapefileDataStore dataStore) throws IOException {
+                return dataStore.getFeatureReader();
+            }
+        });
     }
 
     @Override
-    public FeatureReader<SimpleFeatureType, SimpleFeature> getFeatureReader(Query query, Transaction transaction) throws IOException {
-        return netCDFDataStoreMap.get(query.getTypeName()).getFeatureReader(query, transaction);
+    public FeatureReader<SimpleFeatureType, SimpleFeature> getFeatureReader(final Query query, final Transaction transaction) throws IOException {
+        return netCDFDataStoreMap.getFeatureReader(query.getTypeName(), new LazyDataStoreMap.ReaderOpener<NetCDFShapefileDataStore>() {
+            @Override
+            public FeatureReader<SimpleFeatureType, SimpleFeature> open(NetCDFShapefileDataStore dataStore) throws IOException {
+                return dataStore.getFeatureReader(query, transaction);
+            }
+        });
     }
 
     @Override
-    protected FeatureReader<SimpleFeatureType, SimpleFeature> getFeatureReader(String typeName, Query query) throws IOException {
-        return netCDFDataStoreMap.get(typeName).getFeatureReader(typeName, query);
+    protected FeatureReader<SimpleFeatureType, SimpleFeature> getFeatureReader(final String typeName, final Query query) throws IOException {
+        return netCDFDataStoreMap.getFeatureReader(typeName, new LazyDataStoreMap.ReaderOpener<NetCDFShapefileDataStore>() {
+            @Override
+            public FeatureReader<SimpleFeatureType, SimpleFeature> open(NetCDFShapefileDataStore dataStore) throws IOException {
+                return dataStore.getFeatureReader(typeName, query);
+            }
+        });
     }
 
     @Override
     public void dispose() {
-        for (NetCDFShapefileDataStore dataStore : netCDFDataStoreMap.values()) {
-            dataStore.dispose();
-        }
+        netCDFDataStoreMap.dispose();
     }
 
     @Override
     protected ReferencedEnvelope getBounds(Query query) throws IOException {
         if (query.getFilter().equals(Filter.INCLUDE)) {
-            return bounds;
+            return getShapefileBounds();
         }
         return null; // too expensive
     }
     
+    // every type joins the same shapefile so any store will do
+    private synchronized ReferencedEnvelope getShapefileBounds() throws IOException {
+        if (bounds == null) {
+            bounds = netCDFDataStoreMap.get(netCDFDataStoreMap.getFirstTypeName()).getBounds(Query.ALL);
+        }
+        return bounds;
+    }
+    
 }
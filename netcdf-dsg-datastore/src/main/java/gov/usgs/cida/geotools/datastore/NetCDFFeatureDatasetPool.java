@@ -0,0 +1,184 @@
+package gov.usgs.cida.geotools.datastore;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import ucar.nc2.ft.FeatureDataset;
+
+/**
+ * Wrapped FeatureDatasets of a NetCDF file, kept open between readers so a
+ * reader doesn't pay for opening the file, analyzing its conventions and
+ * building coordinate systems.  A dataset is used by one reader at a time,
+ * readers acquire one and release it when closed.  Released datasets are
+ * kept up to maxIdle and are closed once idle for the idle period, or when
+ * the pool is disposed, so the NetCDF file cache can clean up their files.
+ *
+ * Hits and evictions are counted by {@link NetCDFFileCache}, misses are the
+ * opens it counts for {@link NetCDFUtil#acquireDataSet(URL)}.
+ *
+ * @author tkunicki
+ */
+public class NetCDFFeatureDatasetPool {
+
+    private static final Logger LOGGER = org.geotools.util.logging.Logging.getLogger("org.geotools.data");
+
+    public final static int DEFAULT_MAX_IDLE = 4;
+    public final static long DEFAULT_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final static ScheduledExecutorService EVICTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "NetCDFFeatureDatasetPoolEvictor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final URL netCDFURL;
+    private final int maxIdle;
+    private final long idleMillis;
+    private final ScheduledFuture<?> evictionFuture;
+
+    // most recently released first
+    private final LinkedList<IdleDataset> idleDatasets = new LinkedList<IdleDataset>();
+    private int acquiredCount;
+    private boolean disposed;
+
+    public NetCDFFeatureDatasetPool(URL netCDFURL) {
+        this(netCDFURL, DEFAULT_MAX_IDLE, DEFAULT_IDLE_MILLIS);
+    }
+
+    public NetCDFFeatureDatasetPool(URL netCDFURL, int maxIdle, long idleMillis) {
+        this.netCDFURL = netCDFURL;
+        this.maxIdle = maxIdle;
+        this.idleMillis = idleMillis;
+        long periodMillis = Math.max(idleMillis / 2, 1);
+        this.evictionFuture = EVICTOR.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return datasets kept idle, readers using more at once open datasets
+     *         that are closed again on release.
+     */
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * @return an idle dataset or a newly opened one if there are none, must
+     *         be released.
+     */
+    public FeatureDataset acquire() throws IOException {
+        synchronized (this) {
+            if (disposed) {
+                throw new IllegalStateException("pool for " + netCDFURL + " is disposed");
+            }
+            ++acquiredCount;
+            if (!idleDatasets.isEmpty()) {
+                NetCDFFileCache.getInstance().recordHit();
+                return idleDatasets.removeFirst().featureDataset;
+            }
+        }
+        try {
+            return NetCDFUtil.acquireDataSet(netCDFURL);
+        } catch (IOException e) {
+            synchronized (this) {
+                --acquiredCount;
+            }
+            throw e;
+        }
+    }
+
+    public void release(FeatureDataset featureDataset) {
+        if (featureDataset == null) {
+            return;
+        }
+        synchronized (this) {
+            --acquiredCount;
+            if (!disposed && idleDatasets.size() < maxIdle) {
+                idleDatasets.addFirst(new IdleDataset(featureDataset, System.currentTimeMillis()));
+                return;
+            }
+        }
+        evict(featureDataset);
+    }
+
+    /**
+     * Closes datasets that have been idle for the idle period.
+     */
+    public void evictIdle() {
+        long evictMillis = System.currentTimeMillis() - idleMillis;
+        LinkedList<FeatureDataset> toClose = new LinkedList<FeatureDataset>();
+        synchronized (this) {
+            Iterator<IdleDataset> iterator = idleDatasets.iterator();
+            while (iterator.hasNext()) {
+                IdleDataset idleDataset = iterator.next();
+                if (idleDataset.releaseMillis < evictMillis) {
+                    toClose.add(idleDataset.featureDataset);
+                    iterator.remove();
+                }
+            }
+        }
+        for (FeatureDataset featureDataset : toClose) {
+            evict(featureDataset);
+        }
+    }
+
+    public synchronized int getAcquiredCount() {
+        return acquiredCount;
+    }
+
+    public synchronized int getIdleCount() {
+        return idleDatasets.size();
+    }
+
+    /**
+     * Closes the idle datasets, datasets still acquired are closed when
+     * they're released.
+     */
+    public void dispose() {
+        evictionFuture.cancel(false);
+        LinkedList<FeatureDataset> toClose = new LinkedList<FeatureDataset>();
+        synchronized (this) {
+            disposed = true;
+            for (IdleDataset idleDataset : idleDatasets) {
+                toClose.add(idleDataset.featureDataset);
+            }
+            idleDatasets.clear();
+        }
+        for (FeatureDataset featureDataset : toClose) {
+            evict(featureDataset);
+        }
+    }
+
+    private void evict(FeatureDataset featureDataset) {
+        NetCDFFileCache.getInstance().recordEvict();
+        try {
+            featureDataset.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Unable to close " + netCDFURL, e);
+        }
+    }
+
+    private final static class IdleDataset {
+        private final FeatureDataset featureDataset;
+        private final long releaseMillis;
+        private IdleDataset(FeatureDataset featureDataset, long releaseMillis) {
+            this.featureDataset = featureDataset;
+            this.releaseMillis = releaseMillis;
+        }
+    }
+}
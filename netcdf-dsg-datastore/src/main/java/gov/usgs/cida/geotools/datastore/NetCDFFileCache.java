@@ -0,0 +1,177 @@
+package gov.usgs.cida.geotools.datastore;
+
+import java.lang.management.ManagementFactory;
+import java.util.Formatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.util.cache.FileCache;
+
+/**
+ * Sizes the netCDF-Java file cache shared by all NetCDF data stores and
+ * counts how datasets are opened and pooled, both are exposed through JMX.
+ *
+ * The cache is shared by all stores so it's sized from the system properties
+ * {@value #MIN_ELEMENTS_PROPERTY}, {@value #MAX_ELEMENTS_PROPERTY} and
+ * {@value #PERIOD_SECONDS_PROPERTY} only, once, when the first data store
+ * class is loaded.  netCDF-Java cleans up the cache every period, closing
+ * unused files down to the minimum.
+ *
+ * @author tkunicki
+ */
+public class NetCDFFileCache implements NetCDFFileCacheMBean {
+
+    private static final Logger LOGGER = org.geotools.util.logging.Logging.getLogger("org.geotools.data");
+
+    public final static String MIN_ELEMENTS_PROPERTY = "gov.usgs.cida.netcdf.cache.min";
+    public final static String MAX_ELEMENTS_PROPERTY = "gov.usgs.cida.netcdf.cache.max";
+    public final static String PERIOD_SECONDS_PROPERTY = "gov.usgs.cida.netcdf.cache.period";
+
+    public final static int DEFAULT_MIN_ELEMENTS = 128;
+    public final static int DEFAULT_MAX_ELEMENTS = 256;
+    public final static int DEFAULT_PERIOD_SECONDS = 600;
+
+    public final static String OBJECT_NAME = "gov.usgs.cida.geotools.datastore:type=NetCDFFileCache";
+
+    private final static NetCDFFileCache INSTANCE = new NetCDFFileCache();
+
+    private final AtomicLong openCount = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong evictCount = new AtomicLong();
+
+    private int minElements;
+    private int maxElements;
+    private int periodSeconds;
+    private boolean initialized;
+
+    private NetCDFFileCache() { }
+
+    public static NetCDFFileCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Sizes the cache from the system properties if it isn't sized yet.
+     */
+    public static void initialize() {
+        INSTANCE.initializeCache(
+                Integer.getInteger(MIN_ELEMENTS_PROPERTY, DEFAULT_MIN_ELEMENTS),
+                Integer.getInteger(MAX_ELEMENTS_PROPERTY, DEFAULT_MAX_ELEMENTS),
+                Integer.getInteger(PERIOD_SECONDS_PROPERTY, DEFAULT_PERIOD_SECONDS));
+    }
+
+    private synchronized void initializeCache(int minElements, int maxElements, int periodSeconds) {
+        if (initialized) {
+            return;
+        }
+        if (minElements < 0 || maxElements < minElements || periodSeconds < 0) {
+            throw new IllegalArgumentException("invalid NetCDF file cache bounds " + minElements + "-" + maxElements + " files with a " + periodSeconds + "s period");
+        }
+        NetcdfDataset.initNetcdfFileCache(minElements, maxElements, periodSeconds);
+        this.minElements = minElements;
+        this.maxElements = maxElements;
+        this.periodSeconds = periodSeconds;
+        this.initialized = true;
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(OBJECT_NAME);
+            if (!mBeanServer.isRegistered(objectName)) {
+                mBeanServer.registerMBean(this, objectName);
+            }
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Unable to register NetCDF file cache MBean", e);
+        }
+    }
+
+    /**
+     * Unregisters the MBean and shuts the file cache down, call when the
+     * application stops.
+     */
+    public static void shutdown() {
+        synchronized (INSTANCE) {
+            try {
+                MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+                ObjectName objectName = new ObjectName(OBJECT_NAME);
+                if (mBeanServer.isRegistered(objectName)) {
+                    mBeanServer.unregisterMBean(objectName);
+                }
+            } catch (JMException e) {
+                LOGGER.log(Level.WARNING, "Unable to unregister NetCDF file cache MBean", e);
+            }
+            INSTANCE.initialized = false;
+        }
+        NetcdfDataset.shutdown();
+    }
+
+    void recordOpen() {
+        openCount.incrementAndGet();
+    }
+
+    void recordHit() {
+        hitCount.incrementAndGet();
+    }
+
+    void recordEvict() {
+        evictCount.incrementAndGet();
+    }
+
+    @Override
+    public synchronized int getMinElements() {
+        return minElements;
+    }
+
+    @Override
+    public synchronized int getMaxElements() {
+        return maxElements;
+    }
+
+    @Override
+    public synchronized int getPeriodSeconds() {
+        return periodSeconds;
+    }
+
+    @Override
+    public long getOpenCount() {
+        return openCount.get();
+    }
+
+    @Override
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    @Override
+    public long getEvictCount() {
+        return evictCount.get();
+    }
+
+    @Override
+    public String getFileCacheStatistics() {
+        FileCache fileCache = NetcdfDataset.getNetcdfFileCache();
+        if (fileCache == null) {
+            return "disabled";
+        }
+        Formatter formatter = new Formatter();
+        fileCache.showStats(formatter);
+        return formatter.toString().trim();
+    }
+
+    @Override
+    public void clearCache() {
+        FileCache fileCache = NetcdfDataset.getNetcdfFileCache();
+        if (fileCache != null) {
+            fileCache.clearCache(false);
+        }
+    }
+
+    @Override
+    public void resetCounts() {
+        openCount.set(0);
+        hitCount.set(0);
+        evictCount.set(0);
+    }
+}
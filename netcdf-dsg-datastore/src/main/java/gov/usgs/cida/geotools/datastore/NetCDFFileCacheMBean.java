@@ -0,0 +1,45 @@
+package gov.usgs.cida.geotools.datastore;
+
+/**
+ * JMX view of the NetCDF file cache and the FeatureDataset pools of the
+ * NetCDF data stores.
+ *
+ * @author tkunicki
+ */
+public interface NetCDFFileCacheMBean {
+
+    int getMinElements();
+
+    int getMaxElements();
+
+    int getPeriodSeconds();
+
+    /**
+     * @return datasets opened through the NetCDF file cache, readers that
+     *         had no idle pooled dataset.
+     */
+    long getOpenCount();
+
+    /**
+     * @return readers served an idle pooled dataset.
+     */
+    long getHitCount();
+
+    /**
+     * @return pooled datasets closed because they were idle, over the pool
+     *         limit or their store was disposed.
+     */
+    long getEvictCount();
+
+    /**
+     * @return netCDF-Java's own statistics for the file cache.
+     */
+    String getFileCacheStatistics();
+
+    /**
+     * Closes files in the file cache that aren't in use.
+     */
+    void clearCache();
+
+    void resetCounts();
+}
@@ -0,0 +1,272 @@
+package gov.usgs.cida.geotools.datastore;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads observation variables of local NetCDF-3 files, classic and 64-bit
+ * offset, straight from memory mapped buffers instead of through
+ * netCDF-Java.  Variable offsets are taken from the file header.
+ *
+ * Only fixed size (non-record) numeric variables that netCDF-Java wouldn't
+ * scale are mapped, readers fall back to netCDF-Java for anything else,
+ * including NetCDF-4 files.  Enabled by the system property
+ * {@value #MAPPED_PROPERTY}.
+ *
+ * @author tkunicki
+ */
+public class NetCDFMappedFile {
+
+    public final static String MAPPED_PROPERTY = "gov.usgs.cida.netcdf.mapped";
+
+    // NetCDF-3 header tags and types
+    private final static int NC_DIMENSION = 0x0A;
+    private final static int NC_VARIABLE = 0x0B;
+    private final static int NC_ATTRIBUTE = 0x0C;
+
+    private final static int NC_BYTE = 1;
+    private final static int NC_CHAR = 2;
+    private final static int NC_SHORT = 3;
+    private final static int NC_INT = 4;
+    private final static int NC_FLOAT = 5;
+    private final static int NC_DOUBLE = 6;
+
+    private final File file;
+    private final Map<String, MappedVariable> variables;
+
+    private NetCDFMappedFile(File file, Map<String, MappedVariable> variables) {
+        this.file = file;
+        this.variables = variables;
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(MAPPED_PROPERTY);
+    }
+
+    /**
+     * @return the mapped file, null if url isn't a local NetCDF-3 file.
+     */
+    public static NetCDFMappedFile open(URL url) throws IOException {
+        if (!"file".equals(url.getProtocol())) {
+            return null;
+        }
+        File file = new File(url.getPath());
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            return readHeader(file, input);
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * @return the variable, null if it isn't a mapped variable.
+     */
+    public MappedVariable findVariable(String name) {
+        return variables.get(name);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Releases the mapped buffers, variables can't be read afterwards.  Java
+     * can't unmap explicitly, the mappings go once the buffers are
+     * collected.
+     */
+    public void close() {
+        for (MappedVariable variable : variables.values()) {
+            variable.close();
+        }
+    }
+
+    private static NetCDFMappedFile readHeader(File file, DataInputStream input) throws IOException {
+        if (input.read() != 'C' || input.read() != 'D' || input.read() != 'F') {
+            return null;
+        }
+        int version = input.read();
+        if (version != 1 && version != 2) {
+            return null;
+        }
+        input.readInt(); // numrecs
+
+        int dimensionCount = readListCount(input, NC_DIMENSION);
+        int[] dimensionLengths = new int[dimensionCount];
+        for (int dimensionIndex = 0; dimensionIndex < dimensionCount; ++dimensionIndex) {
+            readName(input);
+            dimensionLengths[dimensionIndex] = input.readInt(); // 0 if record
+        }
+
+        skipAttributes(input, null);
+
+        Map<String, MappedVariable> variables = new HashMap<String, MappedVariable>();
+        int variableCount = readListCount(input, NC_VARIABLE);
+        for (int variableIndex = 0; variableIndex < variableCount; ++variableIndex) {
+            String name = readName(input);
+            int rank = input.readInt();
+            long elementCount = 1;
+            boolean record = false;
+            for (int dimensionIndex = 0; dimensionIndex < rank; ++dimensionIndex) {
+                int dimensionLength = dimensionLengths[input.readInt()];
+                record |= dimensionLength == 0;
+                elementCount *= dimensionLength;
+            }
+            boolean[] scaled = new boolean[1];
+            skipAttributes(input, scaled);
+            int type = input.readInt();
+            input.readInt(); // vsize, padded
+            long begin = version == 1 ? input.readInt() & 0xFFFFFFFFL : input.readLong();
+            long size = elementCount * typeSize(type);
+            if (!record && !scaled[0] && type != NC_CHAR && size <= Integer.MAX_VALUE) {
+                variables.put(name, new MappedVariable(file, type, begin, (int) size));
+            }
+        }
+        return new NetCDFMappedFile(file, variables);
+    }
+
+    private static int readListCount(DataInputStream input, int tag) throws IOException {
+        int listTag = input.readInt();
+        int count = input.readInt();
+        if (listTag == 0 && count == 0) {
+            return 0; // absent
+        }
+        if (listTag != tag) {
+            throw new IOException("Invalid NetCDF-3 header, expected tag " + tag + " found " + listTag);
+        }
+        return count;
+    }
+
+    private static String readName(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        skipPadding(input, length);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * @param scaled set to true if an attribute makes netCDF-Java convert the
+     *        stored values, null for global attributes.
+     */
+    private static void skipAttributes(DataInputStream input, boolean[] scaled) throws IOException {
+        int attributeCount = readListCount(input, NC_ATTRIBUTE);
+        for (int attributeIndex = 0; attributeIndex < attributeCount; ++attributeIndex) {
+            String name = readName(input);
+            int type = input.readInt();
+            int valueCount = input.readInt();
+            int length = valueCount * typeSize(type);
+            input.readFully(new byte[length]);
+            skipPadding(input, length);
+            if (scaled != null && ("scale_factor".equals(name) || "add_offset".equals(name) || "_Unsigned".equals(name))) {
+                scaled[0] = true;
+            }
+        }
+    }
+
+    private static void skipPadding(DataInputStream input, int length) throws IOException {
+        int padding = (4 - length % 4) % 4;
+        for (int index = 0; index < padding; ++index) {
+            if (input.read() < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static int typeSize(int type) throws IOException {
+        switch (type) {
+            case NC_BYTE:
+            case NC_CHAR: return 1;
+            case NC_SHORT: return 2;
+            case NC_INT:
+            case NC_FLOAT: return 4;
+            case NC_DOUBLE: return 8;
+            default: throw new IOException("Invalid NetCDF-3 header, unknown type " + type);
+        }
+    }
+
+    /**
+     * A fixed size variable, values are indexed like the data netCDF-Java
+     * reads for the variable and converted like its Arrays.  Mapped on first
+     * use, safe to share between readers.
+     */
+    public static class MappedVariable {
+
+        private final File file;
+        private final int type;
+        private final long begin;
+        private final int size;
+
+        private volatile ByteBuffer buffer;
+        private volatile boolean closed;
+
+        private MappedVariable(File file, int type, long begin, int size) {
+            this.file = file;
+            this.type = type;
+            this.begin = begin;
+            this.size = size;
+        }
+
+        public long getLong(int index) throws IOException {
+            ByteBuffer mapped = getBuffer();
+            switch (type) {
+                case NC_BYTE: return mapped.get(index);
+                case NC_SHORT: return mapped.getShort(index << 1);
+                case NC_INT: return mapped.getInt(index << 2);
+                case NC_FLOAT: return (long) mapped.getFloat(index << 2);
+                default: return (long) mapped.getDouble(index << 3);
+            }
+        }
+
+        public double getDouble(int index) throws IOException {
+            ByteBuffer mapped = getBuffer();
+            switch (type) {
+                case NC_BYTE: return mapped.get(index);
+                case NC_SHORT: return mapped.getShort(index << 1);
+                case NC_INT: return mapped.getInt(index << 2);
+                case NC_FLOAT: return mapped.getFloat(index << 2);
+                default: return mapped.getDouble(index << 3);
+            }
+        }
+
+        private synchronized void close() {
+            closed = true;
+            buffer = null;
+        }
+
+        // big endian, absolute reads only so readers can share it
+        private ByteBuffer getBuffer() throws IOException {
+            ByteBuffer mapped = buffer;
+            if (mapped == null) {
+                synchronized (this) {
+                    if (closed) {
+                        throw new IOException(file + " is closed");
+                    }
+                    mapped = buffer;
+                    if (mapped == null) {
+                        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+                        try {
+                            mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, begin, size);
+                        } finally {
+                            randomAccessFile.close(); // the mapping stays valid
+                        }
+                        buffer = mapped;
+                    }
+                }
+            }
+            return mapped;
+        }
+    }
+}
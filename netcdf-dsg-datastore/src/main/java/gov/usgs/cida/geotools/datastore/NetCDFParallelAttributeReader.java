@@ -0,0 +1,261 @@
+package gov.usgs.cida.geotools.datastore;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.geotools.data.AttributeReader;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import ucar.nc2.ft.FeatureDataset;
+import ucar.nc2.ft.PointFeature;
+import ucar.nc2.ft.PointFeatureCollection;
+import ucar.nc2.ft.StationTimeSeriesFeatureCollection;
+import ucar.unidata.geoloc.Station;
+
+/**
+ * Reads the observations of all stations like {@link NetCDFAttributeReader}
+ * but splits the stations across workers.  Each worker reads its stations
+ * from its own pooled dataset, extracts the attribute values and hands the
+ * rows over through a bounded queue.  Observations of a station stay in
+ * order, stations of different workers are interleaved, so the row order
+ * isn't stable between reads.
+ *
+ * Workers of all readers run on one executor of {@value #THREADS_PROPERTY}
+ * threads, they're submitted with the reader and stop when they're done or
+ * the reader is closed.  The first worker failure is thrown by the reader.
+ *
+ * @author tkunicki
+ */
+public class NetCDFParallelAttributeReader implements AttributeReader {
+
+    public final static String THREADS_PROPERTY = "gov.usgs.cida.netcdf.reader.threads";
+    public final static int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    // marks a worker as done
+    private final static Object[] END = new Object[0];
+    private final static long OFFER_MILLIS = 100;
+
+    private final static ExecutorService EXECUTOR = Executors.newFixedThreadPool(getThreadCount(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "NetCDFParallelAttributeReader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final SimpleFeatureType featureType;
+    private final int attributeCount;
+    private final NetCDFPointFeatureExtractor<?>[] pointFeatureExtractors;
+
+    private final BlockingQueue<Object[]> rowQueue;
+    private volatile boolean closed;
+    private volatile Throwable failure;
+
+    private int runningCount;
+    private Object[] nextRow;
+    private Object[] row;
+
+    /**
+     * @param workerCount workers to split the stations across, each holds a
+     *        pooled dataset while it runs.
+     */
+    NetCDFParallelAttributeReader(NetCDFFeatureDatasetPool featureDatasetPool, SimpleFeatureType featureType, int workerCount) {
+        this(featureDatasetPool, featureType, workerCount, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    NetCDFParallelAttributeReader(NetCDFFeatureDatasetPool featureDatasetPool, SimpleFeatureType featureType, int workerCount, int queueCapacity) {
+        this.featureType = featureType;
+        this.attributeCount = featureType.getAttributeCount();
+
+        pointFeatureExtractors = new NetCDFPointFeatureExtractor<?>[attributeCount];
+
+        List<AttributeDescriptor> desctiptors = featureType.getAttributeDescriptors();
+        for (int attributeIndex = 0; attributeIndex < attributeCount; ++attributeIndex) {
+            Object o = desctiptors.get(attributeIndex).getUserData().get(NetCDFShapefileDataStore.EXTRACTOR_KEY);
+            pointFeatureExtractors[attributeIndex] = o instanceof NetCDFPointFeatureExtractor<?> ?
+                    (NetCDFPointFeatureExtractor<?>)o :
+                    null;
+        }
+
+        rowQueue = new ArrayBlockingQueue<Object[]>(queueCapacity);
+        for (int partition = 0; partition < workerCount; ++partition) {
+            EXECUTOR.execute(new Worker(featureDatasetPool, partition, workerCount));
+        }
+        runningCount = workerCount;
+    }
+
+    /**
+     * @return worker threads shared by all readers from the system property
+     *         {@value #THREADS_PROPERTY}, the processor count by default.
+     */
+    public static int getThreadCount() {
+        return Math.max(1, Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+    }
+
+    @Override
+    public int getAttributeCount() {
+        return featureType.getAttributeCount();
+    }
+
+    @Override
+    public AttributeDescriptor getAttributeType(int index) throws ArrayIndexOutOfBoundsException {
+        return featureType.getDescriptor(index);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        rowQueue.clear(); // workers blocked on a full queue see closed
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        if (nextRow == null) {
+            nextRow = take();
+        }
+        return nextRow != null;
+    }
+
+    @Override
+    public void next() throws IOException, IllegalArgumentException, NoSuchElementException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        row = nextRow;
+        nextRow = null;
+    }
+
+    @Override
+    public Object read(int index) throws IOException, ArrayIndexOutOfBoundsException {
+        if (index < attributeCount) {
+            return row[index];
+        } else {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+    }
+
+    private Object[] take() throws IOException {
+        while (runningCount > 0) {
+            Object[] taken;
+            try {
+                taken = rowQueue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted reading NetCDF observations");
+            }
+            if (taken == END) {
+                --runningCount;
+                checkFailure();
+            } else {
+                return taken;
+            }
+        }
+        return null;
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable t = failure;
+        if (t instanceof IOException) {
+            throw (IOException)t;
+        } else if (t != null) {
+            throw new IOException(t);
+        }
+    }
+
+    // interrupted, the worker stops and fails the reader
+    private void put(Object[] row) throws InterruptedIOException {
+        try {
+            while (!closed && !rowQueue.offer(row, OFFER_MILLIS, TimeUnit.MILLISECONDS)) {
+                // consumer is behind, wait unless closed
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted queueing NetCDF observations");
+        }
+    }
+
+    // END must reach the consumer even if interrupted, or it waits forever
+    private void putEnd() {
+        boolean interrupted = false;
+        try {
+            while (!closed) {
+                try {
+                    if (rowQueue.offer(END, OFFER_MILLIS, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        private final NetCDFFeatureDatasetPool featureDatasetPool;
+        private final int partition;
+        private final int partitionCount;
+
+        private Worker(NetCDFFeatureDatasetPool featureDatasetPool, int partition, int partitionCount) {
+            this.featureDatasetPool = featureDatasetPool;
+            this.partition = partition;
+            this.partitionCount = partitionCount;
+        }
+
+        @Override
+        public void run() {
+            if (closed) {
+                putEnd();
+                return;
+            }
+            FeatureDataset featureDataset = null;
+            try {
+                featureDataset = featureDatasetPool.acquire();
+                StationTimeSeriesFeatureCollection stationTimeSeriesFeatureCollection = NetCDFUtil.extractStationTimeSeriesFeatureCollection(featureDataset);
+                if (stationTimeSeriesFeatureCollection != null) {
+                    // every partitionCount-th station, evens out station sizes
+                    List<Station> stations = stationTimeSeriesFeatureCollection.getStations();
+                    for (int stationIndex = partition; stationIndex < stations.size() && !closed; stationIndex += partitionCount) {
+                        readStation(stationTimeSeriesFeatureCollection.getStationFeature(stations.get(stationIndex)));
+                    }
+                }
+            } catch (Throwable t) {
+                synchronized (NetCDFParallelAttributeReader.this) {
+                    if (failure == null) {
+                        failure = t;
+                    }
+                }
+            } finally {
+                featureDatasetPool.release(featureDataset);
+                putEnd();
+            }
+        }
+
+        private void readStation(PointFeatureCollection pointFeatureCollection) throws IOException {
+            try {
+                while (!closed && pointFeatureCollection.hasNext()) {
+                    PointFeature pointFeature = pointFeatureCollection.next();
+                    Object[] extracted = new Object[attributeCount];
+                    for (int attributeIndex = 0; attributeIndex < attributeCount; ++attributeIndex) {
+                        extracted[attributeIndex] = pointFeatureExtractors[attributeIndex].extract(pointFeature);
+                    }
+                    put(extracted);
+                }
+            } finally {
+                pointFeatureCollection.finish();
+            }
+        }
+    }
+}
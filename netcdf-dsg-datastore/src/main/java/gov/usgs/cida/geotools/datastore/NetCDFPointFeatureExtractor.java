@@ -2,6 +2,10 @@ package gov.usgs.cida.geotools.datastore;
 
 import java.io.IOException;
 import java.util.Date;
+import ucar.ma2.Array;
+import ucar.ma2.ArrayChar;
+import ucar.ma2.StructureData;
+import ucar.ma2.StructureMembers;
 import ucar.nc2.VariableSimpleIF;
 import ucar.nc2.ft.PointFeature;
 
@@ -11,74 +15,205 @@ import ucar.nc2.ft.PointFeature;
  */
 public abstract class NetCDFPointFeatureExtractor<T> {
 
+    /**
+     * @return the type of the extracted values, the attribute binding.
+     */
+    public abstract Class<T> getBinding();
+
     public abstract T extract(PointFeature pointFeature) throws IOException;
+
+    /**
+     * @param index flattened element index into the variable data.
+     */
+    public T extract(Array array, int index) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " can't extract from variable data");
+    }
+
+    /**
+     * @param index flattened element index into the variable data.
+     */
+    public T extract(NetCDFMappedFile.MappedVariable variable, int index) throws IOException {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " can't extract from mapped variables");
+    }
     
     public static class TimeStamp extends NetCDFPointFeatureExtractor<Date> {
+        @Override public Class<Date> getBinding() { return Date.class; }
         @Override public Date extract(PointFeature pointFeature) throws IOException {
             return pointFeature.getObservationTimeAsCalendarDate().toDate();
         }
     }
     
+    /**
+     * Reads the variable's member of the point feature data by member handle
+     * instead of by name.  The handle is resolved once per StructureMembers,
+     * point features of a collection share them.
+     */
     public static abstract class Scalar<T> extends NetCDFPointFeatureExtractor<T> {
         protected final String variableName;
+        // replaced as a whole so the extractor can be shared by readers
+        private volatile MemberHandle memberHandle;
         public Scalar(String variableName) {
             this.variableName = variableName;
         }
+        protected StructureMembers.Member getMember(StructureData data) {
+            StructureMembers members = data.getStructureMembers();
+            MemberHandle handle = memberHandle;
+            if (handle == null || handle.members != members) {
+                StructureMembers.Member member = members.findMember(variableName);
+                if (member == null) {
+                    throw new IllegalArgumentException("illegal member name =" + variableName);
+                }
+                handle = new MemberHandle(members, member);
+                memberHandle = handle;
+            }
+            return handle.member;
+        }
+    }
+
+    private final static class MemberHandle {
+        private final StructureMembers members;
+        private final StructureMembers.Member member;
+        private MemberHandle(StructureMembers members, StructureMembers.Member member) {
+            this.members = members;
+            this.member = member;
+        }
     }
     
     public static class ScalarBoolean extends Scalar<Boolean> {
         public ScalarBoolean(String variableName) { super(variableName); }
+        @Override public Class<Boolean> getBinding() { return Boolean.class; }
         @Override public Boolean extract(PointFeature pointFeature) throws IOException {
-            return null;
+            StructureData data = pointFeature.getData();
+            return data.getArray(getMember(data)).getBoolean(0);
+        }
+        @Override public Boolean extract(Array array, int index) {
+            return array.getBoolean(index);
         }
     }
     
+    /**
+     * Also used for CHAR variables, a char array per observation is the
+     * usual way to store strings in NetCDF-3.  For char data the index is
+     * into the strings, the flattened index over all but the last
+     * dimension.
+     */
     public static class ScalarString extends Scalar<String> {
         public ScalarString(String variableName) { super(variableName); }
+        @Override public Class<String> getBinding() { return String.class; }
         @Override public String extract(PointFeature pointFeature) throws IOException {
-            return pointFeature.getData().getScalarString(variableName);
+            StructureData data = pointFeature.getData();
+            return data.getScalarString(getMember(data));
+        }
+        @Override public String extract(Array array, int index) {
+            if (array instanceof ArrayChar) {
+                if (array.getRank() < 2) {
+                    return String.valueOf(array.getChar(index));
+                }
+                // ArrayChar.getString(int) only indexes the first dimension
+                int[] shape = array.getShape();
+                int length = shape[shape.length - 1];
+                char[] chars = new char[length];
+                int charCount = 0;
+                for (int offset = index * length; charCount < length; ++charCount) {
+                    char c = array.getChar(offset + charCount);
+                    if (c == 0) {
+                        break;
+                    }
+                    chars[charCount] = c;
+                }
+                return new String(chars, 0, charCount);
+            }
+            return String.valueOf(array.getObject(index));
         }
     }
     
     public static class ScalarByte extends Scalar<Byte> {
         public ScalarByte(String variableName) { super(variableName); }
+        @Override public Class<Byte> getBinding() { return Byte.class; }
         @Override public Byte extract(PointFeature pointFeature) throws IOException {
-            return pointFeature.getData().getScalarByte(variableName);
+            StructureData data = pointFeature.getData();
+            return data.getScalarByte(getMember(data));
+        }
+        @Override public Byte extract(Array array, int index) {
+            return array.getByte(index);
+        }
+        @Override public Byte extract(NetCDFMappedFile.MappedVariable variable, int index) throws IOException {
+            return (byte) variable.getLong(index);
         }
     }
     
     public static class ScalarShort extends Scalar<Short> {
         public ScalarShort(String variableName) { super(variableName); }
+        @Override public Class<Short> getBinding() { return Short.class; }
         @Override public Short extract(PointFeature pointFeature) throws IOException {
-            return pointFeature.getData().getScalarShort(variableName);
+            StructureData data = pointFeature.getData();
+            return data.getScalarShort(getMember(data));
+        }
+        @Override public Short extract(Array array, int index) {
+            return array.getShort(index);
+        }
+        @Override public Short extract(NetCDFMappedFile.MappedVariable variable, int index) throws IOException {
+            return (short) variable.getLong(index);
         }
     }
     
     public static class ScalarInteger extends Scalar<Integer> {
         public ScalarInteger(String variableName) { super(variableName); }
+        @Override public Class<Integer> getBinding() { return Integer.class; }
         @Override public Integer extract(PointFeature pointFeature) throws IOException {
-            return pointFeature.getData().getScalarInt(variableName);
+            StructureData data = pointFeature.getData();
+            return data.getScalarInt(getMember(data));
+        }
+        @Override public Integer extract(Array array, int index) {
+            return array.getInt(index);
+        }
+        @Override public Integer extract(NetCDFMappedFile.MappedVariable variable, int index) throws IOException {
+            return (int) variable.getLong(index);
         }
     }
     
     public static class ScalarLong extends Scalar<Long> {
         public ScalarLong(String variableName) { super(variableName); }
+        @Override public Class<Long> getBinding() { return Long.class; }
         @Override public Long extract(PointFeature pointFeature) throws IOException {
-            return pointFeature.getData().getScalarLong(variableName);
+            StructureData data = pointFeature.getData();
+            return data.getScalarLong(getMember(data));
+        }
+        @Override public Long extract(Array array, int index) {
+            return array.getLong(index);
+        }
+        @Override public Long extract(NetCDFMappedFile.MappedVariable variable, int index) throws IOException {
+            return variable.getLong(index);
         }
     }
     
     public static class ScalarFloat extends Scalar<Float> {
         public ScalarFloat(String variableName) { super(variableName); }
+        @Override public Class<Float> getBinding() { return Float.class; }
         @Override public Float extract(PointFeature pointFeature) throws IOException {
-            return pointFeature.getData().getScalarFloat(variableName);
+            StructureData data = pointFeature.getData();
+            return data.getScalarFloat(getMember(data));
+        }
+        @Override public Float extract(Array array, int index) {
+            return array.getFloat(index);
+        }
+        @Override public Float extract(NetCDFMappedFile.MappedVariable variable, int index) throws IOException {
+            return (float) variable.getDouble(index);
         }
     }
     
     public static class ScalarDouble extends Scalar<Double> {
         public ScalarDouble(String variableName) { super(variableName); }
+        @Override public Class<Double> getBinding() { return Double.class; }
         @Override public Double extract(PointFeature pointFeature) throws IOException {
-            return pointFeature.getData().getScalarDouble(variableName);
+            StructureData data = pointFeature.getData();
+            return data.getScalarDouble(getMember(data));
+        }
+        @Override public Double extract(Array array, int index) {
+            return array.getDouble(index);
+        }
+        @Override public Double extract(NetCDFMappedFile.MappedVariable variable, int index) throws IOException {
+            return variable.getDouble(index);
         }
     }
         
@@ -86,8 +221,8 @@ public abstract class NetCDFPointFeatureExtractor<T> {
         String variableName = variable.getShortName();
         switch (variable.getDataType()) {
             case BOOLEAN: return new ScalarBoolean(variableName);
-            case BYTE:
-            case CHAR: return new ScalarByte(variableName);
+            case BYTE: return new ScalarByte(variableName);
+            case CHAR: return new ScalarString(variableName);
             case SHORT: return new ScalarShort(variableName);
             case INT: return new ScalarInteger(variableName);
             case LONG: return new ScalarLong(variableName);
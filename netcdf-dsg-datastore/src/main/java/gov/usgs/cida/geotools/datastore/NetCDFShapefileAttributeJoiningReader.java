@@ -2,22 +2,36 @@ package gov.usgs.cida.geotools.datastore;
 
 import com.vividsolutions.jts.geom.Envelope;
 import java.io.IOException;
-import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import org.geotools.data.shapefile.ShapefileAttributeReader;
 import org.geotools.renderer.ScreenMap;
 import org.opengis.feature.type.AttributeDescriptor;
+import ucar.ma2.Array;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Variable;
+import ucar.nc2.VariableSimpleIF;
 import ucar.nc2.ft.FeatureDataset;
-import ucar.nc2.ft.PointFeature;
-import ucar.nc2.ft.StationTimeSeriesFeature;
-import ucar.nc2.ft.StationTimeSeriesFeatureCollection;
-import ucar.nc2.time.CalendarDate;
-import ucar.nc2.time.CalendarDateRange;
-import ucar.unidata.geoloc.Station;
 
 /**
+ * Joins observation values to shapefile features by station id.  Stations
+ * and their observations are looked up in the store's
+ * {@link NetCDFStationIndex} and values are read from the observation
+ * variable data by index.  For a single time step of an orthogonal layout
+ * only the time step's section of each observation variable is read,
+ * indexed by station.
+ *
+ * Given the stations the shapefile records will join to, records of other
+ * stations aren't joined and only the rows of each observation variable
+ * holding the stations' observations are read, nearby rows in one read,
+ * unless they make up much of the variable.  Otherwise
+ * observation variables are read in blocks of rows around the observation
+ * to join, never whole.
+ *
+ * Variables of a {@link NetCDFMappedFile} are read by index from the mapped
+ * file instead.
  *
  * @author tkunicki
  */
@@ -26,35 +40,131 @@ public class NetCDFShapefileAttributeJoiningReader  extends ShapefileAttributeRe
     private final ShapefileAttributeReader delegate;
     private final int shapefileJoinAttributeIndex;
     
-    private final FeatureDataset featureDataset;
+    private final NetCDFFeatureDatasetPool featureDatasetPool;
+    private FeatureDataset featureDataset; // released on close
+    private final NetCDFStationIndex netCDFStationIndex;
     private final Date timeStep;
-    private final StationTimeSeriesFeatureCollection stationTimeSeriesFeatureCollection;
   
+    // rows apart that are read with the rows between instead of separately
+    private final static int MAX_ROW_GAP = 32;
+
+    // elements per block of rows read when there's no row range to read
+    private final static int BLOCK_SIZE = 1 << 16;
+
     private final NetCDFPointFeatureExtractor<?>[] pointFeatureExtractors;
+    private final Variable[] observationVariables;
+    private final Array[] observationTimeStepArrays; // read on first use, indexed by station
+    private final boolean[] observationTimeStepRead; // null section if not (station, time)
+    private final int timeStepIndex; // -1 unless reading time step sections
+
+    // the block of rows [from, to) of each variable last read
+    private final Array[] observationBlockArrays;
+    private final int[] observationBlockFromRows;
+    private final int[] observationBlockToRows;
+
+    // row ranges [from, to) holding the observations of the station subset,
+    // null if reading whole variables
+    private final int[] rangeFromRows;
+    private final int[] rangeToRows;
+    private final Array[][] observationRangeArrays; // read on first use, null if read whole
+
+    private final NetCDFMappedFile.MappedVariable[] mappedVariables; // null if not mapped
+
+    private final boolean[] stationSelected; // by station, null if all are
+    private int readCount;
     
-    private PointFeature pointFeature;
+    private int stationIndex = -1;
+    private int observationIndex = -1;
     
-    public NetCDFShapefileAttributeJoiningReader(ShapefileAttributeReader delegate, URL netCDFURL, int shapefileJoinAttributeIndex) throws IOException {
-        this(delegate, netCDFURL, shapefileJoinAttributeIndex, null);
+    public NetCDFShapefileAttributeJoiningReader(ShapefileAttributeReader delegate, NetCDFFeatureDatasetPool featureDatasetPool, NetCDFStationIndex stationIndex, int shapefileJoinAttributeIndex) throws IOException {
+        this(delegate, featureDatasetPool, stationIndex, shapefileJoinAttributeIndex, null);
     }
 
-    public NetCDFShapefileAttributeJoiningReader(ShapefileAttributeReader delegate, URL netCDFURL, int shapefileJoinAttributeIndex, Date timeStep) throws IOException {
+    public NetCDFShapefileAttributeJoiningReader(ShapefileAttributeReader delegate, NetCDFFeatureDatasetPool featureDatasetPool, NetCDFStationIndex stationIndex, int shapefileJoinAttributeIndex, Date timeStep) throws IOException {
+        this(delegate, featureDatasetPool, stationIndex, shapefileJoinAttributeIndex, timeStep, null);
+    }
+
+    /**
+     * @param stationSubset sorted indices of the stations shapefile records
+     *        will join to, null if not known.
+     */
+    public NetCDFShapefileAttributeJoiningReader(ShapefileAttributeReader delegate, NetCDFFeatureDatasetPool featureDatasetPool, NetCDFStationIndex stationIndex, int shapefileJoinAttributeIndex, Date timeStep, int[] stationSubset) throws IOException {
+        this(delegate, featureDatasetPool, stationIndex, shapefileJoinAttributeIndex, timeStep, stationSubset, null);
+    }
+
+    /**
+     * @param mappedFile the NetCDF file if mapped, null to read through
+     *        netCDF-Java only.
+     */
+    public NetCDFShapefileAttributeJoiningReader(ShapefileAttributeReader delegate, NetCDFFeatureDatasetPool featureDatasetPool, NetCDFStationIndex stationIndex, int shapefileJoinAttributeIndex, Date timeStep, int[] stationSubset, NetCDFMappedFile mappedFile) throws IOException {
         super(hack(delegate), null, null); // lame duck
         this.delegate = delegate;
-        this.featureDataset = NetCDFUtil.acquireDataSet(netCDFURL);
+        this.featureDatasetPool = featureDatasetPool;
+        this.featureDataset = featureDatasetPool.acquire();
+        this.netCDFStationIndex = stationIndex;
         this.shapefileJoinAttributeIndex = shapefileJoinAttributeIndex;
         this.timeStep = timeStep;
-        
-        this.stationTimeSeriesFeatureCollection = NetCDFUtil.extractStationTimeSeriesFeatureCollection(featureDataset);
-//        stationTimeSeriesFeatureCollection.resetIteration();
+        this.timeStepIndex = timeStep != null && stationIndex.isOrthogonal() ?
+                stationIndex.findTimeIndex(timeStep.getTime()) :
+                -1;
         
         int attributeCount = getAttributeCount();
         pointFeatureExtractors = new NetCDFPointFeatureExtractor<?>[attributeCount];
+        observationVariables = new Variable[attributeCount];
+        observationTimeStepArrays = new Array[attributeCount];
+        observationTimeStepRead = new boolean[attributeCount];
+        observationBlockArrays = new Array[attributeCount];
+        observationBlockFromRows = new int[attributeCount];
+        observationBlockToRows = new int[attributeCount];
+        mappedVariables = new NetCDFMappedFile.MappedVariable[attributeCount];
         for (int attributeIndex = 0; attributeIndex < attributeCount; ++attributeIndex) {
-            Object o = getAttributeType(attributeIndex).getUserData().get(NetCDFShapefileDataStore.EXTRACTOR_KEY);
+            AttributeDescriptor attributeDescriptor = getAttributeType(attributeIndex);
+            Object o = attributeDescriptor.getUserData().get(NetCDFShapefileDataStore.EXTRACTOR_KEY);
             pointFeatureExtractors[attributeIndex] = o instanceof NetCDFPointFeatureExtractor<?> ?
                     (NetCDFPointFeatureExtractor<?>)o :
                     null;
+            if (pointFeatureExtractors[attributeIndex] instanceof NetCDFPointFeatureExtractor.Scalar) {
+                Object variable = attributeDescriptor.getUserData().get(NetCDFShapefileDataStore.VARIABLE_KEY);
+                observationVariables[attributeIndex] = NetCDFStationIndex.findVariable(featureDataset.getNetcdfFile(), (VariableSimpleIF)variable);
+                if (mappedFile != null && observationVariables[attributeIndex] != null &&
+                        !(pointFeatureExtractors[attributeIndex] instanceof NetCDFPointFeatureExtractor.ScalarString) &&
+                        !(pointFeatureExtractors[attributeIndex] instanceof NetCDFPointFeatureExtractor.ScalarBoolean)) {
+                    mappedVariables[attributeIndex] = mappedFile.findVariable(observationVariables[attributeIndex].getFullName());
+                }
+            }
+        }
+
+        if (stationSubset != null) {
+            stationSelected = new boolean[stationIndex.getStationCount()];
+            for (int selectedIndex : stationSubset) {
+                stationSelected[selectedIndex] = true;
+            }
+        } else {
+            stationSelected = null;
+        }
+
+        int[][] rowRanges = stationSubset != null && timeStepIndex < 0 ?
+                createRowRanges(stationSubset) :
+                null;
+        if (rowRanges != null) {
+            rangeFromRows = rowRanges[0];
+            rangeToRows = rowRanges[1];
+            int rangeRowCount = 0;
+            for (int range = 0; range < rangeFromRows.length; ++range) {
+                rangeRowCount += rangeToRows[range] - rangeFromRows[range];
+            }
+            observationRangeArrays = new Array[attributeCount][];
+            for (int attributeIndex = 0; attributeIndex < attributeCount; ++attributeIndex) {
+                Variable observationVariable = observationVariables[attributeIndex];
+                if (observationVariable != null && observationVariable.getRank() > 0 &&
+                        rangeRowCount * 2 < observationVariable.getShape()[0]) {
+                    observationRangeArrays[attributeIndex] = new Array[rangeFromRows.length];
+                }
+            }
+        } else {
+            rangeFromRows = null;
+            rangeToRows = null;
+            observationRangeArrays = null;
         }
     }
 
@@ -65,14 +175,8 @@ public class NetCDFShapefileAttributeJoiningReader  extends ShapefileAttributeRe
         } catch (IOException e) {
             /* don't care */
         }
-        stationTimeSeriesFeatureCollection.finish();
-        if (featureDataset != null) {
-            try {
-                featureDataset.close();
-            } catch (IOException e) {
-            /* don't care */
-            }
-        }
+        featureDatasetPool.release(featureDataset);
+        featureDataset = null;
     }
 
     @Override
@@ -88,24 +192,174 @@ public class NetCDFShapefileAttributeJoiningReader  extends ShapefileAttributeRe
     @Override
     public void next() throws IOException {
         delegate.next();
-        String stationId = delegate.read(shapefileJoinAttributeIndex).toString();
-        Station station = stationTimeSeriesFeatureCollection.getStation(stationId);
-        StationTimeSeriesFeature stationTimeSeriesFeature = stationTimeSeriesFeatureCollection.getStationFeature(station);
-        if (timeStep != null) {
-            stationTimeSeriesFeature = stationTimeSeriesFeature.subset(new CalendarDateRange(CalendarDate.of(timeStep), 0));
+        observationIndex = -1;
+        Object stationId = delegate.read(shapefileJoinAttributeIndex);
+        stationIndex = stationId == null ? -1 : netCDFStationIndex.getStationIndex(stationId.toString());
+        if (stationIndex > -1 && stationSelected != null && !stationSelected[stationIndex]) {
+            stationIndex = -1; // outside the subset, filtered out after the join
         }
-        if (stationTimeSeriesFeature.hasNext()) {
-            pointFeature = stationTimeSeriesFeature.next();
+        if (stationIndex > -1) {
+            observationIndex = findObservationIndex(stationIndex);
         }
-        stationTimeSeriesFeature.finish();
+    }
+
+    /**
+     * @return the observation of the station to join, -1 if none.
+     */
+    private int findObservationIndex(int stationIndex) {
+        if (timeStepIndex > -1) {
+            return netCDFStationIndex.getObservationIndex(stationIndex, timeStepIndex);
+        } else if (timeStep != null && !netCDFStationIndex.isOrthogonal()) {
+            return netCDFStationIndex.findObservationIndex(stationIndex, timeStep.getTime());
+        } else if (timeStep == null && netCDFStationIndex.getObservationCount(stationIndex) > 0) {
+            return netCDFStationIndex.getObservationIndex(stationIndex, 0);
+        }
+        return -1;
+    }
+
+    /**
+     * @return the from and to rows of the row ranges holding the observations
+     *         to join for the stations, null if there are none.
+     */
+    private int[][] createRowRanges(int[] stationSubset) {
+        int[] rows = new int[stationSubset.length];
+        int rowCount = 0;
+        for (int stationSubsetIndex = 0; stationSubsetIndex < stationSubset.length; ++stationSubsetIndex) {
+            int stationObservationIndex = findObservationIndex(stationSubset[stationSubsetIndex]);
+            if (stationObservationIndex > -1) {
+                rows[rowCount++] = netCDFStationIndex.getObservationRow(stationObservationIndex);
+            }
+        }
+        if (rowCount == 0) {
+            return null;
+        }
+        Arrays.sort(rows, 0, rowCount);
+        int[] fromRows = new int[rowCount];
+        int[] toRows = new int[rowCount];
+        int rangeCount = 0;
+        for (int rowIndex = 0; rowIndex < rowCount; ++rowIndex) {
+            int row = rows[rowIndex];
+            if (rangeCount > 0 && row - toRows[rangeCount - 1] <= MAX_ROW_GAP) {
+                toRows[rangeCount - 1] = Math.max(toRows[rangeCount - 1], row + 1);
+            } else {
+                fromRows[rangeCount] = row;
+                toRows[rangeCount] = row + 1;
+                ++rangeCount;
+            }
+        }
+        return new int[][] { Arrays.copyOf(fromRows, rangeCount), Arrays.copyOf(toRows, rangeCount) };
     }
 
     @Override
     public Object read(int attributeIndex) throws IOException, ArrayIndexOutOfBoundsException {
         NetCDFPointFeatureExtractor extractor = pointFeatureExtractors[attributeIndex];
-        return extractor == null ?
-                delegate.read(attributeIndex) :
-                extractor.extract(pointFeature);
+        if (extractor == null) {
+            return delegate.read(attributeIndex);
+        }
+        if (observationIndex < 0) {
+            return null;
+        }
+        if (extractor instanceof NetCDFPointFeatureExtractor.TimeStamp) {
+            return new Date(netCDFStationIndex.getObservationTime(observationIndex));
+        }
+        if (mappedVariables[attributeIndex] != null) {
+            return extractor.extract(mappedVariables[attributeIndex], observationIndex);
+        }
+        Array timeStepArray = observationTimeStepArrays[attributeIndex];
+        if (timeStepArray != null) {
+            return extractor.extract(timeStepArray, stationIndex);
+        }
+        Variable observationVariable = observationVariables[attributeIndex];
+        if (observationVariable == null) {
+            return null;
+        }
+        if (observationRangeArrays != null && observationRangeArrays[attributeIndex] != null) {
+            int row = netCDFStationIndex.getObservationRow(observationIndex);
+            int range = Arrays.binarySearch(rangeFromRows, row);
+            if (range < 0) {
+                range = -range - 2;
+            }
+            if (range > -1 && row < rangeToRows[range]) {
+                Array rangeArray = observationRangeArrays[attributeIndex][range];
+                if (rangeArray == null) {
+                    rangeArray = netCDFStationIndex.readRows(observationVariable, rangeFromRows[range], rangeToRows[range]);
+                    if (rangeArray != null) {
+                        ++readCount;
+                    }
+                    observationRangeArrays[attributeIndex][range] = rangeArray;
+                }
+                if (rangeArray != null) {
+                    return extractor.extract(rangeArray, observationIndex - rangeFromRows[range] * netCDFStationIndex.getRowLength());
+                }
+                observationRangeArrays[attributeIndex] = null; // not read by rows
+            }
+        }
+        if (timeStepIndex > -1 && !observationTimeStepRead[attributeIndex]) {
+            timeStepArray = netCDFStationIndex.readTimeStep(observationVariable, timeStepIndex);
+            observationTimeStepArrays[attributeIndex] = timeStepArray;
+            observationTimeStepRead[attributeIndex] = true;
+            if (timeStepArray != null) {
+                ++readCount;
+                return extractor.extract(timeStepArray, stationIndex);
+            }
+        }
+        return extractBlock(attributeIndex, extractor, observationVariable);
+    }
+
+    /**
+     * Extracts the observation from the block of rows holding it, read if
+     * it isn't the block last read for the variable.
+     */
+    private Object extractBlock(int attributeIndex, NetCDFPointFeatureExtractor<?> extractor, Variable observationVariable) throws IOException {
+        int row = netCDFStationIndex.getObservationRow(observationIndex);
+        Array blockArray = observationBlockArrays[attributeIndex];
+        if (blockArray == null || row < observationBlockFromRows[attributeIndex] || row >= observationBlockToRows[attributeIndex]) {
+            int[] shape = observationVariable.getShape();
+            int rowSize = 1;
+            for (int dimension = 1; dimension < shape.length; ++dimension) {
+                rowSize *= shape[dimension];
+            }
+            int blockRowCount = Math.max(1, BLOCK_SIZE / Math.max(1, rowSize));
+            int fromRow = row / blockRowCount * blockRowCount;
+            int toRow = shape.length == 0 ? fromRow + 1 : Math.min(fromRow + blockRowCount, shape[0]);
+            blockArray = netCDFStationIndex.readRows(observationVariable, fromRow, toRow);
+            if (blockArray == null) {
+                // not read by rows
+                ++readCount;
+                return extractor.extract(readElement(observationVariable, observationIndex), 0);
+            }
+            ++readCount;
+            observationBlockArrays[attributeIndex] = blockArray;
+            observationBlockFromRows[attributeIndex] = fromRow;
+            observationBlockToRows[attributeIndex] = toRow;
+        }
+        return extractor.extract(blockArray, observationIndex - observationBlockFromRows[attributeIndex] * netCDFStationIndex.getRowLength());
+    }
+
+    /**
+     * @return the element at the flattened index of the variable data.
+     */
+    private static Array readElement(Variable variable, int index) throws IOException {
+        int[] shape = variable.getShape();
+        int[] origin = new int[shape.length];
+        int[] elementShape = new int[shape.length];
+        for (int dimension = shape.length - 1; dimension >= 0; --dimension) {
+            origin[dimension] = index % shape[dimension];
+            index /= shape[dimension];
+            elementShape[dimension] = 1;
+        }
+        try {
+            return variable.read(origin, elementShape);
+        } catch (InvalidRangeException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return reads of observation variable data through netCDF-Java.
+     */
+    int getReadCount() {
+        return readCount;
     }
 
     @Override
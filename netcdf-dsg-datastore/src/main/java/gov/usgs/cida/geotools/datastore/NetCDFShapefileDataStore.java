@@ -1,5 +1,7 @@
 package gov.usgs.cida.geotools.datastore;
 
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
 import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
@@ -11,10 +13,12 @@ import org.geotools.data.shapefile.ShapefileAttributeReader;
 import org.geotools.data.shapefile.ShapefileDataStore;
 import org.geotools.feature.AttributeTypeBuilder;
 import org.geotools.feature.SchemaException;
+import org.geotools.filter.visitor.ExtractBoundsFilterVisitor;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.filter.Filter;
 import ucar.nc2.VariableSimpleIF;
 import ucar.nc2.dataset.NetcdfDataset;
 import ucar.nc2.ft.FeatureDataset;
@@ -26,7 +30,7 @@ import ucar.nc2.ft.FeatureDataset;
 public class NetCDFShapefileDataStore extends ShapefileDataStore {
     
     static {
-         NetcdfDataset.initNetcdfFileCache(32, 64, 600);
+         NetCDFFileCache.initialize();
          NetcdfDataset.setUseNaNs(false);
     }
     
@@ -34,17 +38,24 @@ public class NetCDFShapefileDataStore extends ShapefileDataStore {
     public final static String EXTRACTOR_KEY = "extractor";
      
     private final URL netCDFURL;
+    private final NetCDFFeatureDatasetPool featureDatasetPool;
     private final String shapefileStationAttributeName;
     
     private Set<String> shapefileAttributeNames;
     private Set<String> netCDFAttributeNames;
     
     private VariableSimpleIF observationTimeVariable;
+    
+    private NetCDFStationIndex stationIndex;
+    
+    private NetCDFMappedFile mappedFile;
+    private boolean mappedFileOpened;
 
     public NetCDFShapefileDataStore(URI namespaceURI, URL netCDFURL, URL shapefileURL, String shapefileStationAttributeName) throws MalformedURLException, IOException {
         super(shapefileURL, namespaceURI, true, true, ShapefileDataStore.DEFAULT_STRING_CHARSET);
         
         this.netCDFURL = netCDFURL;
+        this.featureDatasetPool = new NetCDFFeatureDatasetPool(netCDFURL);
         
         this.shapefileStationAttributeName = shapefileStationAttributeName;
         
@@ -62,7 +73,13 @@ public class NetCDFShapefileDataStore extends ShapefileDataStore {
         FeatureDataset featureDataset = null;
         List<AttributeDescriptor> attributeDescriptors = null;
         try {
-            featureDataset = NetCDFUtil.acquireDataSet(netCDFURL);
+            featureDataset = featureDatasetPool.acquire();
+
+            synchronized (this) {
+                if (stationIndex == null) {
+                    stationIndex = NetCDFStationIndex.read(featureDataset);
+                }
+            }
 
             List<VariableSimpleIF> observationVariables = NetCDFUtil.getObservationVariables(featureDataset);
             observationTimeVariable = NetCDFUtil.getObservationTimeVariable(featureDataset);
@@ -93,10 +110,11 @@ public class NetCDFShapefileDataStore extends ShapefileDataStore {
                 VariableSimpleIF observationVariable = observationVariables.get(observationVariableIndex);
                 String observationVariableName = observationVariable.getShortName();
                 if (!shapefileAttributeNames.contains(observationVariableName)) {
+                    NetCDFPointFeatureExtractor<?> extractor = NetCDFPointFeatureExtractor.generatePointFeatureExtractor(observationVariable);
                     netCDFAttributeDescriptors.add(atBuilder.
                         userData(VARIABLE_KEY, observationVariable).
-                        userData(EXTRACTOR_KEY, NetCDFPointFeatureExtractor.generatePointFeatureExtractor(observationVariable)).
-                        binding(observationVariable.getDataType().getClassType()).
+                        userData(EXTRACTOR_KEY, extractor).
+                        binding(extractor.getBinding()).
                         buildDescriptor(observationVariableName));
                 }
             }
@@ -113,9 +131,7 @@ public class NetCDFShapefileDataStore extends ShapefileDataStore {
             attributeDescriptors.addAll(netCDFAttributeDescriptors);
 
         } finally {
-            if (featureDataset != null) {
-                featureDataset.close();
-            }
+            featureDatasetPool.release(featureDataset);
         }
         return attributeDescriptors;
     }
@@ -141,9 +157,18 @@ public class NetCDFShapefileDataStore extends ShapefileDataStore {
                 SimpleFeatureType subTypeSchema = DataUtilities.createSubType(getSchema(), propertyNames.toArray(new String[0]));
                 boolean timeStampOnly = propertyNames.size() == 1 && observationTimeVariable.getShortName().equals(propertyNames.get(0));
                 if (timeStampOnly) {
-                    return new DefaultFeatureReader(new NetCDFTimeStampAttributeReader(netCDFURL, subTypeSchema), subTypeSchema);
+                    return new DefaultFeatureReader(new NetCDFTimeStampAttributeReader(getStationIndex(), subTypeSchema), subTypeSchema);
+                }
+                // paged or sorted reads need the stable order of the
+                // sequential reader, workers beyond the idle datasets would
+                // open and close a dataset each
+                int workerCount = isPagedOrSorted(query) ? 1 : Math.min(
+                        Math.min(NetCDFParallelAttributeReader.getThreadCount(), featureDatasetPool.getMaxIdle()),
+                        getStationIndex().getStationCount());
+                if (workerCount > 1) {
+                    return new DefaultFeatureReader(new NetCDFParallelAttributeReader(featureDatasetPool, subTypeSchema, workerCount), subTypeSchema);
                 } else {
-                    return new DefaultFeatureReader(new NetCDFAttributeReader(netCDFURL, subTypeSchema), subTypeSchema);
+                    return new DefaultFeatureReader(new NetCDFAttributeReader(featureDatasetPool, subTypeSchema), subTypeSchema);
                 }
             } catch (SchemaException ex) {
                 // hack
@@ -157,12 +182,99 @@ public class NetCDFShapefileDataStore extends ShapefileDataStore {
         if (requiresNetCDFAttributes(query)) {
             Date time = extractTimeStampFromQuery(query);
             int joinIndex = Arrays.asList(properties).indexOf(shapefileStationAttributeName);
-            return new NetCDFShapefileAttributeJoiningReader(super.getAttributesReader(true, query, properties), netCDFURL, joinIndex, time);
+            int[] stationSubset = query.getFilter() == null || query.getFilter() == Filter.INCLUDE ?
+                    null :
+                    readStationSubset(query);
+            return new NetCDFShapefileAttributeJoiningReader(super.getAttributesReader(true, query, properties), featureDatasetPool, getStationIndex(), joinIndex, time, stationSubset, getMappedFile());
         } else {
             return super.getAttributesReader(readDBF, query, properties);
         }
     }
     
+    /**
+     * @return the station index of the NetCDF file, read with the schema and
+     *         shared by all readers of the store.
+     */
+    synchronized NetCDFStationIndex getStationIndex() throws IOException {
+        if (stationIndex == null) {
+            FeatureDataset featureDataset = featureDatasetPool.acquire();
+            try {
+                stationIndex = NetCDFStationIndex.read(featureDataset);
+            } finally {
+                featureDatasetPool.release(featureDataset);
+            }
+        }
+        return stationIndex;
+    }
+    
+    /**
+     * @return the mapped NetCDF file, null if mapping isn't enabled or the
+     *         file isn't a local NetCDF-3 file.
+     */
+    synchronized NetCDFMappedFile getMappedFile() throws IOException {
+        if (!mappedFileOpened) {
+            mappedFileOpened = true;
+            if (NetCDFMappedFile.isEnabled()) {
+                mappedFile = NetCDFMappedFile.open(netCDFURL);
+            }
+        }
+        return mappedFile;
+    }
+    
+    /**
+     * Reads the station ids of the shapefile records the query's bounding
+     * box selects, records are selected by the envelope of their geometry.
+     *
+     * @return sorted indices of the stations, null if that's all of them.
+     */
+    int[] readStationSubset(Query query) throws IOException {
+        NetCDFStationIndex netCDFStationIndex = getStationIndex();
+        boolean[] selected = new boolean[netCDFStationIndex.getStationCount()];
+        int selectedCount = 0;
+        Envelope bounds = (Envelope) query.getFilter().accept(ExtractBoundsFilterVisitor.BOUNDS_VISITOR, null);
+        if (bounds != null && (Double.isInfinite(bounds.getWidth()) || Double.isInfinite(bounds.getHeight()))) {
+            return null; // the filter doesn't constrain the geometry
+        }
+        ShapefileAttributeReader reader = super.getAttributesReader(true, query,
+                new String[] { shapefileStationAttributeName, getSchema().getGeometryDescriptor().getLocalName() });
+        try {
+            while (reader.hasNext() && selectedCount < selected.length) {
+                reader.next();
+                if (bounds != null) {
+                    Object geometry = reader.read(1);
+                    if (bounds.isNull() || !(geometry instanceof Geometry) ||
+                            !bounds.intersects(((Geometry) geometry).getEnvelopeInternal())) {
+                        continue;
+                    }
+                }
+                Object stationId = reader.read(0);
+                int stationIndex = stationId == null ? -1 : netCDFStationIndex.getStationIndex(stationId.toString());
+                if (stationIndex > -1 && !selected[stationIndex]) {
+                    selected[stationIndex] = true;
+                    ++selectedCount;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (selectedCount == selected.length) {
+            return null;
+        }
+        int[] stationSubset = new int[selectedCount];
+        for (int stationIndex = 0, stationSubsetIndex = 0; stationIndex < selected.length; ++stationIndex) {
+            if (selected[stationIndex]) {
+                stationSubset[stationSubsetIndex++] = stationIndex;
+            }
+        }
+        return stationSubset;
+    }
+    
+    private static boolean isPagedOrSorted(Query query) {
+        return query.getStartIndex() != null ||
+               !query.isMaxFeaturesUnlimited() ||
+               (query.getSortBy() != null && query.getSortBy().length > 0);
+    }
+    
     private boolean requiresShapefileAttributes(Query query) {
         return QueryUtil.requiresAttributes(query, shapefileAttributeNames);
     }
@@ -177,9 +289,15 @@ public class NetCDFShapefileDataStore extends ShapefileDataStore {
     
     @Override
     protected String createFeatureTypeName() {
-        String path = netCDFURL.getPath();
-        File file = new File(path);
-        String name = file.getName();
+        return createFeatureTypeName(new File(netCDFURL.getPath()));
+    }
+
+    /**
+     * @return the type name a store over the NetCDF file will have, lets
+     *         callers enumerate type names without creating stores.
+     */
+    public static String createFeatureTypeName(File netCDFFile) {
+        String name = netCDFFile.getName();
         int suffixIndex = name.lastIndexOf("nc");
         if (suffixIndex > -1) {
             name = name.substring(0, suffixIndex -1);
@@ -195,6 +313,13 @@ public class NetCDFShapefileDataStore extends ShapefileDataStore {
 
     @Override
     public void dispose() {
+        featureDatasetPool.dispose();
+        synchronized (this) {
+            if (mappedFile != null) {
+                mappedFile.close();
+                mappedFile = null;
+            }
+        }
         super.dispose();
     }
 
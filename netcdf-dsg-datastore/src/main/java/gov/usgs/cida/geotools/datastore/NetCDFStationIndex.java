@@ -0,0 +1,557 @@
+package gov.usgs.cida.geotools.datastore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import ucar.ma2.Array;
+import ucar.ma2.ArrayChar;
+import ucar.ma2.DataType;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.Structure;
+import ucar.nc2.Variable;
+import ucar.nc2.VariableSimpleIF;
+import ucar.nc2.constants.CF;
+import ucar.nc2.ft.FeatureDataset;
+import ucar.nc2.time.CalendarDateUnit;
+
+/**
+ * Maps station ids to the observations of the station, built once per file
+ * so readers can join by direct array index instead of walking the
+ * StationTimeSeriesFeatureCollection per feature.
+ *
+ * An observation index is the flattened element index into the data of an
+ * observation variable as returned by Variable.read(), that's the index
+ * along the observation dimension for ragged layouts and
+ * station * observationsPerStation + observation for multidimensional
+ * layouts.
+ *
+ * Observation variable data can also be read by rows, the first dimension,
+ * which is the observation dimension for ragged layouts and the station
+ * dimension for multidimensional layouts, so readers can read only the rows
+ * of the stations they need.
+ *
+ * For orthogonal multidimensional layouts, where all stations share one time
+ * coordinate, the observations at a time index are a (station, 1) section of
+ * each observation variable and can be read with one read per variable.
+ * Observation variables on a shared time coordinate that aren't
+ * (station, time), like (time, station) or single station time series, are
+ * indexed by time row instead, the observation index is
+ * time * stationCount + station.
+ *
+ * A station's observations are ordered by time and times are resolved by
+ * binary search over primitive arrays, per station or over the shared time
+ * coordinate, to the nearest observation.  The distinct times of all
+ * stations are kept for time-only queries.
+ *
+ * @author tkunicki
+ */
+public class NetCDFStationIndex {
+
+    // CF-1.6 discrete sampling geometry ragged array attributes
+    private final static String SAMPLE_DIMENSION = "sample_dimension";
+    private final static String INSTANCE_DIMENSION = "instance_dimension";
+
+    private final Map<String, Integer> stationIndices;
+
+    // observations of station i are at positions stationObservationOffsets[i]
+    // until stationObservationOffsets[i + 1] in time order, a position is the
+    // observation index unless mapped by observationIndices.  Not used for
+    // orthogonal layouts.
+    private final int[] stationObservationOffsets;
+    private final int[] observationIndices;
+    private final long[] stationObservationTimes; // millis, by position
+
+    // millis, by observation index or by time index if orthogonal
+    private final long[] observationTimes;
+
+    // orthogonal only, the shared time coordinate in time order and the time
+    // index of each, null if the coordinate is in time order already
+    private final boolean orthogonal;
+    private final long[] orthogonalTimes;
+    private final int[] orthogonalTimeIndices;
+
+    private final int stationCount;
+    private final long[] times; // distinct, in time order
+
+    // first dimension rows and observations per row, 1 for ragged layouts
+    private final int rowCount;
+    private final int rowLength;
+
+    private NetCDFStationIndex(Map<String, Integer> stationIndices, int stationCount, int rowCount, int rowLength, int[] stationObservationOffsets, int[] observationIndices, long[] stationObservationTimes, long[] observationTimes) {
+        this.stationIndices = stationIndices;
+        this.stationCount = stationCount;
+        this.rowCount = rowCount;
+        this.rowLength = rowLength;
+        this.times = distinct(observationTimes);
+        this.stationObservationOffsets = stationObservationOffsets;
+        this.observationIndices = observationIndices;
+        this.stationObservationTimes = stationObservationTimes;
+        this.observationTimes = observationTimes;
+        this.orthogonal = false;
+        this.orthogonalTimes = null;
+        this.orthogonalTimeIndices = null;
+    }
+
+    private NetCDFStationIndex(Map<String, Integer> stationIndices, int stationCount, long[] observationTimes, long[] orthogonalTimes, int[] orthogonalTimeIndices) {
+        this.stationIndices = stationIndices;
+        this.stationCount = stationCount;
+        this.rowCount = stationCount;
+        this.rowLength = observationTimes.length;
+        this.times = distinct(orthogonalTimes);
+        this.stationObservationOffsets = null;
+        this.observationIndices = null;
+        this.stationObservationTimes = null;
+        this.observationTimes = observationTimes;
+        this.orthogonal = true;
+        this.orthogonalTimes = orthogonalTimes;
+        this.orthogonalTimeIndices = orthogonalTimeIndices;
+    }
+
+    public int getStationCount() {
+        return stationCount;
+    }
+
+    /**
+     * @return the index of the station, -1 if there's no station with the id.
+     */
+    public int getStationIndex(String stationId) {
+        Integer stationIndex = stationIndices.get(stationId);
+        return stationIndex == null ? -1 : stationIndex;
+    }
+
+    public int getObservationCount(int stationIndex) {
+        return orthogonal ?
+                observationTimes.length :
+                stationObservationOffsets[stationIndex + 1] - stationObservationOffsets[stationIndex];
+    }
+
+    /**
+     * @param stationObservationIndex in [0, getObservationCount(stationIndex)),
+     *        in time order.
+     * @return the observation index of the station's observation.
+     */
+    public int getObservationIndex(int stationIndex, int stationObservationIndex) {
+        if (orthogonal) {
+            int timeIndex = orthogonalTimeIndices == null ? stationObservationIndex : orthogonalTimeIndices[stationObservationIndex];
+            return stationIndex * observationTimes.length + timeIndex;
+        }
+        int position = stationObservationOffsets[stationIndex] + stationObservationIndex;
+        return observationIndices == null ? position : observationIndices[position];
+    }
+
+    /**
+     * @return the observation time in millis.
+     */
+    public long getObservationTime(int observationIndex) {
+        return orthogonal ?
+                observationTimes[observationIndex % observationTimes.length] :
+                observationTimes[observationIndex];
+    }
+
+    /**
+     * @return the distinct observation times of all stations in millis, in
+     *         time order.  Not a copy, don't modify.
+     */
+    public long[] getTimes() {
+        return times;
+    }
+
+    /**
+     * @return true if observation variables are (station, time) with a time
+     *         coordinate shared by all stations.
+     */
+    public boolean isOrthogonal() {
+        return orthogonal;
+    }
+
+    /**
+     * @return the index into the shared time coordinate of the time nearest
+     *         to time, -1 if the coordinate is empty.
+     * @throws IllegalStateException if the layout isn't orthogonal.
+     */
+    public int findTimeIndex(long time) {
+        if (!orthogonal) {
+            throw new IllegalStateException("time coordinate isn't shared by stations");
+        }
+        int position = findNearest(orthogonalTimes, 0, orthogonalTimes.length, time);
+        return position < 0 || orthogonalTimeIndices == null ? position : orthogonalTimeIndices[position];
+    }
+
+    /**
+     * @return the observation index of the station's observation nearest to
+     *         time, -1 if the station has none.
+     */
+    public int findObservationIndex(int stationIndex, long time) {
+        if (orthogonal) {
+            int timeIndex = findTimeIndex(time);
+            return timeIndex < 0 ? -1 : stationIndex * observationTimes.length + timeIndex;
+        }
+        int position = findNearest(stationObservationTimes, stationObservationOffsets[stationIndex], stationObservationOffsets[stationIndex + 1], time);
+        return position < 0 || observationIndices == null ? position : observationIndices[position];
+    }
+
+    /**
+     * @return the position in [from, to) of the value nearest to value, the
+     *         earlier on a tie, -1 if the range is empty.
+     */
+    static int findNearest(long[] sorted, int from, int to, long value) {
+        if (from >= to) {
+            return -1;
+        }
+        int position = Arrays.binarySearch(sorted, from, to, value);
+        if (position >= 0) {
+            return position;
+        }
+        int insertion = -position - 1;
+        if (insertion == from) {
+            return from;
+        }
+        if (insertion == to) {
+            return to - 1;
+        }
+        return value - sorted[insertion - 1] <= sorted[insertion] - value ? insertion - 1 : insertion;
+    }
+
+    public static NetCDFStationIndex read(FeatureDataset featureDataset) throws IOException {
+        NetcdfFile netCDFFile = featureDataset.getNetcdfFile();
+
+        Variable stationIdVariable = findVariable(netCDFFile, NetCDFUtil.getStationIdVariable(featureDataset));
+        Variable timeVariable = findVariable(netCDFFile, NetCDFUtil.getObservationTimeVariable(featureDataset));
+        if (stationIdVariable == null || timeVariable == null) {
+            throw new IOException("NetCDF file doesn't contain station id and observation time variables");
+        }
+
+        String[] stationIds = readStrings(stationIdVariable);
+        int stationCount = stationIds.length;
+        Map<String, Integer> stationIndices = new HashMap<String, Integer>(stationCount * 2);
+        for (int stationIndex = 0; stationIndex < stationCount; ++stationIndex) {
+            stationIndices.put(stationIds[stationIndex], stationIndex);
+        }
+
+        Array timeArray = timeVariable.read();
+        long[] observationTimes = toMillis(timeVariable, timeArray);
+
+        Variable rowSizeVariable = null;
+        Variable parentIndexVariable = null;
+        for (Variable variable : getVariablesAll(netCDFFile)) {
+            if (variable.findAttributeIgnoreCase(SAMPLE_DIMENSION) != null ||
+                variable.findAttributeIgnoreCase(CF.RAGGED_ROWSIZE) != null) {
+                rowSizeVariable = variable;
+            } else if (variable.findAttributeIgnoreCase(INSTANCE_DIMENSION) != null ||
+                       variable.findAttributeIgnoreCase(CF.RAGGED_PARENTINDEX) != null) {
+                parentIndexVariable = variable;
+            }
+        }
+
+        int[] timeShape = timeArray.getShape();
+        boolean timeShared = rowSizeVariable == null && parentIndexVariable == null && timeShape.length == 1;
+        Dimension stationDimension = getStationDimension(stationIdVariable);
+        if (timeShared && isStationTimeLayout(netCDFFile, stationDimension, timeVariable.getDimension(0))) {
+            // orthogonal multidimensional, (station, time) observations with
+            // the time coordinate shared by all stations
+            long[] orthogonalTimes = observationTimes.clone();
+            int[] orthogonalTimeIndices = null;
+            if (!isSorted(observationTimes, 0, observationTimes.length)) {
+                orthogonalTimeIndices = new int[observationTimes.length];
+                for (int timeIndex = 0; timeIndex < orthogonalTimeIndices.length; ++timeIndex) {
+                    orthogonalTimeIndices[timeIndex] = timeIndex;
+                }
+                sortByTime(orthogonalTimeIndices, observationTimes, 0, orthogonalTimeIndices.length);
+                for (int position = 0; position < orthogonalTimeIndices.length; ++position) {
+                    orthogonalTimes[position] = observationTimes[orthogonalTimeIndices[position]];
+                }
+            }
+            return new NetCDFStationIndex(stationIndices, stationCount, observationTimes, orthogonalTimes, orthogonalTimeIndices);
+        }
+
+        int[] stationObservationOffsets = new int[stationCount + 1];
+        int[] observationIndices = null;
+        int rowCount = observationTimes.length;
+        int rowLength = 1;
+
+        if (timeShared && stationDimension != null && stationDimension.equals(timeVariable.getDimension(0))) {
+            // one observation per station, along the station dimension
+            for (int stationIndex = 0; stationIndex < stationCount; ++stationIndex) {
+                stationObservationOffsets[stationIndex + 1] = stationIndex + 1;
+            }
+        } else if (timeShared) {
+            // (time, station) observations, or (time) for a single station,
+            // by time row
+            int timeCount = observationTimes.length;
+            long[] timeRowObservationTimes = new long[timeCount * stationCount];
+            observationIndices = new int[timeRowObservationTimes.length];
+            for (int stationIndex = 0; stationIndex < stationCount; ++stationIndex) {
+                stationObservationOffsets[stationIndex + 1] = stationObservationOffsets[stationIndex] + timeCount;
+                for (int timeIndex = 0; timeIndex < timeCount; ++timeIndex) {
+                    int observationIndex = timeIndex * stationCount + stationIndex;
+                    timeRowObservationTimes[observationIndex] = observationTimes[timeIndex];
+                    observationIndices[stationObservationOffsets[stationIndex] + timeIndex] = observationIndex;
+                }
+            }
+            observationTimes = timeRowObservationTimes;
+            rowCount = timeCount;
+            rowLength = stationCount;
+        } else if (rowSizeVariable != null) {
+            // contiguous ragged, observations of a station are consecutive
+            Array rowSizeArray = rowSizeVariable.read();
+            for (int stationIndex = 0; stationIndex < stationCount; ++stationIndex) {
+                stationObservationOffsets[stationIndex + 1] = stationObservationOffsets[stationIndex] + rowSizeArray.getInt(stationIndex);
+            }
+        } else if (parentIndexVariable != null) {
+            // indexed ragged, group observations by station keeping the order
+            // they're stored in
+            Array parentIndexArray = parentIndexVariable.read();
+            int observationCount = (int) parentIndexArray.getSize();
+            int[] parentIndices = new int[observationCount];
+            for (int observationIndex = 0; observationIndex < observationCount; ++observationIndex) {
+                int parentIndex = parentIndexArray.getInt(observationIndex);
+                parentIndices[observationIndex] = parentIndex;
+                if (parentIndex >= 0 && parentIndex < stationCount) {
+                    ++stationObservationOffsets[parentIndex + 1];
+                }
+            }
+            for (int stationIndex = 0; stationIndex < stationCount; ++stationIndex) {
+                stationObservationOffsets[stationIndex + 1] += stationObservationOffsets[stationIndex];
+            }
+            observationIndices = new int[stationObservationOffsets[stationCount]];
+            int[] stationFill = new int[stationCount];
+            for (int observationIndex = 0; observationIndex < observationCount; ++observationIndex) {
+                int parentIndex = parentIndices[observationIndex];
+                if (parentIndex >= 0 && parentIndex < stationCount) {
+                    observationIndices[stationObservationOffsets[parentIndex] + stationFill[parentIndex]++] = observationIndex;
+                }
+            }
+        } else {
+            // multidimensional, (station, observation) time
+            int stationObservationCount = timeShape[timeShape.length - 1];
+            rowCount = stationCount;
+            rowLength = stationObservationCount;
+            for (int stationIndex = 0; stationIndex < stationCount; ++stationIndex) {
+                stationObservationOffsets[stationIndex + 1] = stationObservationOffsets[stationIndex] + stationObservationCount;
+            }
+        }
+
+        // order the observations of each station by time, observations are
+        // usually stored in time order already
+        for (int stationIndex = 0; stationIndex < stationCount; ++stationIndex) {
+            int from = stationObservationOffsets[stationIndex];
+            int to = stationObservationOffsets[stationIndex + 1];
+            boolean sorted = true;
+            for (int position = from + 1; position < to && sorted; ++position) {
+                sorted = observationTimes[observationIndices == null ? position - 1 : observationIndices[position - 1]] <=
+                         observationTimes[observationIndices == null ? position : observationIndices[position]];
+            }
+            if (!sorted) {
+                if (observationIndices == null) {
+                    observationIndices = new int[stationObservationOffsets[stationCount]];
+                    for (int position = 0; position < observationIndices.length; ++position) {
+                        observationIndices[position] = position;
+                    }
+                }
+                sortByTime(observationIndices, observationTimes, from, to);
+            }
+        }
+        long[] stationObservationTimes = new long[stationObservationOffsets[stationCount]];
+        for (int position = 0; position < stationObservationTimes.length; ++position) {
+            stationObservationTimes[position] = observationTimes[observationIndices == null ? position : observationIndices[position]];
+        }
+
+        return new NetCDFStationIndex(stationIndices, stationCount, rowCount, rowLength, stationObservationOffsets, observationIndices, stationObservationTimes, observationTimes);
+    }
+
+    private static long[] distinct(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int distinctCount = 0;
+        for (int index = 0; index < sorted.length; ++index) {
+            if (distinctCount == 0 || sorted[index] != sorted[distinctCount - 1]) {
+                sorted[distinctCount++] = sorted[index];
+            }
+        }
+        return Arrays.copyOf(sorted, distinctCount);
+    }
+
+    private static boolean isSorted(long[] values, int from, int to) {
+        for (int index = from + 1; index < to; ++index) {
+            if (values[index - 1] > values[index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sorts indices in [from, to) by the times they index, stable.
+     */
+    private static void sortByTime(int[] indices, final long[] times, int from, int to) {
+        Integer[] boxed = new Integer[to - from];
+        for (int index = from; index < to; ++index) {
+            boxed[index - from] = indices[index];
+        }
+        Arrays.sort(boxed, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer left, Integer right) {
+                long leftTime = times[left];
+                long rightTime = times[right];
+                return leftTime < rightTime ? -1 : leftTime > rightTime ? 1 : 0;
+            }
+        });
+        for (int index = from; index < to; ++index) {
+            indices[index] = boxed[index - from];
+        }
+    }
+
+    /**
+     * Reads the observations of all stations at timeIndex, the element index
+     * into the returned data is the station index.
+     *
+     * @return null if variable isn't a (station, time) observation variable.
+     */
+    public Array readTimeStep(Variable variable, int timeIndex) throws IOException {
+        int[] shape = variable.getShape();
+        if (!orthogonal || shape.length != 2 || shape[0] != stationCount || shape[1] != observationTimes.length) {
+            return null;
+        }
+        try {
+            return variable.read(new int[] { 0, timeIndex }, new int[] { shape[0], 1 });
+        } catch (InvalidRangeException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return the first dimension row of observation variable data holding
+     *         the observation.
+     */
+    public int getObservationRow(int observationIndex) {
+        return observationIndex / rowLength;
+    }
+
+    /**
+     * @return observations per row, the element index of an observation
+     *         into data read by rows from fromRow is
+     *         observationIndex - fromRow * rowLength.
+     */
+    public int getRowLength() {
+        return rowLength;
+    }
+
+    /**
+     * Reads rows [fromRow, toRow) of an observation variable.
+     *
+     * @return null if variable isn't an observation variable.
+     */
+    public Array readRows(Variable variable, int fromRow, int toRow) throws IOException {
+        int[] shape = variable.getShape();
+        if (shape.length == 0 || shape[0] != rowCount ||
+                (rowLength > 1 && (shape.length < 2 || shape[1] != rowLength))) {
+            return null;
+        }
+        int[] origin = new int[shape.length];
+        origin[0] = fromRow;
+        int[] sectionShape = shape.clone();
+        sectionShape[0] = toRow - fromRow;
+        try {
+            return variable.read(origin, sectionShape);
+        } catch (InvalidRangeException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return the station dimension, null for a single station with a scalar
+     *         station id.
+     */
+    private static Dimension getStationDimension(Variable stationIdVariable) {
+        int stationRank = stationIdVariable.getDataType() == DataType.CHAR ?
+                stationIdVariable.getRank() - 1 :
+                stationIdVariable.getRank();
+        return stationRank > 0 ? stationIdVariable.getDimension(0) : null;
+    }
+
+    /**
+     * @return true if there are observation variables that are
+     *         (station, time) and none that are (time, station).
+     */
+    private static boolean isStationTimeLayout(NetcdfFile netCDFFile, Dimension stationDimension, Dimension timeDimension) {
+        if (stationDimension == null || stationDimension.equals(timeDimension)) {
+            return false;
+        }
+        boolean stationTime = false;
+        for (Variable variable : getVariablesAll(netCDFFile)) {
+            if (variable.getRank() > 1) {
+                Dimension first = variable.getDimension(0);
+                Dimension second = variable.getDimension(1);
+                if (stationDimension.equals(first) && timeDimension.equals(second)) {
+                    stationTime = true;
+                } else if (timeDimension.equals(first) && stationDimension.equals(second)) {
+                    return false;
+                }
+            }
+        }
+        return stationTime;
+    }
+
+    static Variable findVariable(NetcdfFile netCDFFile, VariableSimpleIF variable) {
+        if (variable == null) {
+            return null;
+        }
+        Variable found = netCDFFile.findVariable(variable.getFullName());
+        return found == null && variable instanceof Variable ? (Variable)variable : found;
+    }
+
+    private static List<Variable> getVariablesAll(NetcdfFile netCDFFile) {
+        List<Variable> variables = new ArrayList<Variable>();
+        for (Variable variable : netCDFFile.getVariables()) {
+            variables.add(variable);
+            if (variable instanceof Structure) {
+                variables.addAll(((Structure)variable).getVariables());
+            }
+        }
+        return variables;
+    }
+
+    private static String[] readStrings(Variable variable) throws IOException {
+        Array array = variable.read();
+        if (array instanceof ArrayChar && array.getRank() < 2) {
+            return new String[] { ((ArrayChar)array).getString() }; // single station
+        } else if (array instanceof ArrayChar) {
+            int[] shape = array.getShape();
+            String[] strings = new String[shape[0]];
+            ArrayChar arrayChar = (ArrayChar)array;
+            for (int index = 0; index < strings.length; ++index) {
+                strings[index] = arrayChar.getString(index);
+            }
+            return strings;
+        } else {
+            String[] strings = new String[(int) array.getSize()];
+            for (int index = 0; index < strings.length; ++index) {
+                strings[index] = String.valueOf(array.getObject(index));
+            }
+            return strings;
+        }
+    }
+
+    private static long[] toMillis(Variable timeVariable, Array timeArray) throws IOException {
+        Attribute unitsAttribute = timeVariable.findAttributeIgnoreCase("units");
+        Attribute calendarAttribute = timeVariable.findAttributeIgnoreCase("calendar");
+        if (unitsAttribute == null || !unitsAttribute.isString()) {
+            throw new IOException("observation time variable " + timeVariable.getFullName() + " has no units");
+        }
+        CalendarDateUnit dateUnit = CalendarDateUnit.of(
+                calendarAttribute != null && calendarAttribute.isString() ? calendarAttribute.getStringValue() : null,
+                unitsAttribute.getStringValue());
+        long[] millis = new long[(int) timeArray.getSize()];
+        for (int index = 0; index < millis.length; ++index) {
+            millis[index] = dateUnit.makeCalendarDate(timeArray.getDouble(index)).getMillis();
+        }
+        return millis;
+    }
+}
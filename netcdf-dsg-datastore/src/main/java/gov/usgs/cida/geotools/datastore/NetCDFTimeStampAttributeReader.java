@@ -1,44 +1,29 @@
 package gov.usgs.cida.geotools.datastore;
 
 import java.io.IOException;
-import java.net.URL;
-import java.util.Formatter;
+import java.util.Date;
 import java.util.NoSuchElementException;
 import org.geotools.data.AttributeReader;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
-import ucar.nc2.constants.FeatureType;
-import ucar.nc2.ft.FeatureDataset;
-import ucar.nc2.ft.FeatureDatasetFactoryManager;
-import ucar.nc2.ft.PointFeature;
-import ucar.nc2.ft.StationTimeSeriesFeature;
-import ucar.nc2.ft.StationTimeSeriesFeatureCollection;
 
 /**
+ * Reads the distinct observation times of the NetCDF file from the store's
+ * {@link NetCDFStationIndex}, nothing is read from the file.
  *
  * @author tkunicki
  */
 public class NetCDFTimeStampAttributeReader implements AttributeReader {
     
-    private final FeatureDataset featureDataset;
     private final SimpleFeatureType featureType;
-    private final StationTimeSeriesFeatureCollection stationTimeSeriesFeatureCollection;
-    private final StationTimeSeriesFeature stationTimeSeriesFeature;
-    private PointFeature pointFeature;
+    private final long[] times;
     
+    private int timeIndex; // before next() called
     
-    NetCDFTimeStampAttributeReader(URL netCDFURL, SimpleFeatureType featureType) throws IOException {
+    NetCDFTimeStampAttributeReader(NetCDFStationIndex stationIndex, SimpleFeatureType featureType) throws IOException {
         this.featureType = featureType;
-        this.featureDataset = NetCDFUtil.acquireDataSet(netCDFURL);
-        
-        stationTimeSeriesFeatureCollection = NetCDFUtil.extractStationTimeSeriesFeatureCollection(featureDataset);
-        stationTimeSeriesFeatureCollection.resetIteration();
-        stationTimeSeriesFeature = (stationTimeSeriesFeatureCollection != null && stationTimeSeriesFeatureCollection.hasNext()) ?
-                stationTimeSeriesFeatureCollection.next() :
-                null;
-        if (stationTimeSeriesFeature == null) {
-            throw new IllegalStateException("NetCDF FeatureDataset doesn't contain StationTimeSeriesFeatureCollection");
-        }
+        this.times = stationIndex.getTimes();
+        this.timeIndex = -1;
     }
 
     @Override
@@ -53,24 +38,19 @@ public class NetCDFTimeStampAttributeReader implements AttributeReader {
 
     @Override
     public void close() throws IOException {
-        stationTimeSeriesFeature.finish();
-        stationTimeSeriesFeatureCollection.finish();
-        try {
-            featureDataset.close();
-        } catch (IOException e) {
-            // don't care
-        }
+        // nothing to do...
     }
 
     @Override
     public boolean hasNext() throws IOException {
-        return stationTimeSeriesFeature.hasNext();
+        return (timeIndex + 1) < times.length;
     }
 
     @Override
     public void next() throws IOException, IllegalArgumentException, NoSuchElementException {
-        pointFeature = stationTimeSeriesFeature.next();
-        if (pointFeature == null) {
+        if (hasNext()) {
+            ++timeIndex;
+        } else {
             throw new NoSuchElementException();
         }
     }
@@ -78,7 +58,7 @@ public class NetCDFTimeStampAttributeReader implements AttributeReader {
     @Override
     public Object read(int index) throws IOException, ArrayIndexOutOfBoundsException {
         if (index < 1) {
-            return pointFeature.getObservationTimeAsCalendarDate().toDate();
+            return new Date(times[timeIndex]);
         } else {
             throw new ArrayIndexOutOfBoundsException(index);
         }
@@ -192,10 +192,12 @@ public class NetCDFUtil {
     }
     
     public static FeatureDataset acquireDataSet(URL datasetURL) throws IOException {
-        return FeatureDatasetFactoryManager.wrap(
+        FeatureDataset featureDataset = FeatureDatasetFactoryManager.wrap(
                 FeatureType.STATION,
                 NetcdfDataset.acquireDataset(datasetURL.toString(), null),
                 null,
                 new Formatter(System.err));
+        NetCDFFileCache.getInstance().recordOpen();
+        return featureDataset;
     }
 }
@@ -0,0 +1,47 @@
+package gov.usgs.cida.geotools.datastore;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import ucar.nc2.ft.FeatureDataset;
+
+/**
+ *
+ * @author tkunicki
+ */
+public class NetCDFFeatureDatasetPoolTest {
+
+    public NetCDFFeatureDatasetPoolTest() {
+    }
+
+    @Test
+    public void testAcquireRelease() throws IOException {
+        NetCDFFeatureDatasetPool pool = new NetCDFFeatureDatasetPool(
+                new File("target/test-classes/pcm_b1_tmax-days_above_threshold,100.0,dsg.nc").toURI().toURL(), 1, NetCDFFeatureDatasetPool.DEFAULT_IDLE_MILLIS);
+        FeatureDataset first = pool.acquire();
+        FeatureDataset second = pool.acquire();
+        assertNotNull(first);
+        assertNotSame(first, second);
+        assertEquals(2, pool.getAcquiredCount());
+
+        pool.release(first);
+        pool.release(second); // closed, only one is kept idle
+        assertEquals(0, pool.getAcquiredCount());
+        assertEquals(1, pool.getIdleCount());
+
+        FeatureDataset reused = pool.acquire();
+        assertSame(first, reused);
+        assertEquals(0, pool.getIdleCount());
+
+        pool.dispose();
+        pool.release(reused); // closed, the pool is disposed
+        assertEquals(0, pool.getIdleCount());
+        try {
+            pool.acquire();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
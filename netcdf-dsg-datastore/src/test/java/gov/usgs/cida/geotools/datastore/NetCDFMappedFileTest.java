@@ -0,0 +1,154 @@
+package gov.usgs.cida.geotools.datastore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tkunicki
+ */
+public class NetCDFMappedFileTest {
+
+    public NetCDFMappedFileTest() {
+    }
+
+    @Test
+    public void testOpen() throws IOException {
+        File file = createNetCDF3File();
+        try {
+            NetCDFMappedFile mappedFile = NetCDFMappedFile.open(file.toURI().toURL());
+            assertNotNull(mappedFile);
+
+            NetCDFMappedFile.MappedVariable mean = mappedFile.findVariable("mean");
+            assertNotNull(mean);
+            for (int index = 0; index < 4; ++index) {
+                assertEquals(index + 0.5, mean.getDouble(index), 0);
+                assertEquals(index, mean.getLong(index));
+            }
+            NetCDFMappedFile.MappedVariable count = mappedFile.findVariable("count");
+            assertNotNull(count);
+            assertEquals(-3, count.getLong(3));
+
+            // missing values aren't converted, stores don't use NaNs
+            NetCDFMappedFile.MappedVariable missing = mappedFile.findVariable("missing");
+            assertNotNull(missing);
+            assertEquals(1, missing.getDouble(2), 0);
+
+            // netCDF-Java converts these
+            assertNull(mappedFile.findVariable("scaled"));
+            assertNull(mappedFile.findVariable("station_id"));
+            assertNull(mappedFile.findVariable("record"));
+
+            mappedFile.close();
+            try {
+                mean.getDouble(0);
+                fail();
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testOpenNetCDF4() throws IOException {
+        assertNull(NetCDFMappedFile.open(new File("target/test-classes/pcm_b1_tmax-days_above_threshold,100.0,dsg.nc").toURI().toURL()));
+    }
+
+    private static File createNetCDF3File() throws IOException {
+        int headerLength = writeHeader(new DataOutputStream(new ByteArrayOutputStream()), 0);
+        File file = File.createTempFile("mapped", ".nc");
+        DataOutputStream output = new DataOutputStream(new FileOutputStream(file));
+        try {
+            writeHeader(output, headerLength);
+            for (int index = 0; index < 4; ++index) {
+                output.writeFloat(index + 0.5f); // mean
+            }
+            for (int index = 0; index < 4; ++index) {
+                output.writeShort(-index); // count
+            }
+            for (int index = 0; index < 4; ++index) {
+                output.writeShort(index); // scaled
+            }
+            output.write("abcd".getBytes("UTF-8")); // station_id
+            for (int index = 0; index < 4; ++index) {
+                output.writeFloat(index == 2 ? 1 : index); // missing
+            }
+            output.writeInt(42); // record
+            output.writeInt(43);
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+
+    // classic format, fixed variables are stored after the header in order
+    private static int writeHeader(DataOutputStream output, int dataBegin) throws IOException {
+        output.write(new byte[] { 'C', 'D', 'F', 1 });
+        output.writeInt(2); // numrecs
+
+        output.writeInt(0x0A);
+        output.writeInt(3);
+        writeName(output, "obs");
+        output.writeInt(4);
+        writeName(output, "time");
+        output.writeInt(0); // record
+        writeName(output, "name_strlen");
+        output.writeInt(1);
+
+        output.writeInt(0x0C);
+        output.writeInt(1);
+        writeName(output, "title");
+        output.writeInt(2);
+        output.writeInt(3);
+        output.write("abc".getBytes("UTF-8"));
+        output.write(0);
+
+        output.writeInt(0x0B);
+        output.writeInt(6);
+        writeVariable(output, "mean", new int[] { 0 }, null, 5, 16, dataBegin);
+        writeVariable(output, "count", new int[] { 0 }, "units", 3, 8, dataBegin + 16);
+        writeVariable(output, "scaled", new int[] { 0 }, "scale_factor", 3, 8, dataBegin + 24);
+        writeVariable(output, "station_id", new int[] { 0, 2 }, null, 2, 4, dataBegin + 32);
+        writeVariable(output, "missing", new int[] { 0 }, "missing_value", 5, 16, dataBegin + 36);
+        writeVariable(output, "record", new int[] { 1 }, null, 4, 4, dataBegin + 52);
+        return output.size();
+    }
+
+    private static void writeVariable(DataOutputStream output, String name, int[] dimensionIds, String attributeName, int type, int vsize, int begin) throws IOException {
+        writeName(output, name);
+        output.writeInt(dimensionIds.length);
+        for (int dimensionId : dimensionIds) {
+            output.writeInt(dimensionId);
+        }
+        if (attributeName == null) {
+            output.writeInt(0);
+            output.writeInt(0);
+        } else {
+            output.writeInt(0x0C);
+            output.writeInt(1);
+            writeName(output, attributeName);
+            output.writeInt(5); // float
+            output.writeInt(1);
+            output.writeFloat(1);
+        }
+        output.writeInt(type);
+        output.writeInt(vsize);
+        output.writeInt(begin);
+    }
+
+    private static void writeName(DataOutputStream output, String name) throws IOException {
+        byte[] bytes = name.getBytes("UTF-8");
+        output.writeInt(bytes.length);
+        output.write(bytes);
+        for (int padding = (4 - bytes.length % 4) % 4; padding > 0; --padding) {
+            output.write(0);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package gov.usgs.cida.geotools.datastore;
+
+import static gov.usgs.cida.geotools.datastore.NetCDFStationIndexTest.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.geotools.data.AttributeReader;
+import org.geotools.feature.AttributeTypeBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.opengis.feature.simple.SimpleFeatureType;
+import ucar.nc2.ft.PointFeature;
+
+/**
+ *
+ * @author tkunicki
+ */
+public class NetCDFParallelAttributeReaderTest {
+
+    public NetCDFParallelAttributeReaderTest() {
+    }
+
+    @Test
+    public void testStationOrder() throws Exception {
+        File file = createOrthogonalFile();
+        NetCDFFeatureDatasetPool pool = new NetCDFFeatureDatasetPool(file.toURI().toURL());
+        try {
+            SimpleFeatureType featureType = createFeatureType(new LatitudeExtractor());
+            Map<Object, List<Object>> expected = readByStation(new NetCDFAttributeReader(pool, featureType));
+            assertEquals(ORTHOGONAL_STATION_IDS.length, expected.size());
+            // a queue of one row makes the workers take turns
+            Map<Object, List<Object>> actual = readByStation(new NetCDFParallelAttributeReader(pool, featureType, 2, 1));
+            assertEquals(expected, actual);
+            waitForRelease(pool);
+        } finally {
+            pool.dispose();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        File file = createOrthogonalFile();
+        NetCDFFeatureDatasetPool pool = new NetCDFFeatureDatasetPool(file.toURI().toURL());
+        try {
+            NetCDFParallelAttributeReader reader = new NetCDFParallelAttributeReader(pool, createFeatureType(new LatitudeExtractor()), 2, 1);
+            assertTrue(reader.hasNext());
+            reader.next();
+            assertNotNull(reader.read(0));
+            reader.close(); // workers are blocked on the full queue
+            waitForRelease(pool);
+        } finally {
+            pool.dispose();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testWorkerFailure() throws Exception {
+        File file = createOrthogonalFile();
+        NetCDFFeatureDatasetPool pool = new NetCDFFeatureDatasetPool(file.toURI().toURL());
+        try {
+            NetCDFParallelAttributeReader reader = new NetCDFParallelAttributeReader(pool, createFeatureType(new FailingExtractor()), 2, 1);
+            try {
+                while (reader.hasNext()) {
+                    reader.next();
+                }
+                fail();
+            } catch (IOException e) {
+                assertEquals(FailingExtractor.MESSAGE, e.getMessage());
+            } finally {
+                reader.close();
+            }
+            waitForRelease(pool);
+        } finally {
+            pool.dispose();
+            file.delete();
+        }
+    }
+
+    // latitude identifies the station, then the time
+    private static SimpleFeatureType createFeatureType(NetCDFPointFeatureExtractor<?> stationExtractor) {
+        AttributeTypeBuilder atBuilder = new AttributeTypeBuilder();
+        SimpleFeatureTypeBuilder sftBuilder = new SimpleFeatureTypeBuilder();
+        sftBuilder.setName("test");
+        sftBuilder.add(atBuilder.
+                userData(NetCDFShapefileDataStore.EXTRACTOR_KEY, stationExtractor).
+                binding(stationExtractor.getBinding()).
+                buildDescriptor("station"));
+        sftBuilder.add(atBuilder.
+                userData(NetCDFShapefileDataStore.EXTRACTOR_KEY, new NetCDFPointFeatureExtractor.TimeStamp()).
+                binding(Date.class).
+                buildDescriptor("time"));
+        return sftBuilder.buildFeatureType();
+    }
+
+    private static Map<Object, List<Object>> readByStation(AttributeReader reader) throws IOException {
+        Map<Object, List<Object>> times = new HashMap<Object, List<Object>>();
+        try {
+            while (reader.hasNext()) {
+                reader.next();
+                Object station = reader.read(0);
+                List<Object> stationTimes = times.get(station);
+                if (stationTimes == null) {
+                    stationTimes = new ArrayList<Object>();
+                    times.put(station, stationTimes);
+                }
+                stationTimes.add(reader.read(1));
+            }
+        } finally {
+            reader.close();
+        }
+        return times;
+    }
+
+    // workers release their datasets after the reader is done with them
+    private static void waitForRelease(NetCDFFeatureDatasetPool pool) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while (pool.getAcquiredCount() > 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, pool.getAcquiredCount());
+    }
+
+    private static class LatitudeExtractor extends NetCDFPointFeatureExtractor<Double> {
+        @Override public Class<Double> getBinding() { return Double.class; }
+        @Override public Double extract(PointFeature pointFeature) throws IOException {
+            return pointFeature.getLocation().getLatitude();
+        }
+    }
+
+    private static class FailingExtractor extends NetCDFPointFeatureExtractor<Double> {
+        private final static String MESSAGE = "extract failed";
+        @Override public Class<Double> getBinding() { return Double.class; }
+        @Override public Double extract(PointFeature pointFeature) throws IOException {
+            throw new IOException(MESSAGE);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package gov.usgs.cida.geotools.datastore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Formatter;
+import java.util.List;
+import org.junit.Ignore;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.ma2.StructureData;
+import ucar.nc2.Variable;
+import ucar.nc2.VariableSimpleIF;
+import ucar.nc2.constants.FeatureType;
+import ucar.nc2.ft.FeatureDataset;
+import ucar.nc2.ft.FeatureDatasetFactoryManager;
+import ucar.nc2.ft.PointFeature;
+import ucar.nc2.ft.PointFeatureCollection;
+import ucar.nc2.time.CalendarDateRange;
+
+/**
+ *
+ * @author tkunicki
+ */
+public class NetCDFPointFeatureExtractorTest {
+
+    public NetCDFPointFeatureExtractorTest() {
+    }
+
+    @Test
+    public void testExtract() throws IOException {
+        FeatureDataset fd = null;
+        try {
+            fd = openFeatureDataSet();
+            List<NetCDFPointFeatureExtractor.Scalar<?>> extractors = createExtractors(fd);
+            assertFalse(extractors.isEmpty());
+            PointFeatureCollection pointFeatureCollection = flatten(fd);
+            try {
+                int pointFeatureCount = 0;
+                while (pointFeatureCollection.hasNext()) {
+                    PointFeature pointFeature = pointFeatureCollection.next();
+                    StructureData data = pointFeature.getData();
+                    for (NetCDFPointFeatureExtractor.Scalar<?> extractor : extractors) {
+                        Object value = extractor.extract(pointFeature);
+                        assertTrue(extractor.getBinding().isInstance(value));
+                        // same as the lookup by name
+                        if (value instanceof Number) {
+                            assertEquals(data.getScalarDouble(extractor.variableName), ((Number) value).doubleValue(), 0);
+                        } else {
+                            assertEquals(data.getScalarString(extractor.variableName), value);
+                        }
+                    }
+                    ++pointFeatureCount;
+                }
+                assertTrue(pointFeatureCount > 0);
+            } finally {
+                pointFeatureCollection.finish();
+            }
+        } finally {
+            if (fd != null) {
+                fd.close();
+            }
+        }
+    }
+
+    @Test
+    public void testExtractBoolean() {
+        NetCDFPointFeatureExtractor<?> extractor = NetCDFPointFeatureExtractor.generatePointFeatureExtractor(createVariable(DataType.BOOLEAN));
+        assertEquals(Boolean.class, extractor.getBinding());
+        Array array = Array.factory(DataType.BOOLEAN, new int[] { 2, 2 }, new boolean[] { true, false, false, true });
+        assertEquals(Boolean.TRUE, extractor.extract(array, 0));
+        assertEquals(Boolean.FALSE, extractor.extract(array, 2));
+        assertEquals(Boolean.TRUE, extractor.extract(array, 3));
+    }
+
+    @Test
+    public void testExtractChar() {
+        NetCDFPointFeatureExtractor<?> extractor = NetCDFPointFeatureExtractor.generatePointFeatureExtractor(createVariable(DataType.CHAR));
+        assertEquals(String.class, extractor.getBinding());
+
+        // a char per observation
+        Array chars = Array.factory(DataType.CHAR, new int[] { 3 }, "xyz".toCharArray());
+        assertEquals("y", extractor.extract(chars, 1));
+
+        // (observation, strlen), ragged layouts
+        Array raggedStrings = Array.factory(DataType.CHAR, new int[] { 2, 4 }, "ab\0\0cdef".toCharArray());
+        assertEquals("ab", extractor.extract(raggedStrings, 0));
+        assertEquals("cdef", extractor.extract(raggedStrings, 1));
+
+        // (station, observation, strlen), multidimensional layouts, indexed
+        // by station * observationsPerStation + observation
+        Array multidimensionalStrings = Array.factory(DataType.CHAR, new int[] { 2, 3, 2 }, "a0a1a2b0b1b\0".toCharArray());
+        assertEquals("a0", extractor.extract(multidimensionalStrings, 0));
+        assertEquals("a2", extractor.extract(multidimensionalStrings, 2));
+        assertEquals("b0", extractor.extract(multidimensionalStrings, 3));
+        assertEquals("b", extractor.extract(multidimensionalStrings, 5));
+
+        NetCDFPointFeatureExtractor<?> stringExtractor = NetCDFPointFeatureExtractor.generatePointFeatureExtractor(createVariable(DataType.STRING));
+        Array strings = Array.factory(DataType.STRING, new int[] { 2 }, new String[] { "first", "second" });
+        assertEquals("second", stringExtractor.extract(strings, 1));
+    }
+
+    @Test
+    @Ignore
+    public void testExtractBenchmark() throws IOException {
+        FeatureDataset fd = null;
+        try {
+            fd = openFeatureDataSet();
+            List<NetCDFPointFeatureExtractor.Scalar<?>> extractors = createExtractors(fd);
+            List<StructureData> dataList = new ArrayList<StructureData>();
+            List<PointFeature> pointFeatures = new ArrayList<PointFeature>();
+            PointFeatureCollection pointFeatureCollection = flatten(fd);
+            try {
+                while (pointFeatureCollection.hasNext()) {
+                    PointFeature pointFeature = pointFeatureCollection.next();
+                    dataList.add(pointFeature.getData());
+                    pointFeatures.add(pointFeature);
+                }
+            } finally {
+                pointFeatureCollection.finish();
+            }
+            int valueCount = dataList.size() * extractors.size();
+            for (int iteration = 0; iteration < 20; ++iteration) {
+                double sum = 0;
+                long start = System.nanoTime();
+                for (StructureData data : dataList) {
+                    for (NetCDFPointFeatureExtractor.Scalar<?> extractor : extractors) {
+                        sum += data.getScalarDouble(extractor.variableName);
+                    }
+                }
+                long nameElapsed = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (PointFeature pointFeature : pointFeatures) {
+                    for (NetCDFPointFeatureExtractor.Scalar<?> extractor : extractors) {
+                        Object value = extractor.extract(pointFeature);
+                        if (value instanceof Number) {
+                            sum -= ((Number) value).doubleValue();
+                        }
+                    }
+                }
+                long memberElapsed = System.nanoTime() - start;
+                System.out.println(String.format("iteration %d: by name %.1f ns/value, by member %.1f ns/value (%f)",
+                        iteration, (double) nameElapsed / valueCount, (double) memberElapsed / valueCount, sum));
+            }
+        } finally {
+            if (fd != null) {
+                fd.close();
+            }
+        }
+    }
+
+    // numeric observation variables, the time and station id aren't members
+    // of the observation data in every layout
+    private List<NetCDFPointFeatureExtractor.Scalar<?>> createExtractors(FeatureDataset fd) throws IOException {
+        List<NetCDFPointFeatureExtractor.Scalar<?>> extractors = new ArrayList<NetCDFPointFeatureExtractor.Scalar<?>>();
+        for (VariableSimpleIF variable : NetCDFUtil.getObservationVariables(fd)) {
+            if (variable.getDataType().isNumeric() &&
+                    !NetCDFUtil.isObservationTimeVariable(variable) &&
+                    !NetCDFUtil.isStationIdVariable(variable)) {
+                extractors.add((NetCDFPointFeatureExtractor.Scalar<?>) NetCDFPointFeatureExtractor.generatePointFeatureExtractor(variable));
+            }
+        }
+        return extractors;
+    }
+
+    private static VariableSimpleIF createVariable(DataType dataType) {
+        Variable variable = new Variable(null, null, null, "test");
+        variable.setDataType(dataType);
+        return variable;
+    }
+
+    private PointFeatureCollection flatten(FeatureDataset fd) throws IOException {
+        return NetCDFUtil.extractStationTimeSeriesFeatureCollection(fd).flatten(null, (CalendarDateRange) null);
+    }
+
+    private FeatureDataset openFeatureDataSet() throws IOException {
+        return FeatureDatasetFactoryManager.open(
+                    FeatureType.ANY,
+                    "target/test-classes/pcm_b1_tmax-days_above_threshold,100.0,dsg.nc",
+                    null,
+                    new Formatter(System.err));
+    }
+}
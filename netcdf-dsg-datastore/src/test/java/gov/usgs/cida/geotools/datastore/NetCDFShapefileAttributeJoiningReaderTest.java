@@ -0,0 +1,187 @@
+package gov.usgs.cida.geotools.datastore;
+
+import static gov.usgs.cida.geotools.datastore.NetCDFStationIndexTest.*;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.geotools.data.shapefile.ShapefileAttributeReader;
+import org.geotools.feature.AttributeTypeBuilder;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.opengis.feature.type.AttributeDescriptor;
+import ucar.nc2.ft.FeatureDataset;
+
+/**
+ *
+ * @author tkunicki
+ */
+public class NetCDFShapefileAttributeJoiningReaderTest {
+
+    public NetCDFShapefileAttributeJoiningReaderTest() {
+    }
+
+    @Test
+    public void testJoinTimeStep() throws Exception {
+        File file = createOrthogonalFile();
+        NetCDFFeatureDatasetPool pool = new NetCDFFeatureDatasetPool(file.toURI().toURL());
+        try {
+            FeatureDataset fd = pool.acquire();
+            List<AttributeDescriptor> attributeDescriptors;
+            NetCDFStationIndex stationIndex;
+            try {
+                stationIndex = NetCDFStationIndex.read(fd);
+                attributeDescriptors = createAttributeDescriptors(fd);
+            } finally {
+                pool.release(fd);
+            }
+            assertTrue(stationIndex.isOrthogonal());
+
+            String[] joinValues = new String[] { "C", "X", "A", "B" };
+            for (int day = 0; day < ORTHOGONAL_DAYS.length; ++day) {
+                // time step sections, indexed by station
+                NetCDFShapefileAttributeJoiningReader reader = new NetCDFShapefileAttributeJoiningReader(
+                        new JoinValueAttributeReader(attributeDescriptors, joinValues), pool, stationIndex, 0, new Date(toMillis(day)));
+                try {
+                    for (String joinValue : joinValues) {
+                        assertTrue(reader.hasNext());
+                        reader.next();
+                        assertEquals(joinValue, reader.read(0));
+                        int station = stationIndex.getStationIndex(joinValue);
+                        if (station < 0) {
+                            assertNull(reader.read(1));
+                            assertNull(reader.read(2));
+                        } else {
+                            assertEquals(new Date(toMillis(day)), reader.read(1));
+                            assertEquals(getOrthogonalValue(station, day), (Float) reader.read(2), 0);
+                        }
+                    }
+                    assertFalse(reader.hasNext());
+                } finally {
+                    reader.close();
+                }
+            }
+
+            // no time step, the first observation of each station
+            NetCDFShapefileAttributeJoiningReader reader = new NetCDFShapefileAttributeJoiningReader(
+                    new JoinValueAttributeReader(attributeDescriptors, new String[] { "B" }), pool, stationIndex, 0);
+            try {
+                reader.next();
+                assertEquals(new Date(toMillis(0)), reader.read(1));
+                assertEquals(getOrthogonalValue(stationIndex.getStationIndex("B"), 0), (Float) reader.read(2), 0);
+            } finally {
+                reader.close();
+            }
+            assertEquals(0, pool.getAcquiredCount());
+        } finally {
+            pool.dispose();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testJoinStationSubset() throws Exception {
+        File file = createOrthogonalFile();
+        NetCDFFeatureDatasetPool pool = new NetCDFFeatureDatasetPool(file.toURI().toURL());
+        try {
+            FeatureDataset fd = pool.acquire();
+            List<AttributeDescriptor> attributeDescriptors;
+            NetCDFStationIndex stationIndex;
+            try {
+                stationIndex = NetCDFStationIndex.read(fd);
+                attributeDescriptors = createAttributeDescriptors(fd);
+            } finally {
+                pool.release(fd);
+            }
+
+            // records outside the subset aren't joined, nothing is read
+            int[] stationSubset = new int[] { stationIndex.getStationIndex("A") };
+            NetCDFShapefileAttributeJoiningReader reader = new NetCDFShapefileAttributeJoiningReader(
+                    new JoinValueAttributeReader(attributeDescriptors, new String[] { "B", "C" }), pool, stationIndex, 0, null, stationSubset);
+            try {
+                while (reader.hasNext()) {
+                    reader.next();
+                    assertNull(reader.read(1));
+                    assertNull(reader.read(2));
+                }
+                assertEquals(0, reader.getReadCount());
+            } finally {
+                reader.close();
+            }
+
+            reader = new NetCDFShapefileAttributeJoiningReader(
+                    new JoinValueAttributeReader(attributeDescriptors, new String[] { "B", "A" }), pool, stationIndex, 0, null, stationSubset);
+            try {
+                reader.next();
+                assertNull(reader.read(2));
+                assertEquals(0, reader.getReadCount());
+                reader.next();
+                assertEquals(new Date(toMillis(0)), reader.read(1));
+                assertEquals(getOrthogonalValue(stationIndex.getStationIndex("A"), 0), (Float) reader.read(2), 0);
+                assertEquals(1, reader.getReadCount());
+            } finally {
+                reader.close();
+            }
+            assertEquals(0, pool.getAcquiredCount());
+        } finally {
+            pool.dispose();
+            file.delete();
+        }
+    }
+
+    // station id, time then tmax
+    private static List<AttributeDescriptor> createAttributeDescriptors(FeatureDataset fd) {
+        List<AttributeDescriptor> attributeDescriptors = new ArrayList<AttributeDescriptor>();
+        AttributeTypeBuilder atBuilder = new AttributeTypeBuilder();
+        attributeDescriptors.add(atBuilder.binding(String.class).buildDescriptor("station_id"));
+        attributeDescriptors.add(atBuilder.
+                userData(NetCDFShapefileDataStore.VARIABLE_KEY, fd.getNetcdfFile().findVariable("time")).
+                userData(NetCDFShapefileDataStore.EXTRACTOR_KEY, new NetCDFPointFeatureExtractor.TimeStamp()).
+                binding(Date.class).
+                buildDescriptor("time"));
+        attributeDescriptors.add(atBuilder.
+                userData(NetCDFShapefileDataStore.VARIABLE_KEY, fd.getNetcdfFile().findVariable("tmax")).
+                userData(NetCDFShapefileDataStore.EXTRACTOR_KEY, new NetCDFPointFeatureExtractor.ScalarFloat("tmax")).
+                binding(Float.class).
+                buildDescriptor("tmax"));
+        return attributeDescriptors;
+    }
+
+    /**
+     * Stands in for the shapefile, only the join attribute (index 0) is read.
+     */
+    private static class JoinValueAttributeReader extends ShapefileAttributeReader {
+
+        private final String[] joinValues;
+        private int recordIndex = -1;
+
+        JoinValueAttributeReader(List<AttributeDescriptor> attributeDescriptors, String[] joinValues) {
+            super(attributeDescriptors, null, null);
+            this.joinValues = joinValues;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return recordIndex + 1 < joinValues.length;
+        }
+
+        @Override
+        public void next() {
+            ++recordIndex;
+        }
+
+        @Override
+        public Object read(int attributeIndex) {
+            return joinValues[recordIndex];
+        }
+
+        @Override
+        public int getRecordNumber() {
+            return recordIndex + 1;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package gov.usgs.cida.geotools.datastore;
+
+import java.io.File;
+import java.io.IOException;
+import org.geotools.data.Query;
+import org.geotools.factory.CommonFactoryFinder;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.opengis.filter.FilterFactory;
+
+/**
+ *
+ * @author tkunicki
+ */
+public class NetCDFShapefileDataStoreTest {
+
+    public NetCDFShapefileDataStoreTest() {
+    }
+
+    @Test
+    public void testReadStationSubset() throws IOException {
+        NetCDFShapefileDataStore store = new NetCDFShapefileDataStore(
+                null,
+                new File("target/test-classes/pcm_b1_tmax-days_above_threshold,100.0,dsg.nc").toURI().toURL(),
+                new File("target/test-classes/NCA_Regions.shp").toURI().toURL(),
+                "NCA_Region");
+        try {
+            String typeName = store.getTypeNames()[0];
+            String geometryName = store.getSchema().getGeometryDescriptor().getLocalName();
+            FilterFactory ff = CommonFactoryFinder.getFilterFactory(null);
+            int northeast = store.getStationIndex().getStationIndex("Northeast");
+            assertTrue(northeast > -1);
+
+            // coastal Maine, only the Northeast region
+            int[] stationSubset = store.readStationSubset(new Query(typeName, ff.bbox(geometryName, -70, 42, -68, 45, null)));
+            assertArrayEquals(new int[] { northeast }, stationSubset);
+
+            // the conterminous US, every region
+            stationSubset = store.readStationSubset(new Query(typeName, ff.bbox(geometryName, -130, 20, -60, 50, null)));
+            assertTrue(stationSubset == null || stationSubset.length > 1);
+
+            // the Gulf of Guinea, no region
+            stationSubset = store.readStationSubset(new Query(typeName, ff.bbox(geometryName, 0, 0, 1, 1, null)));
+            assertEquals(0, stationSubset.length);
+        } finally {
+            store.dispose();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package gov.usgs.cida.geotools.datastore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Formatter;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import ucar.ma2.Array;
+import ucar.ma2.ArrayChar;
+import ucar.ma2.DataType;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFileWriteable;
+import ucar.nc2.Variable;
+import ucar.nc2.constants.FeatureType;
+import ucar.nc2.ft.FeatureDataset;
+import ucar.nc2.ft.FeatureDatasetFactoryManager;
+
+/**
+ *
+ * @author tkunicki
+ */
+public class NetCDFStationIndexTest {
+
+    public NetCDFStationIndexTest() {
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        FeatureDataset fd = null;
+        try {
+            fd = openFeatureDataSet();
+            NetCDFStationIndex stationIndex = NetCDFStationIndex.read(fd);
+            assertTrue(stationIndex.getStationCount() > 0);
+            assertEquals(-1, stationIndex.getStationIndex("Atlantis"));
+
+            int midwest = stationIndex.getStationIndex("Midwest");
+            assertTrue(midwest > -1);
+            int observationCount = stationIndex.getObservationCount(midwest);
+            assertTrue(observationCount > 0);
+            long lastTime = Long.MIN_VALUE;
+            int lastObservationIndex = -1;
+            for (int stationObservationIndex = 0; stationObservationIndex < observationCount; ++stationObservationIndex) {
+                int observationIndex = stationIndex.getObservationIndex(midwest, stationObservationIndex);
+                long time = stationIndex.getObservationTime(observationIndex);
+                assertTrue(time > lastTime);
+                assertEquals(observationIndex, stationIndex.findObservationIndex(midwest, time));
+                lastTime = time;
+                lastObservationIndex = observationIndex;
+            }
+            long[] times = stationIndex.getTimes();
+            for (int timeIndex = 1; timeIndex < times.length; ++timeIndex) {
+                assertTrue(times[timeIndex - 1] < times[timeIndex]);
+            }
+            assertTrue(Arrays.binarySearch(times, lastTime) > -1);
+
+            // nearest
+            assertEquals(lastObservationIndex, stationIndex.findObservationIndex(midwest, lastTime + 1));
+            assertEquals(stationIndex.getObservationIndex(midwest, 0),
+                    stationIndex.findObservationIndex(midwest, Long.MIN_VALUE));
+
+            // rows, observations for ragged layouts
+            assertEquals(1, stationIndex.getRowLength());
+            Variable timeVariable = NetCDFStationIndex.findVariable(fd.getNetcdfFile(), NetCDFUtil.getObservationTimeVariable(fd));
+            int row = stationIndex.getObservationRow(lastObservationIndex);
+            Array rowArray = stationIndex.readRows(timeVariable, row, row + 1);
+            assertEquals(1, rowArray.getSize());
+            assertEquals(timeVariable.read().getDouble(lastObservationIndex), rowArray.getDouble(0), 0);
+
+            // ragged, no shared time coordinate to read time step sections with
+            assertFalse(stationIndex.isOrthogonal());
+            try {
+                stationIndex.findTimeIndex(lastTime);
+                fail();
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        } finally {
+            if (fd != null) {
+                fd.close();
+            }
+        }
+    }
+
+    @Test
+    public void testReadOrthogonal() throws IOException {
+        File file = createOrthogonalFile();
+        FeatureDataset fd = null;
+        try {
+            fd = openFeatureDataSet(file.getPath());
+            NetCDFStationIndex stationIndex = NetCDFStationIndex.read(fd);
+            assertTrue(stationIndex.isOrthogonal());
+            assertEquals(ORTHOGONAL_STATION_IDS.length, stationIndex.getStationCount());
+            assertEquals(ORTHOGONAL_DAYS.length, stationIndex.getRowLength());
+
+            long[] times = stationIndex.getTimes();
+            assertEquals(ORTHOGONAL_DAYS.length, times.length);
+            for (int timeIndex = 0; timeIndex < times.length; ++timeIndex) {
+                assertEquals(toMillis(timeIndex), times[timeIndex]);
+            }
+
+            // the time coordinate isn't in time order
+            for (int timeIndex = 0; timeIndex < ORTHOGONAL_DAYS.length; ++timeIndex) {
+                assertEquals(timeIndex, stationIndex.findTimeIndex(toMillis(ORTHOGONAL_DAYS[timeIndex])));
+            }
+            assertEquals(0, stationIndex.findTimeIndex(toMillis(2) + 1)); // nearest, day 2
+            assertEquals(3, stationIndex.findTimeIndex(Long.MIN_VALUE)); // day 0
+
+            int station = stationIndex.getStationIndex("B");
+            assertEquals(4, stationIndex.getObservationCount(station));
+            int firstObservationIndex = stationIndex.getObservationIndex(station, 0);
+            assertEquals(station * ORTHOGONAL_DAYS.length + 3, firstObservationIndex);
+            assertEquals(toMillis(0), stationIndex.getObservationTime(firstObservationIndex));
+            assertEquals(firstObservationIndex, stationIndex.findObservationIndex(station, toMillis(0)));
+
+            Variable tmax = fd.getNetcdfFile().findVariable("tmax");
+            int timeIndex = stationIndex.findTimeIndex(toMillis(1));
+            Array timeStepArray = stationIndex.readTimeStep(tmax, timeIndex);
+            assertEquals(ORTHOGONAL_STATION_IDS.length, timeStepArray.getSize());
+            for (int index = 0; index < ORTHOGONAL_STATION_IDS.length; ++index) {
+                assertEquals(getOrthogonalValue(index, 1), timeStepArray.getFloat(index), 0);
+            }
+            Array rowArray = stationIndex.readRows(tmax, station, station + 1);
+            assertEquals(ORTHOGONAL_DAYS.length, rowArray.getSize());
+            assertEquals(getOrthogonalValue(station, 0), rowArray.getFloat(firstObservationIndex - station * stationIndex.getRowLength()), 0);
+
+            // not an observation variable
+            assertNull(stationIndex.readTimeStep(fd.getNetcdfFile().findVariable("lat"), timeIndex));
+        } finally {
+            if (fd != null) {
+                fd.close();
+            }
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testFindNearest() {
+        long[] sorted = new long[] { 0, 10, 20, 20, 40 };
+        assertEquals(-1, NetCDFStationIndex.findNearest(sorted, 2, 2, 20));
+        assertEquals(0, NetCDFStationIndex.findNearest(sorted, 0, 5, -5));
+        assertEquals(0, NetCDFStationIndex.findNearest(sorted, 0, 5, 5)); // tie, earlier
+        assertEquals(1, NetCDFStationIndex.findNearest(sorted, 0, 5, 6));
+        assertEquals(20, sorted[NetCDFStationIndex.findNearest(sorted, 0, 5, 20)]);
+        assertEquals(20, sorted[NetCDFStationIndex.findNearest(sorted, 0, 5, 29)]);
+        assertEquals(4, NetCDFStationIndex.findNearest(sorted, 0, 5, 31));
+        assertEquals(4, NetCDFStationIndex.findNearest(sorted, 0, 5, 100));
+        // within range only
+        assertEquals(1, NetCDFStationIndex.findNearest(sorted, 1, 3, 0));
+        assertEquals(2, NetCDFStationIndex.findNearest(sorted, 1, 3, 100));
+    }
+
+    private FeatureDataset openFeatureDataSet() throws IOException {
+        return openFeatureDataSet("target/test-classes/pcm_b1_tmax-days_above_threshold,100.0,dsg.nc");
+    }
+
+    static FeatureDataset openFeatureDataSet(String location) throws IOException {
+        return FeatureDatasetFactoryManager.open(
+                    FeatureType.ANY,
+                    location,
+                    null,
+                    new Formatter(System.err));
+    }
+
+    final static String[] ORTHOGONAL_STATION_IDS = new String[] { "A", "B", "C" };
+    // days since 2000-01-01 of the time coordinate, not in time order
+    final static int[] ORTHOGONAL_DAYS = new int[] { 2, 0, 3, 1 };
+
+    static long toMillis(int day) {
+        return 946684800000L + day * 86400000L;
+    }
+
+    static float getOrthogonalValue(int stationIndex, int day) {
+        return stationIndex * 10 + day;
+    }
+
+    /**
+     * Writes a CF-1.6 timeSeries file with a (station, time) tmax variable
+     * on a time coordinate shared by all stations.
+     */
+    static File createOrthogonalFile() throws IOException {
+        File file = File.createTempFile("orthogonal", ".nc");
+        NetcdfFileWriteable writeable = NetcdfFileWriteable.createNew(file.getPath(), false);
+        try {
+            Dimension stationDimension = writeable.addDimension("station", ORTHOGONAL_STATION_IDS.length);
+            Dimension timeDimension = writeable.addDimension("time", ORTHOGONAL_DAYS.length);
+            Dimension nameDimension = writeable.addDimension("name_strlen", 4);
+            writeable.addGlobalAttribute("Conventions", "CF-1.6");
+            writeable.addGlobalAttribute("featureType", "timeSeries");
+
+            writeable.addVariable("station_id", DataType.CHAR, new Dimension[] { stationDimension, nameDimension });
+            writeable.addVariableAttribute("station_id", "cf_role", "timeseries_id");
+            writeable.addVariable("lat", DataType.FLOAT, new Dimension[] { stationDimension });
+            writeable.addVariableAttribute("lat", "standard_name", "latitude");
+            writeable.addVariableAttribute("lat", "units", "degrees_north");
+            writeable.addVariable("lon", DataType.FLOAT, new Dimension[] { stationDimension });
+            writeable.addVariableAttribute("lon", "standard_name", "longitude");
+            writeable.addVariableAttribute("lon", "units", "degrees_east");
+            writeable.addVariable("time", DataType.INT, new Dimension[] { timeDimension });
+            writeable.addVariableAttribute("time", "standard_name", "time");
+            writeable.addVariableAttribute("time", "units", "days since 2000-01-01");
+            writeable.addVariable("tmax", DataType.FLOAT, new Dimension[] { stationDimension, timeDimension });
+            writeable.addVariableAttribute("tmax", "coordinates", "time lat lon");
+            writeable.create();
+
+            int stationCount = ORTHOGONAL_STATION_IDS.length;
+            int timeCount = ORTHOGONAL_DAYS.length;
+            ArrayChar.D2 stationIds = new ArrayChar.D2(stationCount, 4);
+            float[] coordinates = new float[stationCount];
+            float[] values = new float[stationCount * timeCount];
+            for (int stationIndex = 0; stationIndex < stationCount; ++stationIndex) {
+                stationIds.setString(stationIndex, ORTHOGONAL_STATION_IDS[stationIndex]);
+                coordinates[stationIndex] = 40 + stationIndex;
+                for (int timeIndex = 0; timeIndex < timeCount; ++timeIndex) {
+                    values[stationIndex * timeCount + timeIndex] = getOrthogonalValue(stationIndex, ORTHOGONAL_DAYS[timeIndex]);
+                }
+            }
+            writeable.write("station_id", stationIds);
+            writeable.write("lat", Array.factory(coordinates));
+            writeable.write("lon", Array.factory(coordinates));
+            writeable.write("time", Array.factory(ORTHOGONAL_DAYS));
+            writeable.write("tmax", Array.factory(DataType.FLOAT, new int[] { stationCount, timeCount }, values));
+        } catch (InvalidRangeException e) {
+            throw new IOException(e);
+        } finally {
+            writeable.close();
+        }
+        return file;
+    }
+}
@@ -1,41 +1,47 @@
 package gov.usgs.cida.geotools.datastore;
 
 import gov.usgs.cida.prms.PRMSAnimationFileMetaData;
-import gov.usgs.cida.prms.PRMSAnimationRecord;
-import gov.usgs.cida.prms.PRMSAnimationRecordBuffer;
+import gov.usgs.cida.prms.PRMSAnimationHRUIndex;
+import gov.usgs.cida.prms.PRMSAnimationRecordStream;
 import java.io.IOException;
+import java.util.List;
 import java.util.NoSuchElementException;
 import org.geotools.data.AttributeReader;
+import org.joda.time.DateTime;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
 
 /**
+ * Reads every record of the animation file in order.  Records are streamed
+ * with large sequential reads, see {@link PRMSAnimationRecordStream}, and
+ * the timestamp and nhru are taken from the metadata instead of being parsed.
  *
  * @author tkunicki
  */
 public class PRMSAnimationAttributeReader implements AttributeReader {
     
     private final SimpleFeatureType featureType;
-    private final PRMSAnimationFileMetaData animationFileMetaData;
     private final int readerAttributeCount;
     
-    private int readerRecordIndex; // before next() called
+    private final List<DateTime> timeStepList;
+    private final int timeStepRecordCount;
+    private final PRMSAnimationHRUIndex hruIndex;
     
-    private PRMSAnimationRecordBuffer readerRecordBuffer;
-    private PRMSAnimationRecord readerRecord;
+    private PRMSAnimationRecordStream readerRecordStream;
     
     private int[] readerAttributeToRecordEntryIndices;
 
     PRMSAnimationAttributeReader(PRMSAnimationFileMetaData animationFileMetaData, SimpleFeatureType featureType) throws IOException {
         this.featureType = featureType;
-        this.animationFileMetaData = animationFileMetaData;
         this.readerAttributeCount = featureType.getAttributeCount();
-        this.readerRecordIndex = 0;
+        this.timeStepList = animationFileMetaData.getTimeStepList();
+        this.timeStepRecordCount = animationFileMetaData.getTimeStepRecordCount();
+        this.hruIndex = animationFileMetaData.getHRUIndex();
         readerAttributeToRecordEntryIndices = new int[readerAttributeCount];
         for (int readerAttributeIndex = 0; readerAttributeIndex < readerAttributeCount; ++readerAttributeIndex) {
             readerAttributeToRecordEntryIndices[readerAttributeIndex] = animationFileMetaData.getRecordEntryIndex(featureType.getDescriptor(readerAttributeIndex).getLocalName());
         }
-        readerRecordBuffer = new PRMSAnimationRecordBuffer(animationFileMetaData);
+        readerRecordStream = new PRMSAnimationRecordStream(animationFileMetaData);
     }
 
     @Override
@@ -51,7 +57,7 @@ public class PRMSAnimationAttributeReader implements AttributeReader {
     @Override
     public void close() throws IOException {
         try {
-            readerRecordBuffer.close();
+            readerRecordStream.close();
         } catch (IOException e) {
             /* don't care */
         }
@@ -59,14 +65,13 @@ public class PRMSAnimationAttributeReader implements AttributeReader {
 
     @Override
     public boolean hasNext() throws IOException {
-        return (readerRecordIndex + 1) < animationFileMetaData.getRecordCount();
+        return readerRecordStream.hasNext();
     }
 
     @Override
     public void next() throws IOException, IllegalArgumentException, NoSuchElementException {
         if (hasNext()) {
-            readerRecord = readerRecordBuffer.getRecord(readerRecordIndex);
-            ++readerRecordIndex;
+            readerRecordStream.next();
         } else {
             throw new NoSuchElementException();
         }
@@ -78,11 +83,11 @@ public class PRMSAnimationAttributeReader implements AttributeReader {
             int recordEntryIndex = readerAttributeToRecordEntryIndices[index];
             switch (recordEntryIndex) {
                 case 0:
-                    return readerRecord.getTimeStamp().toDate();
+                    return timeStepList.get(readerRecordStream.getIndex() / timeStepRecordCount).toDate();
                 case 1:
-                    return readerRecord.getNHRU();
+                    return hruIndex.getHRU(readerRecordStream.getIndex() % timeStepRecordCount);
                 default:
-                    return readerRecord.getValue(recordEntryIndex);
+                    return readerRecordStream.decode(recordEntryIndex);
             }
         } else {
             throw new ArrayIndexOutOfBoundsException(index);
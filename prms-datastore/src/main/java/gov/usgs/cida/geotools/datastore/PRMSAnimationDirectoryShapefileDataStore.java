@@ -1,15 +1,27 @@
 package gov.usgs.cida.geotools.datastore;
 
+import gov.usgs.cida.prms.PRMSAnimationFileMetaData;
+import gov.usgs.cida.prms.PRMSAnimationFrameCache;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.geotools.data.*;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.filter.Filter;
 
 /**
@@ -18,19 +30,112 @@ import org.opengis.filter.Filter;
  */
 public class PRMSAnimationDirectoryShapefileDataStore extends AbstractDataStore {
 
-    private TreeMap<String, PRMSAnimationShapefileDataStore> prmsDataStoreMap;
+    private static final Logger LOGGER = org.geotools.util.logging.Logging.getLogger("org.geotools.data");
+
+    // metadata parsing is mostly I/O bound but there's no point in more
+    // threads than disks can feed
+    private final static int LOADER_THREAD_COUNT_MAXIMUM = 8;
+
+    private final LazyDataStoreMap<PRMSAnimationShapefileDataStore> prmsDataStoreMap;
     private ReferencedEnvelope bounds;
+    private final PRMSAnimationFrameCache frameCache = new PRMSAnimationFrameCache();
+    private final ExecutorService metaDataExecutorService;
+    private final Map<File, FutureTask<Void>> metaDataTasks = new HashMap<File, FutureTask<Void>>();
+    
+    // shapefile header is read by the first store created, later stores share it
+    private volatile List<AttributeDescriptor> shapefileAttributeDescriptors;
 
     public PRMSAnimationDirectoryShapefileDataStore(URI namespaceURI, URL prmsAnimationDirectoryURL, URL shapefileURL, String shapefileNHRUAttributeName) throws MalformedURLException, IOException {
-        prmsDataStoreMap = new TreeMap<String, PRMSAnimationShapefileDataStore>();
-        for (File file : getAnimationFiles(prmsAnimationDirectoryURL)) {
-            PRMSAnimationShapefileDataStore dataStore = new PRMSAnimationShapefileDataStore(namespaceURI, file.toURI().toURL(), shapefileURL, shapefileNHRUAttributeName);
-            dataStore.getSchema(); // prime schemas
-            prmsDataStoreMap.put(dataStore.getTypeNames()[0], dataStore);
+        this(namespaceURI, prmsAnimationDirectoryURL, shapefileURL, shapefileNHRUAttributeName, false, false);
+    }
+
+    /**
+     * Type names are taken from the animation file names, the per-file store
+     * for a type is created on first access and disposed again when idle.
+     * Metadata sidecars for the animation files are prepared in the
+     * background on a bounded pool so first access is usually cheap.
+     */
+    public PRMSAnimationDirectoryShapefileDataStore(final URI namespaceURI, URL prmsAnimationDirectoryURL, final URL shapefileURL, final String shapefileNHRUAttributeName, final boolean aggregateAttributes, final boolean aggregatePyramid) throws MalformedURLException, IOException {
+        List<File> animationFiles = getAnimationFiles(prmsAnimationDirectoryURL);
+        if (animationFiles.isEmpty()) {
+            throw new IllegalArgumentException(prmsAnimationDirectoryURL + " contains no animation files");
+        }
+
+        Map<String, File> typeNameToFileMap = new TreeMap<String, File>();
+        for (File file : animationFiles) {
+            typeNameToFileMap.put(PRMSAnimationShapefileDataStore.createFeatureTypeName(file), file);
+        }
+        prmsDataStoreMap = new LazyDataStoreMap<PRMSAnimationShapefileDataStore>(
+                typeNameToFileMap,
+                new LazyDataStoreMap.Loader<PRMSAnimationShapefileDataStore>() {
+            @Override
+            public PRMSAnimationShapefileDataStore load(String typeName, File file) throws IOException {
+                PRMSAnimationShapefileDataStore dataStore = new PRMSAnimationShapefileDataStore(
+                        namespaceURI,
+                        file.toURI().toURL(),
+                        shapefileURL,
+                        shapefileNHRUAttributeName,
+                        aggregateAttributes,
+                        aggregatePyramid,
+                        frameCache,
+                        getMetaData(file),
+                        shapefileAttributeDescriptors);
+                if (shapefileAttributeDescriptors == null) {
+                    shapefileAttributeDescriptors = dataStore.getShapefileAttributeDescriptors();
+                }
+                return dataStore;
+            }
+        });
+
+        int threadCount = Math.min(
+                Math.min(Runtime.getRuntime().availableProcessors(), LOADER_THREAD_COUNT_MAXIMUM),
+                animationFiles.size());
+        metaDataExecutorService = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "PRMSAnimationMetaDataLoader");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        for (final File file : animationFiles) {
+            metaDataTasks.put(file, new FutureTask<Void>(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    try {
+                        // result is discarded, this only writes the sidecar
+                        PRMSAnimationFileMetaData.getMetaData(file);
+                        return null;
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Error preparing metadata for " + file.getPath(), e);
+                        throw e;
+                    }
+                }
+            }));
+        }
+        for (File file : animationFiles) {
+            metaDataExecutorService.execute(metaDataTasks.get(file));
         }
-        
-        PRMSAnimationShapefileDataStore prmsDataStore = prmsDataStoreMap.firstEntry().getValue();
-        bounds = prmsDataStore.getBounds(Query.ALL);
+        metaDataExecutorService.shutdown();
+    }
+
+    // the sidecar is prepared by the file's task, run here unless it has
+    // started, so the file is never parsed twice at once
+    private PRMSAnimationFileMetaData getMetaData(File file) throws IOException {
+        FutureTask<Void> metaDataTask = metaDataTasks.get(file);
+        if (metaDataTask != null) {
+            metaDataTask.run();
+            try {
+                metaDataTask.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted preparing metadata for " + file.getPath());
+            } catch (ExecutionException e) {
+                // logged by the task, parsed again below
+            }
+        }
+        return PRMSAnimationFileMetaData.getMetaData(file);
     }
     
     private List<File> getAnimationFiles(URL url) {
@@ -55,7 +160,7 @@ public class PRMSAnimationDirectoryShapefileDataStore extends AbstractDataStore
 
     @Override
     public String[] getTypeNames() throws IOException {
-        return prmsDataStoreMap.keySet().toArray(new String[0]);
+        return prmsDataStoreMap.getTypeNames().toArray(new String[0]);
     }
 
     @Override
@@ -65,32 +170,55 @@ public class PRMSAnimationDirectoryShapefileDataStore extends AbstractDataStore
 
     @Override
     protected FeatureReader<SimpleFeatureType, SimpleFeature> getFeatureReader(String typeName) throws IOException {
-        return prmsDataStoreMap.get(typeName).getFeatureReader();
+        return prmsDataStoreMap.getFeatureReader(typeName, new LazyDataStoreMap.ReaderOpener<PRMSAnimationShapefileDataStore>() {
+            @Override
+            public FeatureReader<SimpleFeatureType, SimpleFeature> open(PRMSAnimationShapefileDataStore dataStore) throws IOException {
+                return dataStore.getFeatureReader();
+            }
+        });
     }
 
     @Override
-    public FeatureReader<SimpleFeatureType, SimpleFeature> getFeatureReader(Query query, Transaction transaction) throws IOException {
-        return prmsDataStoreMap.get(query.getTypeName()).getFeatureReader(query, transaction);
+    public FeatureReader<SimpleFeatureType, SimpleFeature> getFeatureReader(final Query query, final Transaction transaction) throws IOException {
+        return prmsDataStoreMap.getFeatureReader(query.getTypeName(), new LazyDataStoreMap.ReaderOpener<PRMSAnimationShapefileDataStore>() {
+            @Override
+            public FeatureReader<SimpleFeatureType, SimpleFeature> open(PRMSAnimationShapefileDataStore dataStore) throws IOException {
+                return dataStore.getFeatureReader(query, transaction);
+            }
+        });
     }
 
     @Override
-    protected FeatureReader<SimpleFeatureType, SimpleFeature> getFeatureReader(String typeName, Query query) throws IOException {
-        return prmsDataStoreMap.get(typeName).getFeatureReader(typeName, query);
+    protected FeatureReader<SimpleFeatureType, SimpleFeature> getFeatureReader(final String typeName, final Query query) throws IOException {
+        return prmsDataStoreMap.getFeatureReader(typeName, new LazyDataStoreMap.ReaderOpener<PRMSAnimationShapefileDataStore>() {
+            @Override
+            public FeatureReader<SimpleFeatureType, SimpleFeature> open(PRMSAnimationShapefileDataStore dataStore) throws IOException {
+                return dataStore.getFeatureReader(typeName, query);
+            }
+        });
     }
 
     @Override
     public void dispose() {
-        for (PRMSAnimationShapefileDataStore dataStore : prmsDataStoreMap.values()) {
-            dataStore.dispose();
-        }
+        metaDataExecutorService.shutdownNow();
+        prmsDataStoreMap.dispose();
+        frameCache.clear();
     }
 
     @Override
     protected ReferencedEnvelope getBounds(Query query) throws IOException {
         if (query.getFilter().equals(Filter.INCLUDE)) {
-            return bounds;
+            return getShapefileBounds();
         }
         return null; // too expensive
     }
     
+    // every type joins the same shapefile so any store will do
+    private synchronized ReferencedEnvelope getShapefileBounds() throws IOException {
+        if (bounds == null) {
+            bounds = prmsDataStoreMap.get(prmsDataStoreMap.getFirstTypeName()).getBounds(Query.ALL);
+        }
+        return bounds;
+    }
+    
 }
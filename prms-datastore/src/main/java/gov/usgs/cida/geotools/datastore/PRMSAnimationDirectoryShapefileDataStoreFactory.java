@@ -68,6 +68,11 @@ public class PRMSAnimationDirectoryShapefileDataStoreFactory implements DataStor
                 new KVP(Param.EXT, "shp"));
     public static final Param SHAPEFILE_NHRU =
             new Param("shapefile_nhru", String.class, "Shapefile NHRU Identifying Attribute", true);
+    public static final Param AGGREGATES =
+            new Param("prms_aggregates", Boolean.class, "Expose <variable>_min, _max and _mean attributes aggregated over the requested time window", false, Boolean.FALSE);
+    public static final Param AGGREGATE_PYRAMID =
+            new Param("prms_aggregate_pyramid", Boolean.class, "Precompute aggregates over blocks of timesteps alongside the PRMS Animation File", false, Boolean.FALSE,
+                new KVP(Param.LEVEL, "advanced"));
 
     @Override
     public Param[] getParametersInfo() {
@@ -76,6 +81,8 @@ public class PRMSAnimationDirectoryShapefileDataStoreFactory implements DataStor
             PRMS_ANIMATION,
             SHAPEFILE,
             SHAPEFILE_NHRU,
+            AGGREGATES,
+            AGGREGATE_PYRAMID,
         };
     }
     
@@ -136,7 +143,9 @@ public class PRMSAnimationDirectoryShapefileDataStoreFactory implements DataStor
                 (URI) NAMESPACE.lookUp(params),
                 (URL) PRMS_ANIMATION.lookUp(params),
                 (URL) SHAPEFILE.lookUp(params),
-                (String) SHAPEFILE_NHRU.lookUp(params));
+                (String) SHAPEFILE_NHRU.lookUp(params),
+                Boolean.TRUE.equals(AGGREGATES.lookUp(params)),
+                Boolean.TRUE.equals(AGGREGATE_PYRAMID.lookUp(params)));
     }
 
     @Override
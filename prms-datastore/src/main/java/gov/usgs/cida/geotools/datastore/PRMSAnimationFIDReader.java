@@ -0,0 +1,37 @@
+package gov.usgs.cida.geotools.datastore;
+
+import java.io.IOException;
+import org.geotools.data.FIDReader;
+
+/**
+ * FIDs for a joining reader spanning several timesteps.  Each shapefile
+ * record is read once per timestep, so the shapefile FID is qualified by the
+ * timestep index to keep FIDs unique: &lt;typeName&gt;.&lt;record&gt;.&lt;timeStepIndex&gt;
+ *
+ * @author tkunicki
+ */
+public class PRMSAnimationFIDReader implements FIDReader {
+
+    private final String typeName;
+    private final PRMSAnimationShapefileAttributeJoiningReader reader;
+
+    public PRMSAnimationFIDReader(String typeName, PRMSAnimationShapefileAttributeJoiningReader reader) {
+        this.typeName = typeName;
+        this.reader = reader;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        return reader.hasNext();
+    }
+
+    @Override
+    public String next() throws IOException {
+        return typeName + "." + reader.getRecordNumber() + "." + reader.getTimeStepIndex();
+    }
+}
@@ -1,18 +1,26 @@
 package gov.usgs.cida.geotools.datastore;
 
 import com.vividsolutions.jts.geom.Envelope;
+import static gov.usgs.cida.geotools.datastore.PRMSAnimationShapefileDataStore.NHRU_FILE_ATTRIB_AGGREGATE;
 import static gov.usgs.cida.geotools.datastore.PRMSAnimationShapefileDataStore.NHRU_FILE_ATTRIB_COLUMN;
+import gov.usgs.cida.prms.PRMSAnimationAggregate;
 import gov.usgs.cida.prms.PRMSAnimationFileMetaData;
-import gov.usgs.cida.prms.PRMSAnimationRecord;
-import gov.usgs.cida.prms.PRMSAnimationRecordBuffer;
+import gov.usgs.cida.prms.PRMSAnimationFrameCache;
+import gov.usgs.cida.prms.PRMSAnimationHRUIndex;
+import gov.usgs.cida.prms.RecordEntryDecoder;
 import gov.usgs.cida.prms.RecordEntryDescriptor;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.geotools.data.shapefile.ShapefileAttributeReader;
 import org.geotools.renderer.ScreenMap;
+import org.joda.time.DateTime;
 import org.opengis.feature.type.AttributeDescriptor;
 
 /**
@@ -23,27 +31,111 @@ public class PRMSAnimationShapefileAttributeJoiningReader extends ShapefileAttri
     
 	protected static final Logger LOGGER = org.geotools.util.logging.Logging.getLogger("org.geotools.data");
 	
+    // where read(attributeIndex) gets its value, resolved once at construction
+    private final static byte ATTRIBUTE_SHAPEFILE = 0;
+    private final static byte ATTRIBUTE_TIMESTAMP = 1;
+    private final static byte ATTRIBUTE_NHRU = 2;
+    private final static byte ATTRIBUTE_VALUE = 3;
+    private final static byte ATTRIBUTE_AGGREGATE = 4;
+	
     private final ShapefileAttributeReader delegate;
     private final int shapefileJoinAttributeIndex;
-    private final int animationJoinValueOffset;
-    private final int animationTimeStepRecordOffset;
+    private final PRMSAnimationHRUIndex animationHRUIndex;
+    private final int animationTimeStepIndexStart;
+    private final int animationTimeStepIndexEnd;
+    private final PRMSAnimationAggregate animationAggregate;
+    
+    private final PRMSAnimationFileMetaData animationFileMetaData;
+    private final List<DateTime> animationTimeStepList;
+    private final PRMSAnimationFrameCache animationFrameCache;
+    private final int[] animationColumnIndices; // value columns read by this reader
+    // [timeStepIndex - animationTimeStepIndexStart][slot], taken from the
+    // cache the first time a timestep is read and pinned for the lifetime of
+    // the reader as every shapefile record revisits each timestep of the span
+    private Object[][] animationSpanFrames;
+    private Object[] animationFrames; // for animationTimeStepIndex, indexed by slot, typed by the column decoders
+    
+    private final byte[] attributeSource;
+    private final int[] attributeColumnIndex;
+    private final int[] attributeSlot; // into animationFrames for values
+    private final RecordEntryDecoder[] attributeDecoder; // boxes values as the column's binding
+    private final PRMSAnimationAggregate.Statistic[] attributeStatistic;
     
-    private PRMSAnimationRecordBuffer animationRecordBuffer;
-    private PRMSAnimationRecord animationRecord;
+    private int animationTimeStepIndex;
+    private int animationTimeStepRecordOffset; // for current shapefile record, INVALID_RECORD_OFFSET if no HRU
+    private Date animationTimeStamp; // for current record
+    private Integer animationNHRU; // for current record
 	final private RecordEntryDescriptor[] recordEntryDescriptors;
+    private final boolean logRecords;
 
-    public PRMSAnimationShapefileAttributeJoiningReader(ShapefileAttributeReader delegate, PRMSAnimationFileMetaData animationFileMetaData, int shapefileJoinAttributeIndex, int animationJoinValueOffset) throws IOException {
-        this(delegate, animationFileMetaData, shapefileJoinAttributeIndex, animationJoinValueOffset, 0);
-    }
-
-    public PRMSAnimationShapefileAttributeJoiningReader(ShapefileAttributeReader delegate, PRMSAnimationFileMetaData animationFileMetaData, int shapefileJoinAttributeIndex, int animationJoinValueOffset, int timeStepIndex) throws IOException {
+    /**
+     * Joins each shapefile record with the animation records for every
+     * timestep in [timeStepIndexStart, timeStepIndexEnd].  The shapefile is
+     * read once, each shapefile record is returned once per timestep (so
+     * record numbers repeat, the timestamp attribute distinguishes them).
+     * Aggregate attributes are read from animationAggregate (may be null if
+     * none were requested) and timestep values are read from frames decoded
+     * through animationFrameCache, the data store's cache shared by its
+     * readers.
+     */
+    public PRMSAnimationShapefileAttributeJoiningReader(ShapefileAttributeReader delegate, PRMSAnimationFileMetaData animationFileMetaData, int shapefileJoinAttributeIndex, int timeStepIndexStart, int timeStepIndexEnd, PRMSAnimationAggregate animationAggregate, PRMSAnimationFrameCache animationFrameCache) throws IOException {
         super(hack(delegate), null, null); // lame duck
         this.delegate = delegate;
         this.shapefileJoinAttributeIndex = shapefileJoinAttributeIndex;
-        this.animationJoinValueOffset = animationJoinValueOffset;
-        this.animationTimeStepRecordOffset = timeStepIndex * animationFileMetaData.getTimeStepRecordCount();
-        animationRecordBuffer = new PRMSAnimationRecordBuffer(animationFileMetaData, animationTimeStepRecordOffset, animationTimeStepRecordOffset + animationFileMetaData.getTimeStepRecordCount());
+        this.animationHRUIndex = animationFileMetaData.getHRUIndex();
+        this.animationTimeStepIndexStart = timeStepIndexStart;
+        this.animationTimeStepIndexEnd = timeStepIndexEnd;
+        this.animationAggregate = animationAggregate;
+        this.animationFileMetaData = animationFileMetaData;
+        this.animationTimeStepList = animationFileMetaData.getTimeStepList();
+        this.animationFrameCache = animationFrameCache;
+        this.animationSpanFrames = new Object[Math.max(0, timeStepIndexEnd - timeStepIndexStart + 1)][];
+        this.animationTimeStepIndex = timeStepIndexEnd; // forces delegate.next() on first call to next()
 		this.recordEntryDescriptors = animationFileMetaData.getRecordEntryDescriptors().toArray(new RecordEntryDescriptor[0]);
+
+        // resolve the user data of each attribute once instead of per read
+        int attributeCount = getAttributeCount();
+        attributeSource = new byte[attributeCount];
+        attributeColumnIndex = new int[attributeCount];
+        attributeSlot = new int[attributeCount];
+        attributeDecoder = new RecordEntryDecoder[attributeCount];
+        attributeStatistic = new PRMSAnimationAggregate.Statistic[attributeCount];
+        Set<Integer> columnIndexSet = new TreeSet<Integer>();
+        for (int attributeIndex = 0; attributeIndex < attributeCount; ++attributeIndex) {
+            int columnIndex = mapToNhruColumn(attributeIndex);
+            attributeColumnIndex[attributeIndex] = columnIndex;
+            if (isAggregateData(attributeIndex)) {
+                attributeSource[attributeIndex] = ATTRIBUTE_AGGREGATE;
+                attributeStatistic[attributeIndex] = (PRMSAnimationAggregate.Statistic) super.getAttributeType(attributeIndex).getUserData().get(NHRU_FILE_ATTRIB_AGGREGATE);
+            } else if (isNhruData(attributeIndex)) {
+                switch (columnIndex) {
+                    case 0:
+                        attributeSource[attributeIndex] = ATTRIBUTE_TIMESTAMP;
+                        break;
+                    case 1:
+                        attributeSource[attributeIndex] = ATTRIBUTE_NHRU;
+                        break;
+                    default:
+                        attributeSource[attributeIndex] = ATTRIBUTE_VALUE;
+                        attributeDecoder[attributeIndex] = recordEntryDescriptors[columnIndex].getDecoder();
+                        columnIndexSet.add(columnIndex);
+                }
+            } else {
+                attributeSource[attributeIndex] = ATTRIBUTE_SHAPEFILE;
+            }
+        }
+        // value columns (not timestamp or nhru) backing the non-aggregate attributes
+        animationColumnIndices = new int[columnIndexSet.size()];
+        int slot = 0;
+        for (Integer columnIndex : columnIndexSet) {
+            animationColumnIndices[slot++] = columnIndex;
+        }
+        for (int attributeIndex = 0; attributeIndex < attributeCount; ++attributeIndex) {
+            attributeSlot[attributeIndex] = attributeSource[attributeIndex] == ATTRIBUTE_VALUE ?
+                    Arrays.binarySearch(animationColumnIndices, attributeColumnIndex[attributeIndex]) :
+                    -1;
+        }
+        logRecords = LOGGER.isLoggable(Level.FINE);
     }
 
     @Override
@@ -53,11 +145,8 @@ public class PRMSAnimationShapefileAttributeJoiningReader extends ShapefileAttri
         } catch (IOException e) {
             /* don't care */
         }
-        try {
-            animationRecordBuffer.close();
-        } catch (IOException e) {
-            /* don't care */
-        }
+        animationFrames = null;
+        animationSpanFrames = null;
     }
 
     @Override
@@ -65,21 +154,55 @@ public class PRMSAnimationShapefileAttributeJoiningReader extends ShapefileAttri
         return delegate.getRecordNumber();
     }
 
+    /**
+     * @return the timestep the current record is joined with.
+     */
+    public int getTimeStepIndex() {
+        return animationTimeStepIndex;
+    }
+
+    /**
+     * @return true if each shapefile record is read once per timestep, record
+     *         numbers repeat and FIDs need the timestep to be unique.
+     */
+    public boolean isTimeStepSpan() {
+        return animationTimeStepIndexEnd > animationTimeStepIndexStart;
+    }
+
     @Override
     public boolean hasNext() throws IOException {
-        return delegate.hasNext();
+        if (animationTimeStepIndexStart > animationTimeStepIndexEnd) {
+            return false; // empty timestep span
+        }
+        return animationTimeStepIndex < animationTimeStepIndexEnd || delegate.hasNext();
     }
 
     @Override
     public void next() throws IOException {
-        delegate.next();
-        animationRecord = animationRecordBuffer.getRecord(animationTimeStepRecordOffset + ((Number) delegate.read(shapefileJoinAttributeIndex)).intValue() - animationJoinValueOffset);
-		_isRecordDebuged = false;
+        if (animationTimeStepIndex < animationTimeStepIndexEnd) {
+            ++animationTimeStepIndex;
+        } else {
+            delegate.next();
+            animationTimeStepIndex = animationTimeStepIndexStart;
+            Object joinValue = delegate.read(shapefileJoinAttributeIndex);
+            animationTimeStepRecordOffset = joinValue instanceof Number ?
+                    animationHRUIndex.getRecordOffset(((Number) joinValue).intValue()) :
+                    PRMSAnimationHRUIndex.INVALID_RECORD_OFFSET;
+        }
+        animationFrames = animationSpanFrames[animationTimeStepIndex - animationTimeStepIndexStart];
+        if (animationFrames == null) {
+            animationFrames = animationFrameCache.getFrames(animationFileMetaData, animationTimeStepIndex, animationColumnIndices);
+            animationSpanFrames[animationTimeStepIndex - animationTimeStepIndexStart] = animationFrames;
+        }
+        animationTimeStamp = animationTimeStepList.get(animationTimeStepIndex).toDate();
+        animationNHRU = animationTimeStepRecordOffset == PRMSAnimationHRUIndex.INVALID_RECORD_OFFSET ?
+                null :
+                animationHRUIndex.getHRU(animationTimeStepRecordOffset);
+		if (logRecords) {
+			logCurrentRecord();
+		}
     }
 	
-	//true if we have already printed debug info for this row
-	private volatile boolean _isRecordDebuged = false;
-	
 	/**
 	 * Hack method to display all the attributes within the various files
 	 * @throws IOException 
@@ -96,49 +219,43 @@ public class PRMSAnimationShapefileAttributeJoiningReader extends ShapefileAttri
 			LOGGER.log(Level.FINE, "" + i + ": " + delegate.getAttributeType(i).getLocalName() + " : " + delegate.read(i).toString());
 		}
 		
-		//Log new animation record info
-		LOGGER.log(Level.FINE, "# Animation Record for #" + getRecordNumber() + ", NHRU: " + animationRecord.getNHRU());
-		LOGGER.log(Level.FINE, "0: " + recordEntryDescriptors[0].getName() + " : " + animationRecord.getTimeStamp());
-		LOGGER.log(Level.FINE, "1: " + recordEntryDescriptors[1].getName() + " : " + animationRecord.getNHRU());
-		for (int i=2; i < animationRecord.getColumnCount(); i++) {
+		//Log new animation record info (only the columns read by this reader are decoded)
+		LOGGER.log(Level.FINE, "# Animation Record for #" + getRecordNumber() + ", NHRU: " + animationNHRU);
+		LOGGER.log(Level.FINE, "0: " + recordEntryDescriptors[0].getName() + " : " + animationTimeStepList.get(animationTimeStepIndex));
+		LOGGER.log(Level.FINE, "1: " + recordEntryDescriptors[1].getName() + " : " + animationNHRU);
+		for (int i=0; i < animationColumnIndices.length && animationNHRU != null; i++) {
 			
-			LOGGER.log(Level.FINE, "" + i + ": " + recordEntryDescriptors[i].getName() + " : " + animationRecord.getValue(i));
+			LOGGER.log(Level.FINE, "" + animationColumnIndices[i] + ": " + recordEntryDescriptors[animationColumnIndices[i]].getName() + " : " + recordEntryDescriptors[animationColumnIndices[i]].getDecoder().box(animationFrames[i], animationTimeStepRecordOffset));
 		}
 		LOGGER.log(Level.FINE, "###################################################");
 	}
 
+    /**
+     * Animation attributes are null for shapefile records whose HRU isn't in
+     * the animation file.
+     */
     @Override
     public Object read(int attributeIndex) throws IOException, ArrayIndexOutOfBoundsException {
-		
-		if (LOGGER.isLoggable(Level.FINE) && ! _isRecordDebuged) {
-			_isRecordDebuged = true;
-			logCurrentRecord();
-		}
-		
-		Object ret = null;
-		
-        if (isNhruData(attributeIndex)) {
-			
-			int animationRecordIndex = mapToNhruColumn(attributeIndex);
-			
-            switch (animationRecordIndex) {
-                case 0:
-                    ret = animationRecord.getTimeStamp().toDate();
-					break;
-                case 1:
-                    ret = animationRecord.getNHRU();
-					break;
-                default:
-                    ret = animationRecord.getValue(animationRecordIndex);
-            }
-			
-
-        } else {
-			ret = delegate.read(attributeIndex);
+        if (animationNHRU == null && attributeSource[attributeIndex] != ATTRIBUTE_SHAPEFILE) {
+            return attributeSource[attributeIndex] == ATTRIBUTE_TIMESTAMP ? animationTimeStamp : null;
+        }
+        switch (attributeSource[attributeIndex]) {
+            case ATTRIBUTE_TIMESTAMP:
+                return animationTimeStamp;
+            case ATTRIBUTE_NHRU:
+                return animationNHRU;
+            case ATTRIBUTE_VALUE:
+                return attributeDecoder[attributeIndex].box(animationFrames[attributeSlot[attributeIndex]], animationTimeStepRecordOffset);
+            case ATTRIBUTE_AGGREGATE:
+                return animationAggregate == null ?
+                        null :
+                        animationAggregate.getValue(
+                            attributeColumnIndex[attributeIndex],
+                            attributeStatistic[attributeIndex],
+                            animationTimeStepRecordOffset);
+            default:
+                return delegate.read(attributeIndex);
         }
-		
-
-		return ret;
     }
 
     @Override
@@ -176,6 +293,17 @@ public class PRMSAnimationShapefileAttributeJoiningReader extends ShapefileAttri
 		return super.getAttributeType(attributeIndex).getUserData().containsKey(NHRU_FILE_ATTRIB_COLUMN);
 	}
 	
+	/**
+	 * Returns true to indicate that this attribute is an aggregate of a column
+	 * in the NHRU file over the requested time window.
+	 * 
+	 * @param attributeIndex
+	 * @return 
+	 */
+	protected boolean isAggregateData(int attributeIndex) {
+		return super.getAttributeType(attributeIndex).getUserData().containsKey(NHRU_FILE_ATTRIB_AGGREGATE);
+	}
+	
 	/**
 	 * For attributes that need to be read from the Nhru file, this method will
 	 * map the attribute index to the nhru column index.
@@ -1,6 +1,9 @@
 package gov.usgs.cida.geotools.datastore;
 
+import gov.usgs.cida.prms.PRMSAnimationAggregate;
+import gov.usgs.cida.prms.PRMSAnimationAggregatePyramid;
 import gov.usgs.cida.prms.PRMSAnimationFileMetaData;
+import gov.usgs.cida.prms.PRMSAnimationFrameCache;
 import gov.usgs.cida.prms.RecordEntryDescriptor;
 import java.io.File;
 import java.io.IOException;
@@ -14,6 +17,7 @@ import org.geotools.data.shapefile.ShapefileDataStore;
 import org.geotools.feature.AttributeTypeBuilder;
 import org.geotools.feature.SchemaException;
 import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.util.Range;
 import org.joda.time.DateTime;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
@@ -25,28 +29,77 @@ import org.opengis.feature.type.AttributeDescriptor;
  */
 public class PRMSAnimationShapefileDataStore extends ShapefileDataStore {
 
-    private final static String ATTRIBUTE_TIMESTAMP = "timestamp";
-    private final static String ATTRIBUTE_NHRU = "nhru";
+    public final static String ATTRIBUTE_TIMESTAMP = "timestamp";
+    public final static String ATTRIBUTE_NHRU = "nhru";
 	
 	/** Attrib descriptor key to indicate which column the column is in the nhru file.  Value should be an Integer */
 	public final static String NHRU_FILE_ATTRIB_COLUMN = "NHRU_FILE_ATTRIB_COLUMN";
+	
+	/** Attrib descriptor key to indicate the column is aggregated over the requested time window.  Value should be a PRMSAnimationAggregate.Statistic */
+	public final static String NHRU_FILE_ATTRIB_AGGREGATE = "NHRU_FILE_ATTRIB_AGGREGATE";
      
     private final URL animationURL;
     private String shapefileNHRUAttributeName;	//not final so that it can be updated to the correct case
     
-    private final PRMSAnimationFileMetaData animationFileMetaData;
+    // replaced when the animation file grows, see getAnimationFileMetaData()
+    private volatile PRMSAnimationFileMetaData animationFileMetaData;
+    
+    private final boolean aggregateAttributes;
+    private final boolean aggregatePyramid;
+    private PRMSAnimationAggregatePyramid animationAggregatePyramid;
+    
+    private final PRMSAnimationFrameCache animationFrameCache;
 	
 	/** Combined list of attrib descriptors which is also used as a lock for building it.  Only an unmodifiable version is returned. */
 	private final List<AttributeDescriptor> attributeDescriptors = new ArrayList<AttributeDescriptor>();
 
     public PRMSAnimationShapefileDataStore(URI namespaceURI, URL prmsAnimationURL, URL shapefileURL, String shapefileNHRUAttributeName) throws MalformedURLException, IOException {
+        this(namespaceURI, prmsAnimationURL, shapefileURL, shapefileNHRUAttributeName, false, false);
+    }
+
+    /**
+     * @param aggregateAttributes expose &lt;variable&gt;_min, _max and _mean
+     *        attributes aggregated per HRU over the queried time window.
+     * @param aggregatePyramid build (or reuse) precomputed block aggregates
+     *        so long windows don't require a pass over every timestep.
+     */
+    public PRMSAnimationShapefileDataStore(URI namespaceURI, URL prmsAnimationURL, URL shapefileURL, String shapefileNHRUAttributeName, boolean aggregateAttributes, boolean aggregatePyramid) throws MalformedURLException, IOException {
+        this(namespaceURI, prmsAnimationURL, shapefileURL, shapefileNHRUAttributeName, aggregateAttributes, aggregatePyramid, new PRMSAnimationFrameCache());
+    }
+
+    /**
+     * @param animationFrameCache decoded timestep frames, may be shared with
+     *        other data stores as entries are keyed by animation file.
+     */
+    public PRMSAnimationShapefileDataStore(URI namespaceURI, URL prmsAnimationURL, URL shapefileURL, String shapefileNHRUAttributeName, boolean aggregateAttributes, boolean aggregatePyramid, PRMSAnimationFrameCache animationFrameCache) throws MalformedURLException, IOException {
+        this(namespaceURI, prmsAnimationURL, shapefileURL, shapefileNHRUAttributeName, aggregateAttributes, aggregatePyramid, animationFrameCache,
+                PRMSAnimationFileMetaData.getMetaData(prmsAnimationURL), null);
+    }
+
+    /**
+     * Used by {@link PRMSAnimationDirectoryShapefileDataStore} so stores
+     * joining the same shapefile can be created from metadata loaded
+     * elsewhere and share the shapefile's attribute descriptors instead of
+     * each re-reading the shapefile header.
+     * 
+     * @param shapefileAttributeDescriptors as returned by {@link #getShapefileAttributeDescriptors()}
+     *        of a store over the same shapefile, null to read them.
+     */
+    PRMSAnimationShapefileDataStore(URI namespaceURI, URL prmsAnimationURL, URL shapefileURL, String shapefileNHRUAttributeName, boolean aggregateAttributes, boolean aggregatePyramid, PRMSAnimationFrameCache animationFrameCache, PRMSAnimationFileMetaData animationFileMetaData, List<AttributeDescriptor> shapefileAttributeDescriptors) throws MalformedURLException, IOException {
         super(shapefileURL, namespaceURI, true, true, ShapefileDataStore.DEFAULT_STRING_CHARSET);
         
+        this.shapefileAttributeDescriptors = shapefileAttributeDescriptors;
+        
+        this.animationFrameCache = animationFrameCache;
+        
         this.animationURL = prmsAnimationURL;
         
+        this.aggregateAttributes = aggregateAttributes;
+        this.aggregatePyramid = aggregatePyramid;
+        
         this.shapefileNHRUAttributeName = shapefileNHRUAttributeName;
    
-        animationFileMetaData = PRMSAnimationFileMetaData.getMetaData(prmsAnimationURL);
+        this.animationFileMetaData = animationFileMetaData;
 		
 		
 		//Force reading of the attributes, which has the side-effect of normalizing
@@ -54,10 +107,10 @@ public class PRMSAnimationShapefileDataStore extends ShapefileDataStore {
 		this.readAttributes();
     }
 
+    private List<AttributeDescriptor> shapefileAttributeDescriptors;
     private Set<String> shapefileAttributeNames;
     private Set<String> animationAttributeNames;
-    
-    private int animationJoinValueOffset;
+    private Set<String> aggregateAttributeNames;
 	
     @Override
     protected final List<AttributeDescriptor> readAttributes() throws IOException {
@@ -68,7 +121,9 @@ public class PRMSAnimationShapefileDataStore extends ShapefileDataStore {
 				return Collections.unmodifiableList(attributeDescriptors);
 			} else {
 
-				List<AttributeDescriptor> shapefileAttributeDescriptors = super.readAttributes();
+				if (shapefileAttributeDescriptors == null) {
+					shapefileAttributeDescriptors = super.readAttributes();
+				}
 
 				shapefileAttributeNames = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
 				for (AttributeDescriptor attributeDescriptor : shapefileAttributeDescriptors) {
@@ -109,18 +164,36 @@ public class PRMSAnimationShapefileDataStore extends ShapefileDataStore {
 
 						atBuilder.addUserData(NHRU_FILE_ATTRIB_COLUMN, recordEntryIndex);
 						animationAttributeDescriptors.add(atBuilder.
-							binding(Float.class).
+							binding(recordEntryDescriptor.getDecoder().getBinding()).
 							buildDescriptor(recordEntryName));
 					}
 				}
 
+				// added last, the aggregate user data shouldn't leak onto
+				// the instantaneous value descriptors
+				aggregateAttributeNames = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+				if (aggregateAttributes) {
+					for (int recordEntryIndex = 2; recordEntryIndex < recordEntryCount; ++recordEntryIndex) {
+						String recordEntryName = recordEntryDescriptors.get(recordEntryIndex).getName();
+						for (PRMSAnimationAggregate.Statistic statistic : PRMSAnimationAggregate.Statistic.values()) {
+							String aggregateName = recordEntryName + statistic.getSuffix();
+							if (!shapefileAttributeNames.contains(aggregateName)) {
+								atBuilder.addUserData(NHRU_FILE_ATTRIB_COLUMN, recordEntryIndex);
+								atBuilder.addUserData(NHRU_FILE_ATTRIB_AGGREGATE, statistic);
+								animationAttributeDescriptors.add(atBuilder.
+									binding(Float.class).
+									buildDescriptor(aggregateName));
+								aggregateAttributeNames.add(aggregateName);
+							}
+						}
+					}
+				}
+
 				animationAttributeNames = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
 				for (AttributeDescriptor attributeDescriptor : animationAttributeDescriptors) {
 					animationAttributeNames.add(attributeDescriptor.getLocalName());
 				}
 
-				animationJoinValueOffset = ((Number)animationFileMetaData.getRecordEntryRanges().get(animationFileMetaData.getRecordEntryIndex("nhru")).getMinimum()).intValue();
-
 
 				attributeDescriptors.addAll(shapefileAttributeDescriptors);
 				attributeDescriptors.addAll(animationAttributeDescriptors);
@@ -133,7 +206,8 @@ public class PRMSAnimationShapefileDataStore extends ShapefileDataStore {
 
     @Override
     protected FeatureReader<SimpleFeatureType, SimpleFeature> getFeatureReader(String typeName, Query query) throws IOException {
-        if (requiresShapefileAttributes(query)) {
+        // aggregates are per HRU, they are always joined through the shapefile
+        if (requiresShapefileAttributes(query) || requiresAggregateAttributes(query)) {
             if (requiresAnimationAttributes(query)) {
                 // make sure join attribute is in property list if we need to join!
                 String[] properties = query.getPropertyNames();
@@ -151,10 +225,16 @@ public class PRMSAnimationShapefileDataStore extends ShapefileDataStore {
                 List<String> propertyNames = Arrays.asList(query.getPropertyNames());
                 SimpleFeatureType subTypeSchema = DataUtilities.createSubType(getSchema(), propertyNames.toArray(new String[0]));
                 boolean timeStampOnly = propertyNames.size() == 1 && ATTRIBUTE_TIMESTAMP.equals(propertyNames.get(0));
-                if (timeStampOnly) {
-                    return new DefaultFeatureReader(new PRMSAnimationTimeStampAttributeReader(animationFileMetaData, subTypeSchema), subTypeSchema);
+                Integer hru = extractHRUFromQuery(query);
+                if (hru != null) {
+                    // time series of a single HRU, read its records directly
+                    PRMSAnimationFileMetaData metaData = getAnimationFileMetaData();
+                    int[] timeStepSpan = extractTimeStepSpanFromQuery(metaData, query, true);
+                    return new DefaultFeatureReader(new PRMSAnimationTimeSeriesAttributeReader(metaData, subTypeSchema, hru, timeStepSpan[0], timeStepSpan[1]), subTypeSchema);
+                } else if (timeStampOnly) {
+                    return new DefaultFeatureReader(new PRMSAnimationTimeStampAttributeReader(getAnimationFileMetaData(), subTypeSchema), subTypeSchema);
                 } else {
-                    return new DefaultFeatureReader(new PRMSAnimationAttributeReader(animationFileMetaData, subTypeSchema), subTypeSchema);
+                    return new DefaultFeatureReader(new PRMSAnimationAttributeReader(getAnimationFileMetaData(), subTypeSchema), subTypeSchema);
                 }
             } catch (SchemaException ex) {
                 // hack
@@ -163,13 +243,33 @@ public class PRMSAnimationShapefileDataStore extends ShapefileDataStore {
         }
     }
 
+    @Override
+    protected FeatureReader<SimpleFeatureType, SimpleFeature> createFeatureReader(String typeName, ShapefileAttributeReader reader, SimpleFeatureType readerSchema) throws SchemaException, IOException {
+        if (reader instanceof PRMSAnimationShapefileAttributeJoiningReader &&
+                ((PRMSAnimationShapefileAttributeJoiningReader) reader).isTimeStepSpan()) {
+            return new FIDFeatureReader(reader, new PRMSAnimationFIDReader(typeName, (PRMSAnimationShapefileAttributeJoiningReader) reader), readerSchema);
+        }
+        return super.createFeatureReader(typeName, reader, readerSchema);
+    }
+
     @Override
     protected ShapefileAttributeReader getAttributesReader(boolean readDBF, Query query, String[] properties) throws IOException {
         if (requiresAnimationAttributes(query)) {
-            DateTime timeStamp = extractTimeStampFromQuery(query);
-            int timeStepIndex = timeStamp != null ? animationFileMetaData.getTimeStepIndex(timeStamp) : 0;
+            PRMSAnimationFileMetaData metaData = getAnimationFileMetaData();
             int joinIndex = Arrays.asList(properties).indexOf(shapefileNHRUAttributeName);
-            return new PRMSAnimationShapefileAttributeJoiningReader(super.getAttributesReader(true, query, properties), animationFileMetaData, joinIndex, animationJoinValueOffset, timeStepIndex);
+            if (requiresAggregateAttributes(query)) {
+                int[] timeStepSpan = extractTimeStepSpanFromQuery(metaData, query, true);
+                PRMSAnimationAggregate aggregate = PRMSAnimationAggregate.compute(
+                        metaData,
+                        extractAggregateColumnIndices(properties),
+                        timeStepSpan[0],
+                        timeStepSpan[1],
+                        getAggregatePyramid(metaData));
+                // one feature per HRU, instantaneous values are from the first timestep of the window
+                return new PRMSAnimationShapefileAttributeJoiningReader(super.getAttributesReader(true, query, properties), metaData, joinIndex, timeStepSpan[0], Math.min(timeStepSpan[0], timeStepSpan[1]), aggregate, animationFrameCache);
+            }
+            int[] timeStepSpan = extractTimeStepSpanFromQuery(metaData, query, false);
+            return new PRMSAnimationShapefileAttributeJoiningReader(super.getAttributesReader(true, query, properties), metaData, joinIndex, timeStepSpan[0], timeStepSpan[1], null, animationFrameCache);
         } else {
             return super.getAttributesReader(readDBF, query, properties);
         }
@@ -183,25 +283,162 @@ public class PRMSAnimationShapefileDataStore extends ShapefileDataStore {
         return QueryUtil.requiresAttributes(query, animationAttributeNames);
     }
     
-    private DateTime extractTimeStampFromQuery(Query query) {
-        Date timestamp = QueryUtil.extractValueFromQueryFilter(query, ATTRIBUTE_TIMESTAMP, Date.class);
-        return timestamp == null ? null : new DateTime(timestamp);
+    private boolean requiresAggregateAttributes(Query query) {
+        return !aggregateAttributeNames.isEmpty() && QueryUtil.requiresAttributes(query, aggregateAttributeNames);
+    }
+    
+    private int[] extractAggregateColumnIndices(String[] properties) throws IOException {
+        Set<Integer> columnIndices = new TreeSet<Integer>();
+        SimpleFeatureType schema = getSchema();
+        for (String property : properties) {
+            if (aggregateAttributeNames.contains(property)) {
+                AttributeDescriptor attributeDescriptor = schema.getDescriptor(property);
+                if (attributeDescriptor != null) {
+                    columnIndices.add((Integer) attributeDescriptor.getUserData().get(NHRU_FILE_ATTRIB_COLUMN));
+                }
+            }
+        }
+        int[] columnIndexArray = new int[columnIndices.size()];
+        int index = 0;
+        for (Integer columnIndex : columnIndices) {
+            columnIndexArray[index++] = columnIndex;
+        }
+        return columnIndexArray;
+    }
+    
+    private synchronized PRMSAnimationAggregatePyramid getAggregatePyramid(PRMSAnimationFileMetaData metaData) throws IOException {
+        if (aggregatePyramid && animationAggregatePyramid == null) {
+            animationAggregatePyramid = PRMSAnimationAggregatePyramid.getPyramid(metaData);
+        }
+        return animationAggregatePyramid;
+    }
+    
+    /**
+     * Animation files are appended to while a model run executes.  If the
+     * file has changed since the metadata was loaded it is reloaded, which
+     * only scans the appended records.  Decoded frames stay cached unless
+     * the file was rewritten, the aggregate pyramid is rebuilt on next use.
+     */
+    private PRMSAnimationFileMetaData getAnimationFileMetaData() throws IOException {
+        PRMSAnimationFileMetaData metaData = animationFileMetaData;
+        if (metaData.isCurrent()) {
+            return metaData;
+        }
+        synchronized (this) {
+            metaData = animationFileMetaData;
+            if (!metaData.isCurrent()) {
+                PRMSAnimationFileMetaData updatedMetaData = PRMSAnimationFileMetaData.getMetaData(new File(metaData.getAnimationFilePath()));
+                if (!updatedMetaData.isAppendOf(metaData)) {
+                    animationFrameCache.invalidate(metaData.getAnimationFilePath());
+                }
+                if (animationAggregatePyramid != null) {
+                    animationAggregatePyramid.close();
+                    animationAggregatePyramid = null;
+                }
+                animationFileMetaData = metaData = updatedMetaData;
+            }
+        }
+        return metaData;
+    }
+    
+    /**
+     * @return the HRU if the query filter constrains nhru to a single value,
+     *         otherwise null.
+     */
+    private Integer extractHRUFromQuery(Query query) {
+        Range<Integer> range = QueryUtil.extractRangeFromQueryFilter(query, ATTRIBUTE_NHRU, Integer.class);
+        if (range != null && range.getMinValue() != null && range.getMinValue().equals(range.getMaxValue()) &&
+                range.isMinIncluded() && range.isMaxIncluded()) {
+            return range.getMinValue();
+        }
+        return null;
+    }
+    
+    /**
+     * Resolves the query's timestamp constraint to a contiguous span of
+     * timesteps.  A single timestamp resolves to the nearest timestep, a range
+     * resolves to the timesteps it contains (possibly none) and no constraint
+     * resolves to the first timestep (every timestep when aggregating).  The
+     * query filter is still evaluated against the joined timestamp attribute.
+     * 
+     * @return first and last (inclusive) timestep indices, the span is empty
+     *         if first is greater than last.
+     */
+    private int[] extractTimeStepSpanFromQuery(PRMSAnimationFileMetaData metaData, Query query, boolean aggregate) {
+        Range<Date> range = QueryUtil.extractRangeFromQueryFilter(query, ATTRIBUTE_TIMESTAMP, Date.class);
+        if (range == null) {
+            return new int[] { 0, aggregate ? metaData.getTimeStepCount() - 1 : 0 };
+        }
+        Date minimum = range.getMinValue();
+        Date maximum = range.getMaxValue();
+        if (minimum != null && minimum.equals(maximum)) {
+            int timeStepIndex = metaData.getTimeStepIndexNearest(new DateTime(minimum));
+            return new int[] { timeStepIndex, timeStepIndex };
+        }
+        int timeStepIndexStart = 0;
+        if (minimum != null) {
+            long minimumMillis = range.isMinIncluded() ? minimum.getTime() : minimum.getTime() + 1;
+            timeStepIndexStart = metaData.getTimeStepIndexNext(new DateTime(minimumMillis));
+            if (timeStepIndexStart < 0) {
+                timeStepIndexStart = metaData.getTimeStepCount();
+            }
+        }
+        int timeStepIndexEnd = metaData.getTimeStepCount() - 1;
+        if (maximum != null) {
+            long maximumMillis = range.isMaxIncluded() ? maximum.getTime() : maximum.getTime() - 1;
+            timeStepIndexEnd = metaData.getTimeStepIndexPrevious(new DateTime(maximumMillis));
+        }
+        return new int[] { timeStepIndexStart, timeStepIndexEnd };
+    }
+    
+    /**
+     * @return the attributes of the joined shapefile, without the animation
+     *         attributes.
+     */
+    List<AttributeDescriptor> getShapefileAttributeDescriptors() throws IOException {
+        readAttributes();
+        return shapefileAttributeDescriptors;
+    }
+
+    /**
+     * @return the decoded frame cache, exposed for hit/miss metrics.
+     */
+    public PRMSAnimationFrameCache getFrameCache() {
+        return animationFrameCache;
     }
     
     @Override
     protected String createFeatureTypeName() {
-        String path = animationURL.getPath();
-        File file = new File(path);
-        String name = file.getName();
+        return createFeatureTypeName(new File(animationURL.getPath()));
+    }
+
+    /**
+     * @return the type name a store over the animation file will have, lets
+     *         callers enumerate type names without creating stores.
+     */
+    public static String createFeatureTypeName(File animationFile) {
+        String name = animationFile.getName();
         int suffixIndex = name.lastIndexOf("animation.nhru");
         if (suffixIndex > -1) {
             return name.substring(0, suffixIndex -1);
         }
-        return path;
+        return animationFile.getPath();
     }
 
     @Override
     public ReferencedEnvelope getBounds(Query query) throws IOException {
         return super.getBounds(query);
     }
+
+    @Override
+    public void dispose() {
+        synchronized (this) {
+            if (animationAggregatePyramid != null) {
+                animationAggregatePyramid.close();
+                animationAggregatePyramid = null;
+            }
+        }
+        animationFrameCache.invalidate(animationFileMetaData.getAnimationFilePath());
+        super.dispose();
+    }
 }
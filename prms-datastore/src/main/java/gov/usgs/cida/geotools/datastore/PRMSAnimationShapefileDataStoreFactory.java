@@ -70,6 +70,11 @@ public class PRMSAnimationShapefileDataStoreFactory implements DataStoreFactoryS
                 new KVP(Param.EXT, "shp"));
     public static final Param SHAPEFILE_NHRU =
             new Param("shapefile_nhru", String.class, "Shapefile NHRU Identifying Attribute", true);
+    public static final Param AGGREGATES =
+            new Param("prms_aggregates", Boolean.class, "Expose <variable>_min, _max and _mean attributes aggregated over the requested time window", false, Boolean.FALSE);
+    public static final Param AGGREGATE_PYRAMID =
+            new Param("prms_aggregate_pyramid", Boolean.class, "Precompute aggregates over blocks of timesteps alongside the PRMS Animation File", false, Boolean.FALSE,
+                new KVP(Param.LEVEL, "advanced"));
 
     @Override
     public Param[] getParametersInfo() {
@@ -78,6 +83,8 @@ public class PRMSAnimationShapefileDataStoreFactory implements DataStoreFactoryS
             PRMS_ANIMATION,
             SHAPEFILE,
             SHAPEFILE_NHRU,
+            AGGREGATES,
+            AGGREGATE_PYRAMID,
         };
     }
     
@@ -135,7 +142,9 @@ public class PRMSAnimationShapefileDataStoreFactory implements DataStoreFactoryS
                 (URI) NAMESPACE.lookUp(params),
                 (URL) PRMS_ANIMATION.lookUp(params),
                 (URL) SHAPEFILE.lookUp(params),
-                (String) SHAPEFILE_NHRU.lookUp(params));
+                (String) SHAPEFILE_NHRU.lookUp(params),
+                Boolean.TRUE.equals(AGGREGATES.lookUp(params)),
+                Boolean.TRUE.equals(AGGREGATE_PYRAMID.lookUp(params)));
     }
 
     @Override
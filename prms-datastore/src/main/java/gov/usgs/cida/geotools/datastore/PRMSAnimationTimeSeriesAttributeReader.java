@@ -0,0 +1,101 @@
+package gov.usgs.cida.geotools.datastore;
+
+import gov.usgs.cida.prms.PRMSAnimationFileMetaData;
+import gov.usgs.cida.prms.PRMSAnimationTimeSeries;
+import gov.usgs.cida.prms.RecordEntryDecoder;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import org.geotools.data.AttributeReader;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+
+/**
+ * Reads the records of a single HRU, one per timestep, using
+ * {@link PRMSAnimationTimeSeries} instead of scanning every record.
+ *
+ * @author tkunicki
+ */
+public class PRMSAnimationTimeSeriesAttributeReader implements AttributeReader {
+
+    private final SimpleFeatureType featureType;
+    private final int readerAttributeCount;
+
+    private final int[] readerAttributeToRecordEntryIndices;
+    private final int[] readerAttributeToSlots;
+
+    private final PRMSAnimationTimeSeries timeSeries;
+
+    private int timeSeriesIndex = -1;
+
+    PRMSAnimationTimeSeriesAttributeReader(PRMSAnimationFileMetaData animationFileMetaData, SimpleFeatureType featureType, int hru, int timeStepIndexStart, int timeStepIndexEnd) throws IOException {
+        this.featureType = featureType;
+        this.readerAttributeCount = featureType.getAttributeCount();
+        readerAttributeToRecordEntryIndices = new int[readerAttributeCount];
+        Set<Integer> valueColumnIndices = new TreeSet<Integer>();
+        for (int readerAttributeIndex = 0; readerAttributeIndex < readerAttributeCount; ++readerAttributeIndex) {
+            int recordEntryIndex = animationFileMetaData.getRecordEntryIndex(featureType.getDescriptor(readerAttributeIndex).getLocalName());
+            readerAttributeToRecordEntryIndices[readerAttributeIndex] = recordEntryIndex;
+            if (recordEntryIndex > 1) {
+                valueColumnIndices.add(recordEntryIndex);
+            }
+        }
+        int[] columnIndices = new int[valueColumnIndices.size()];
+        int slot = 0;
+        for (Integer columnIndex : valueColumnIndices) {
+            columnIndices[slot++] = columnIndex;
+        }
+        timeSeries = PRMSAnimationTimeSeries.read(animationFileMetaData, hru, columnIndices, timeStepIndexStart, timeStepIndexEnd);
+        readerAttributeToSlots = new int[readerAttributeCount];
+        for (int readerAttributeIndex = 0; readerAttributeIndex < readerAttributeCount; ++readerAttributeIndex) {
+            readerAttributeToSlots[readerAttributeIndex] = timeSeries.getSlot(readerAttributeToRecordEntryIndices[readerAttributeIndex]);
+        }
+    }
+
+    @Override
+    public int getAttributeCount() {
+        return featureType.getAttributeCount();
+    }
+
+    @Override
+    public AttributeDescriptor getAttributeType(int index) throws ArrayIndexOutOfBoundsException {
+        return featureType.getDescriptor(index);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // values were read on construction
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        return timeSeriesIndex + 1 < timeSeries.getTimeStepCount();
+    }
+
+    @Override
+    public void next() throws IOException, IllegalArgumentException, NoSuchElementException {
+        if (hasNext()) {
+            ++timeSeriesIndex;
+        } else {
+            throw new NoSuchElementException();
+        }
+    }
+
+    @Override
+    public Object read(int index) throws IOException, ArrayIndexOutOfBoundsException {
+        if (index < readerAttributeCount) {
+            switch (readerAttributeToRecordEntryIndices[index]) {
+                case 0:
+                    return timeSeries.getTimeStep(timeSeriesIndex).toDate();
+                case 1:
+                    return timeSeries.getHRU();
+                default:
+                    return timeSeries.getValue(readerAttributeToSlots[index], timeSeriesIndex);
+            }
+        } else {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+    }
+
+}
@@ -21,7 +21,7 @@ public class PRMSAnimationTimeStampAttributeReader implements AttributeReader {
     PRMSAnimationTimeStampAttributeReader(PRMSAnimationFileMetaData animationFileMetaData, SimpleFeatureType featureType) throws IOException {
         this.animationFileMetaData = animationFileMetaData;
         this.featureType = featureType;
-        this.timeStampIndex = 0;
+        this.timeStampIndex = -1;
     }
 
     @Override
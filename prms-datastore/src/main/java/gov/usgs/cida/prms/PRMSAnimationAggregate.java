@@ -0,0 +1,195 @@
+package gov.usgs.cida.prms;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Per HRU statistics of animation file columns over a contiguous span of
+ * timesteps.  Values are indexed by the record offset of the HRU within a
+ * timestep.
+ *
+ * @author tkunicki
+ */
+public class PRMSAnimationAggregate {
+
+	public enum Statistic {
+		MIN("_min"),
+		MAX("_max"),
+		MEAN("_mean");
+
+		private final String suffix;
+
+		private Statistic(String suffix) {
+			this.suffix = suffix;
+		}
+
+		public String getSuffix() {
+			return suffix;
+		}
+	}
+
+	private final int timeStepIndexStart;
+	private final int timeStepIndexEnd;
+	private final int[] columnToSlot;
+
+	// [slot][record offset]
+	private final float[][] minimum;
+	private final float[][] maximum;
+	private final double[][] sum;
+	private int timeStepCount;
+
+	private PRMSAnimationAggregate(PRMSAnimationFileMetaData metaData, int[] columnIndices, int timeStepIndexStart, int timeStepIndexEnd) {
+		this.timeStepIndexStart = timeStepIndexStart;
+		this.timeStepIndexEnd = timeStepIndexEnd;
+		this.columnToSlot = new int[metaData.getRecordEntryCount()];
+		Arrays.fill(columnToSlot, -1);
+		for (int slot = 0; slot < columnIndices.length; ++slot) {
+			columnToSlot[columnIndices[slot]] = slot;
+		}
+		int recordCount = metaData.getTimeStepRecordCount();
+		minimum = new float[columnIndices.length][recordCount];
+		maximum = new float[columnIndices.length][recordCount];
+		sum = new double[columnIndices.length][recordCount];
+		for (int slot = 0; slot < columnIndices.length; ++slot) {
+			Arrays.fill(minimum[slot], Float.POSITIVE_INFINITY);
+			Arrays.fill(maximum[slot], Float.NEGATIVE_INFINITY);
+		}
+	}
+
+	public int getTimeStepIndexStart() {
+		return timeStepIndexStart;
+	}
+
+	public int getTimeStepIndexEnd() {
+		return timeStepIndexEnd;
+	}
+
+	/**
+	 * @return the statistic or null if the column wasn't aggregated or the
+	 *         timestep span was empty.
+	 */
+	public Float getValue(int columnIndex, Statistic statistic, int recordOffset) {
+		int slot = columnToSlot[columnIndex];
+		if (slot < 0 || timeStepCount == 0) {
+			return null;
+		}
+		switch (statistic) {
+			case MIN:
+				return minimum[slot][recordOffset];
+			case MAX:
+				return maximum[slot][recordOffset];
+			default:
+				return (float) (sum[slot][recordOffset] / timeStepCount);
+		}
+	}
+
+	/**
+	 * Aggregates the columns over [timeStepIndexStart, timeStepIndexEnd].
+	 * When a pyramid is available the largest precomputed blocks aligned
+	 * within the span are used and only the remaining timesteps are read.
+	 *
+	 * @param pyramid precomputed block aggregates, may be null.  Acquired for
+	 *        the computation, raw timesteps are read if it was closed.
+	 */
+	public static PRMSAnimationAggregate compute(PRMSAnimationFileMetaData metaData, int[] columnIndices, int timeStepIndexStart, int timeStepIndexEnd, PRMSAnimationAggregatePyramid pyramid) throws IOException {
+		if (pyramid != null && !pyramid.acquire()) {
+			pyramid = null;
+		}
+		try {
+			return compute(metaData, columnIndices, timeStepIndexStart, timeStepIndexEnd, pyramid, pyramid == null ? null : pyramid.createBlockBuffer());
+		} finally {
+			if (pyramid != null) {
+				pyramid.release();
+			}
+		}
+	}
+
+	private static PRMSAnimationAggregate compute(PRMSAnimationFileMetaData metaData, int[] columnIndices, int timeStepIndexStart, int timeStepIndexEnd, PRMSAnimationAggregatePyramid pyramid, ByteBuffer blockBuffer) throws IOException {
+		PRMSAnimationAggregate aggregate = new PRMSAnimationAggregate(metaData, columnIndices, timeStepIndexStart, timeStepIndexEnd);
+		int timeStepIndex = timeStepIndexStart;
+		while (timeStepIndex <= timeStepIndexEnd) {
+			int level = pyramid == null ?
+					-1 :
+					pyramid.findLevel(timeStepIndex, timeStepIndexEnd);
+			if (level < 0) {
+				// accumulate raw timesteps up to the next aligned block
+				int timeStepIndexRawEnd = pyramid == null ?
+						timeStepIndexEnd :
+						Math.min(timeStepIndexEnd, pyramid.nextAlignedTimeStepIndex(timeStepIndex) - 1);
+				aggregate.accumulateTimeSteps(metaData, columnIndices, timeStepIndex, timeStepIndexRawEnd);
+				timeStepIndex = timeStepIndexRawEnd + 1;
+			} else {
+				int blockSize = pyramid.getBlockTimeStepCount(level);
+				int blockIndex = timeStepIndex / blockSize;
+				for (int slot = 0; slot < columnIndices.length; ++slot) {
+					pyramid.accumulateBlock(level, blockIndex, columnIndices[slot], aggregate.minimum[slot], aggregate.maximum[slot], aggregate.sum[slot], blockBuffer);
+				}
+				aggregate.timeStepCount += blockSize;
+				timeStepIndex += blockSize;
+			}
+		}
+		return aggregate;
+	}
+
+	private void accumulateTimeSteps(PRMSAnimationFileMetaData metaData, int[] columnIndices, int timeStepIndexStart, int timeStepIndexEnd) throws IOException {
+		int timeStepRecordCount = metaData.getTimeStepRecordCount();
+		Object[] values = PRMSAnimationRecordBuffer.createValues(metaData, columnIndices, timeStepRecordCount);
+		RecordEntryDecoder[] decoders = new RecordEntryDecoder[columnIndices.length];
+		for (int slot = 0; slot < columnIndices.length; ++slot) {
+			decoders[slot] = metaData.getRecordEntryDescriptors().get(columnIndices[slot]).getDecoder();
+		}
+		for (int timeStepIndex = timeStepIndexStart; timeStepIndex <= timeStepIndexEnd; ++timeStepIndex) {
+			// map a single timestep at a time, long spans may exceed the
+			// maximum mappable region
+			int recordIndexOffset = timeStepIndex * timeStepRecordCount;
+			PRMSAnimationRecordBuffer recordBuffer = null;
+			try {
+				recordBuffer = new PRMSAnimationRecordBuffer(
+						metaData,
+						recordIndexOffset,
+						recordIndexOffset + timeStepRecordCount);
+				recordBuffer.fillColumns(columnIndices, recordIndexOffset, timeStepRecordCount, 1, values, 0);
+			} finally {
+				if (recordBuffer != null) {
+					recordBuffer.close();
+				}
+			}
+			for (int slot = 0; slot < columnIndices.length; ++slot) {
+				Object slotValues = values[slot];
+				RecordEntryDecoder decoder = decoders[slot];
+				float[] slotMinimum = minimum[slot];
+				float[] slotMaximum = maximum[slot];
+				double[] slotSum = sum[slot];
+				for (int recordOffset = 0; recordOffset < timeStepRecordCount; ++recordOffset) {
+					float value = (float) decoder.getDouble(slotValues, recordOffset);
+					if (value < slotMinimum[recordOffset]) {
+						slotMinimum[recordOffset] = value;
+					}
+					if (value > slotMaximum[recordOffset]) {
+						slotMaximum[recordOffset] = value;
+					}
+					slotSum[recordOffset] += value;
+				}
+			}
+			++timeStepCount;
+		}
+	}
+
+	int getTimeStepCount() {
+		return timeStepCount;
+	}
+
+	float[] getMinimum(int slot) {
+		return minimum[slot];
+	}
+
+	float[] getMaximum(int slot) {
+		return maximum[slot];
+	}
+
+	double[] getSum(int slot) {
+		return sum[slot];
+	}
+
+}
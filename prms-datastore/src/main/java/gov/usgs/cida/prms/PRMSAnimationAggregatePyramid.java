@@ -0,0 +1,326 @@
+package gov.usgs.cida.prms;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Precomputed per HRU min/max/sum of every value column over fixed blocks of
+ * timesteps, persisted as a sidecar next to the animation file.  Level 0
+ * blocks span {@link #DEFAULT_BLOCK_TIMESTEP_COUNT} timesteps and each
+ * following level spans that many blocks of the previous level.  Only
+ * complete, aligned blocks are stored.
+ *
+ * Sidecar layout (big endian):
+ * <pre>
+ *   header: magic, version, timeStepCount, timeStepRecordCount,
+ *           recordEntryCount, blockTimeStepCount, levelCount (ints)
+ *   for each level, block and value column:
+ *           min (float[timeStepRecordCount]), max (float[timeStepRecordCount]),
+ *           sum (double[timeStepRecordCount])
+ * </pre>
+ *
+ * Reference counted so the owner can close a pyramid that is still being
+ * read: the file is closed once the owner and every {@link #acquire()}
+ * caller have released it.
+ *
+ * @author tkunicki
+ */
+public class PRMSAnimationAggregatePyramid {
+
+	public final static String SUFFIX = ".aggregate";
+
+	public final static int DEFAULT_BLOCK_TIMESTEP_COUNT = 32;
+
+	private final static int MAGIC = 0x50524D41; // "PRMA"
+	private final static int VERSION = 1;
+	private final static int HEADER_SIZE_BYTES = 7 * 4;
+
+	// timestamp and nhru aren't aggregated
+	private final static int COLUMN_INDEX_OFFSET = 2;
+
+	private final int timeStepRecordCount;
+	private final int columnCount;
+	private final int blockTimeStepCount;
+	private final int[] levelBlockTimeStepCount;
+	private final int[] levelBlockCount;
+	private final long[] levelOffsetBytes;
+	private final long blockColumnSizeBytes;
+
+	private RandomAccessFile randomAccessFile;
+	private FileChannel channel;
+
+	// the owner's reference plus one per acquire(), guarded by this
+	private int referenceCount = 1;
+	private boolean closed;
+
+	// levels below this are complete and usable, only less than levelCount
+	// while building.
+	private int levelCountAvailable;
+
+	private PRMSAnimationAggregatePyramid(PRMSAnimationFileMetaData metaData, int blockTimeStepCount) {
+		this.timeStepRecordCount = metaData.getTimeStepRecordCount();
+		this.columnCount = metaData.getRecordEntryCount() - COLUMN_INDEX_OFFSET;
+		this.blockTimeStepCount = blockTimeStepCount;
+
+		int timeStepCount = metaData.getTimeStepCount();
+		int levelCount = 0;
+		for (long size = blockTimeStepCount; size <= timeStepCount; size *= blockTimeStepCount) {
+			++levelCount;
+		}
+		levelBlockTimeStepCount = new int[levelCount];
+		levelBlockCount = new int[levelCount];
+		levelOffsetBytes = new long[levelCount];
+		blockColumnSizeBytes = (long) timeStepRecordCount * (4 + 4 + 8);
+		long offsetBytes = HEADER_SIZE_BYTES;
+		int size = blockTimeStepCount;
+		for (int level = 0; level < levelCount; ++level) {
+			levelBlockTimeStepCount[level] = size;
+			levelBlockCount[level] = timeStepCount / size;
+			levelOffsetBytes[level] = offsetBytes;
+			offsetBytes += levelBlockCount[level] * columnCount * blockColumnSizeBytes;
+			size *= blockTimeStepCount;
+		}
+	}
+
+	/**
+	 * Opens the pyramid for the animation file, building it first if it is
+	 * missing or stale.
+	 *
+	 * @return the pyramid or null if the file has too few timesteps to
+	 *         benefit from one.
+	 */
+	public static PRMSAnimationAggregatePyramid getPyramid(PRMSAnimationFileMetaData metaData) throws IOException {
+		if (metaData.getTimeStepCount() < DEFAULT_BLOCK_TIMESTEP_COUNT) {
+			return null;
+		}
+		File animationFile = new File(metaData.getAnimationFilePath());
+		File pyramidFile = new File(metaData.getAnimationFilePath() + SUFFIX);
+		if (pyramidFile.exists() && pyramidFile.lastModified() > animationFile.lastModified()) {
+			PRMSAnimationAggregatePyramid pyramid = new PRMSAnimationAggregatePyramid(metaData, DEFAULT_BLOCK_TIMESTEP_COUNT);
+			try {
+				if (pyramid.open(pyramidFile, metaData)) {
+					return pyramid;
+				}
+			} catch (IOException e) {
+				System.out.println("Error reading " + pyramidFile.getPath() + ", will attempt to regenerate...");
+			}
+			pyramid.close();
+		}
+		build(metaData, pyramidFile);
+		PRMSAnimationAggregatePyramid pyramid = new PRMSAnimationAggregatePyramid(metaData, DEFAULT_BLOCK_TIMESTEP_COUNT);
+		if (!pyramid.open(pyramidFile, metaData)) {
+			pyramid.close();
+			throw new IOException("Invalid aggregate pyramid " + pyramidFile.getPath());
+		}
+		return pyramid;
+	}
+
+	private boolean open(File pyramidFile, PRMSAnimationFileMetaData metaData) throws IOException {
+		randomAccessFile = new RandomAccessFile(pyramidFile, "r");
+		channel = randomAccessFile.getChannel();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE_BYTES);
+		read(header, 0);
+		boolean valid =
+				header.getInt() == MAGIC &&
+				header.getInt() == VERSION &&
+				header.getInt() == metaData.getTimeStepCount() &&
+				header.getInt() == timeStepRecordCount &&
+				header.getInt() == metaData.getRecordEntryCount() &&
+				header.getInt() == blockTimeStepCount &&
+				header.getInt() == levelBlockCount.length;
+		levelCountAvailable = levelBlockCount.length;
+		return valid;
+	}
+
+	private static void build(PRMSAnimationFileMetaData metaData, File pyramidFile) throws IOException {
+		// unique so concurrent writers of the same sidecar don't collide
+		File pyramidFileTemp = File.createTempFile(pyramidFile.getName(), ".tmp", pyramidFile.getAbsoluteFile().getParentFile());
+		PRMSAnimationAggregatePyramid pyramid = new PRMSAnimationAggregatePyramid(metaData, DEFAULT_BLOCK_TIMESTEP_COUNT);
+		int[] columnIndices = new int[pyramid.columnCount];
+		for (int slot = 0; slot < columnIndices.length; ++slot) {
+			columnIndices[slot] = slot + COLUMN_INDEX_OFFSET;
+		}
+		try {
+			pyramid.randomAccessFile = new RandomAccessFile(pyramidFileTemp, "rw");
+			pyramid.randomAccessFile.setLength(0);
+			pyramid.channel = pyramid.randomAccessFile.getChannel();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE_BYTES);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(metaData.getTimeStepCount());
+			header.putInt(pyramid.timeStepRecordCount);
+			header.putInt(metaData.getRecordEntryCount());
+			header.putInt(pyramid.blockTimeStepCount);
+			header.putInt(pyramid.levelBlockCount.length);
+			header.flip();
+			pyramid.write(header, 0);
+
+			ByteBuffer blockColumnBuffer = ByteBuffer.allocate((int) pyramid.blockColumnSizeBytes);
+			// each level is built from the blocks of the level below it
+			for (int level = 0; level < pyramid.levelBlockCount.length; ++level) {
+				int size = pyramid.levelBlockTimeStepCount[level];
+				for (int blockIndex = 0; blockIndex < pyramid.levelBlockCount[level]; ++blockIndex) {
+					PRMSAnimationAggregate aggregate = PRMSAnimationAggregate.compute(
+							metaData,
+							columnIndices,
+							blockIndex * size,
+							(blockIndex + 1) * size - 1,
+							pyramid);
+					for (int slot = 0; slot < columnIndices.length; ++slot) {
+						blockColumnBuffer.clear();
+						blockColumnBuffer.asFloatBuffer().put(aggregate.getMinimum(slot));
+						blockColumnBuffer.position(4 * pyramid.timeStepRecordCount);
+						blockColumnBuffer.asFloatBuffer().put(aggregate.getMaximum(slot));
+						blockColumnBuffer.position(8 * pyramid.timeStepRecordCount);
+						blockColumnBuffer.asDoubleBuffer().put(aggregate.getSum(slot));
+						blockColumnBuffer.clear();
+						pyramid.write(blockColumnBuffer, pyramid.getBlockColumnOffsetBytes(level, blockIndex, slot));
+					}
+				}
+				pyramid.levelCountAvailable = level + 1;
+			}
+		} finally {
+			pyramid.close();
+		}
+		if (!pyramidFileTemp.renameTo(pyramidFile)) {
+			// rename doesn't replace an existing file on every platform
+			pyramidFile.delete();
+			if (!pyramidFileTemp.renameTo(pyramidFile)) {
+				pyramidFileTemp.delete();
+				throw new IOException("Unable to rename " + pyramidFileTemp.getPath());
+			}
+		}
+	}
+
+	public int getBlockTimeStepCount(int level) {
+		return levelBlockTimeStepCount[level];
+	}
+
+	/**
+	 * @return the coarsest level with a block starting at timeStepIndex that
+	 *         ends at or before timeStepIndexEnd, -1 if there is none.
+	 */
+	public int findLevel(int timeStepIndex, int timeStepIndexEnd) {
+		for (int level = levelCountAvailable - 1; level >= 0; --level) {
+			int size = levelBlockTimeStepCount[level];
+			if (timeStepIndex % size == 0 &&
+					(long) timeStepIndex + size - 1 <= timeStepIndexEnd &&
+					timeStepIndex / size < levelBlockCount[level]) {
+				return level;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the first timestep index after timeStepIndex that starts a
+	 *         level 0 block.
+	 */
+	public int nextAlignedTimeStepIndex(int timeStepIndex) {
+		return (timeStepIndex / blockTimeStepCount + 1) * blockTimeStepCount;
+	}
+
+	/**
+	 * @return a buffer for {@link #accumulateBlock}, reusable across blocks
+	 *         and columns by a single caller.
+	 */
+	public ByteBuffer createBlockBuffer() {
+		return ByteBuffer.allocate((int) blockColumnSizeBytes);
+	}
+
+	/**
+	 * Combines the stored block values for a column into the per HRU
+	 * accumulators.
+	 *
+	 * @param buffer from {@link #createBlockBuffer()}
+	 */
+	public void accumulateBlock(int level, int blockIndex, int columnIndex, float[] minimum, float[] maximum, double[] sum, ByteBuffer buffer) throws IOException {
+		read(buffer, getBlockColumnOffsetBytes(level, blockIndex, columnIndex - COLUMN_INDEX_OFFSET));
+		FloatBuffer minimumBuffer = buffer.asFloatBuffer();
+		buffer.position(4 * timeStepRecordCount);
+		FloatBuffer maximumBuffer = buffer.asFloatBuffer();
+		buffer.position(8 * timeStepRecordCount);
+		DoubleBuffer sumBuffer = buffer.asDoubleBuffer();
+		for (int recordOffset = 0; recordOffset < timeStepRecordCount; ++recordOffset) {
+			float value = minimumBuffer.get(recordOffset);
+			if (value < minimum[recordOffset]) {
+				minimum[recordOffset] = value;
+			}
+			value = maximumBuffer.get(recordOffset);
+			if (value > maximum[recordOffset]) {
+				maximum[recordOffset] = value;
+			}
+			sum[recordOffset] += sumBuffer.get(recordOffset);
+		}
+	}
+
+	private long getBlockColumnOffsetBytes(int level, int blockIndex, int slot) {
+		return levelOffsetBytes[level] + ((long) blockIndex * columnCount + slot) * blockColumnSizeBytes;
+	}
+
+	private void read(ByteBuffer buffer, long position) throws IOException {
+		buffer.clear();
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read < 0) {
+				throw new IOException("Incomplete read.");
+			}
+		}
+		buffer.flip();
+	}
+
+	private void write(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + buffer.position());
+		}
+	}
+
+	/**
+	 * Adds a reference, the pyramid stays open until {@link #release()}.
+	 *
+	 * @return false if the pyramid was already closed and must not be read.
+	 */
+	public synchronized boolean acquire() {
+		if (referenceCount == 0) {
+			return false;
+		}
+		++referenceCount;
+		return true;
+	}
+
+	public synchronized void release() {
+		if (referenceCount > 0 && --referenceCount == 0) {
+			closeFile();
+		}
+	}
+
+	/**
+	 * Releases the owner's reference, calling it more than once has no
+	 * further effect.
+	 */
+	public synchronized void close() {
+		if (!closed) {
+			closed = true;
+			release();
+		}
+	}
+
+	private void closeFile() {
+		if (randomAccessFile != null) {
+			try {
+				randomAccessFile.close();
+			} catch (IOException e) {
+				// ignore
+			}
+			randomAccessFile = null;
+			channel = null;
+		}
+	}
+
+}
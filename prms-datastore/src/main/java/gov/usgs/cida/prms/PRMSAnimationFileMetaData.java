@@ -10,20 +10,24 @@ import com.thoughtworks.xstream.io.xml.DomDriver;
 import static gov.usgs.cida.prms.PRMSAnimationFileUtility.*;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
 
@@ -34,6 +38,14 @@ import org.joda.time.format.ISODateTimeFormat;
 public class PRMSAnimationFileMetaData {
 
 
+	private final static String XML_SUFFIX = ".xml";
+
+	private final static String BINARY_SUFFIX = ".meta";
+	private final static String BINARY_CHARSET = "UTF-8";
+	private final static int BINARY_MAGIC = 0x50524D53; // "PRMS"
+	private final static int BINARY_VERSION = 4;
+
+	// only used to read (migrate) metadata cached by older versions
 	private final static XStream XSTREAM;
 
 	static {
@@ -67,49 +79,331 @@ public class PRMSAnimationFileMetaData {
 
 		PRMSAnimationFileMetaData metaData = null;
 
-		String metaDataPath = file.getCanonicalPath() + ".xml";
-		File metaDataFile = new File(metaDataPath);
+		// captured first so a modification while loading is seen as stale later
+		long animationFileLastModified = file.lastModified();
+		long animationFileSizeBytes = file.length();
+
+		String animationFilePath = file.getCanonicalPath();
+		File binaryMetaDataFile = new File(animationFilePath + BINARY_SUFFIX);
+		File xmlMetaDataFile = new File(animationFilePath + XML_SUFFIX);
 
-		if(metaDataFile.exists() && metaDataFile.lastModified() > file.lastModified()) {
-			InputStream inputStream = null;
+		if (binaryMetaDataFile.exists()) {
+			boolean current = binaryMetaDataFile.lastModified() > animationFileLastModified;
 			try {
-				inputStream = new BufferedInputStream(
-						new FileInputStream(metaDataFile),
-						1 << 20);
-				Object o = XSTREAM.fromXML(inputStream);
-				if(o != null && o instanceof PRMSAnimationFileMetaData) {
-					metaData = (PRMSAnimationFileMetaData)o;
+				metaData = readBinary(binaryMetaDataFile);
+				// a stale sidecar is usually an animation file still being
+				// appended to by a model run, only scan the appended records
+				if (metaData != null && !current && !metaData.parseAppended(file)) {
+					metaData = null;
 				}
 			} catch (Exception e) {
-				System.out.println("Error reading " + metaDataPath + ", will attempt to regenerate...");
-			} finally {
-				if(inputStream != null) {
-					inputStream.close();
-				}
+				metaData = null;
+				System.out.println("Error reading " + binaryMetaDataFile.getPath() + ", will attempt to regenerate...");
+			}
+			if (metaData != null && current) {
+				metaData.animationFileLastModified = animationFileLastModified;
+				metaData.animationFileSizeBytes = animationFileSizeBytes;
+				return metaData;
 			}
 		}
 
-		if(metaData == null) {
-			metaData = new PRMSAnimationFileMetaData(file);
-
-			OutputStream outputStream = null;
+		// XML metadata is only read to migrate caches generated by older versions
+		if (metaData == null && xmlMetaDataFile.exists() && xmlMetaDataFile.lastModified() > animationFileLastModified) {
 			try {
-				outputStream = new BufferedOutputStream(
-						new FileOutputStream(metaDataFile),
-						1 << 20);
-				XSTREAM.toXML(metaData, outputStream);
+				metaData = readXML(xmlMetaDataFile);
 			} catch (Exception e) {
-				System.out.println("Error writing " + metaDataPath);
-			} finally {
-				if (outputStream != null) {
-					outputStream.close();
-				}
+				System.out.println("Error reading " + xmlMetaDataFile.getPath() + ", will attempt to regenerate...");
 			}
 		}
 
+		if (metaData == null) {
+			metaData = new PRMSAnimationFileMetaData(file);
+		}
+		metaData.animationFileLastModified = animationFileLastModified;
+		metaData.animationFileSizeBytes = animationFileSizeBytes;
+
+		try {
+			writeBinary(metaData, binaryMetaDataFile);
+		} catch (Exception e) {
+			System.out.println("Error writing " + binaryMetaDataFile.getPath());
+		}
+
 		return metaData;
 	}
 
+	private static PRMSAnimationFileMetaData readXML(File metaDataFile) throws IOException {
+		InputStream inputStream = null;
+		try {
+			inputStream = new BufferedInputStream(
+					new FileInputStream(metaDataFile),
+					1 << 20);
+			Object o = XSTREAM.fromXML(inputStream);
+			if (o instanceof PRMSAnimationFileMetaData) {
+				PRMSAnimationFileMetaData metaData = (PRMSAnimationFileMetaData) o;
+				metaData.initializeTimeStepIndex();
+				metaData.initializeHRUIndex();
+				return metaData;
+			}
+			return null;
+		} finally {
+			if (inputStream != null) {
+				inputStream.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads metadata persisted by {@link #writeBinary(PRMSAnimationFileMetaData, File)}.
+	 * The sidecar is mapped and decoded in a single pass.
+	 *
+	 * @return the metadata or null if the sidecar was written with an
+	 *         unsupported format version.
+	 */
+	private static PRMSAnimationFileMetaData readBinary(File metaDataFile) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(metaDataFile, "r");
+		try {
+			ByteBuffer buffer = randomAccessFile.getChannel().map(MapMode.READ_ONLY, 0, randomAccessFile.length());
+
+			if (buffer.getInt() != BINARY_MAGIC || buffer.getInt() != BINARY_VERSION) {
+				return null;
+			}
+
+			PRMSAnimationFileMetaData metaData = new PRMSAnimationFileMetaData();
+
+			metaData.animationFilePath = readBinaryString(buffer);
+			metaData.recordEntryCount = buffer.getInt();
+			metaData.endOfLineSizeBytes = buffer.getInt();
+			metaData.headerSizeBytes = buffer.getInt();
+			metaData.dataSizeBytes = buffer.getLong();
+			metaData.recordCount = buffer.getInt();
+			metaData.recordSizeBytes = buffer.getInt();
+			metaData.timeStepCount = buffer.getInt();
+			metaData.timeStepRecordCount = buffer.getInt();
+			metaData.timeStepSizeBytes = buffer.getInt();
+
+			metaData.recordEntryDescriptors = new ArrayList<RecordEntryDescriptor>(metaData.recordEntryCount);
+			metaData.recordEntryRanges = new ArrayList<RecordEntryRange>(metaData.recordEntryCount);
+			for (int recordEntryIndex = 0; recordEntryIndex < metaData.recordEntryCount; ++recordEntryIndex) {
+				String name = readBinaryString(buffer);
+				RecordEntryDescriptor.Type type = RecordEntryDescriptor.Type.valueOf(readBinaryString(buffer));
+				int offset = buffer.getInt();
+				int length = buffer.getInt();
+				boolean trimRequired = buffer.get() != 0;
+				metaData.recordEntryDescriptors.add(new RecordEntryDescriptor(name, recordEntryIndex, type, offset, length, trimRequired));
+				switch (type) {
+					case STRING:
+						metaData.recordEntryRanges.add(new RecordEntryRange<DateTime>(
+								new DateTime(buffer.getLong(), DateTimeZone.UTC),
+								new DateTime(buffer.getLong(), DateTimeZone.UTC)));
+						break;
+					case INT:
+						metaData.recordEntryRanges.add(new RecordEntryRange<Integer>(buffer.getInt(), buffer.getInt()));
+						break;
+					case DOUBLE:
+						metaData.recordEntryRanges.add(new RecordEntryRange<Double>(buffer.getDouble(), buffer.getDouble()));
+						break;
+					default:
+						metaData.recordEntryRanges.add(new RecordEntryRange<Float>(buffer.getFloat(), buffer.getFloat()));
+				}
+				metaData.recordEntryNameToIndex.put(name, recordEntryIndex);
+			}
+
+			if (buffer.get() != 0) {
+				RecordEntryHistogram[] histograms = new RecordEntryHistogram[metaData.recordEntryCount];
+				for (int recordEntryIndex = 2; recordEntryIndex < metaData.recordEntryCount; ++recordEntryIndex) {
+					histograms[recordEntryIndex] = readBinaryHistogram(buffer);
+				}
+				metaData.recordEntryHistograms = Arrays.asList(histograms);
+			}
+
+			int timeStepListSize = buffer.getInt();
+			metaData.timeStepList = new ArrayList<DateTime>(timeStepListSize);
+			long timeStepMillis = 0;
+			for (int timeStepIndex = 0; timeStepIndex < timeStepListSize; ++timeStepIndex) {
+				timeStepMillis += readBinaryVarLong(buffer);
+				metaData.timeStepList.add(new DateTime(timeStepMillis, DateTimeZone.UTC));
+			}
+			metaData.initializeTimeStepIndex();
+
+			if (buffer.get() != 0) {
+				metaData.hruIndex = PRMSAnimationHRUIndex.createDense(buffer.getInt(), metaData.timeStepRecordCount);
+			} else {
+				int[] recordOffsetToHRU = new int[metaData.timeStepRecordCount];
+				int hru = 0;
+				for (int recordOffset = 0; recordOffset < recordOffsetToHRU.length; ++recordOffset) {
+					hru += (int) readBinaryVarLong(buffer);
+					recordOffsetToHRU[recordOffset] = hru;
+				}
+				metaData.hruIndex = PRMSAnimationHRUIndex.create(recordOffsetToHRU);
+			}
+
+			return metaData;
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Persists metadata in a compact, versioned binary form.  Ranges are
+	 * stored as primitives and timesteps are stored as zig-zag/varint encoded
+	 * deltas in epoch milliseconds.  Value column histograms are stored as
+	 * varint bin counts.  The HRU layout is stored as the first id
+	 * when dense, otherwise as deltas between the ids of consecutive records.
+	 * The sidecar is written to a temporary
+	 * file and renamed so concurrent readers never observe a partial write.
+	 */
+	private static void writeBinary(PRMSAnimationFileMetaData metaData, File metaDataFile) throws IOException {
+		// unique so concurrent writers of the same sidecar don't collide
+		File metaDataFileTemp = File.createTempFile(metaDataFile.getName(), ".tmp", metaDataFile.getAbsoluteFile().getParentFile());
+		DataOutputStream outputStream = null;
+		try {
+			outputStream = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(metaDataFileTemp),
+					1 << 20));
+
+			outputStream.writeInt(BINARY_MAGIC);
+			outputStream.writeInt(BINARY_VERSION);
+
+			writeBinaryString(outputStream, metaData.animationFilePath);
+			outputStream.writeInt(metaData.recordEntryCount);
+			outputStream.writeInt(metaData.endOfLineSizeBytes);
+			outputStream.writeInt(metaData.headerSizeBytes);
+			outputStream.writeLong(metaData.dataSizeBytes);
+			outputStream.writeInt(metaData.recordCount);
+			outputStream.writeInt(metaData.recordSizeBytes);
+			outputStream.writeInt(metaData.timeStepCount);
+			outputStream.writeInt(metaData.timeStepRecordCount);
+			outputStream.writeInt(metaData.timeStepSizeBytes);
+
+			for (int recordEntryIndex = 0; recordEntryIndex < metaData.recordEntryCount; ++recordEntryIndex) {
+				RecordEntryDescriptor descriptor = metaData.recordEntryDescriptors.get(recordEntryIndex);
+				RecordEntryRange range = metaData.recordEntryRanges.get(recordEntryIndex);
+				writeBinaryString(outputStream, descriptor.getName());
+				writeBinaryString(outputStream, descriptor.getType().name());
+				outputStream.writeInt(descriptor.getOffset());
+				outputStream.writeInt(descriptor.getLength());
+				outputStream.writeByte(descriptor.isTrimRequired() ? 1 : 0);
+				switch (descriptor.getType()) {
+					case STRING:
+						outputStream.writeLong(((DateTime) range.getMinimum()).getMillis());
+						outputStream.writeLong(((DateTime) range.getMaximum()).getMillis());
+						break;
+					case INT:
+						outputStream.writeInt(((Number) range.getMinimum()).intValue());
+						outputStream.writeInt(((Number) range.getMaximum()).intValue());
+						break;
+					case DOUBLE:
+						outputStream.writeDouble(((Number) range.getMinimum()).doubleValue());
+						outputStream.writeDouble(((Number) range.getMaximum()).doubleValue());
+						break;
+					default:
+						outputStream.writeFloat(((Number) range.getMinimum()).floatValue());
+						outputStream.writeFloat(((Number) range.getMaximum()).floatValue());
+				}
+			}
+
+			if (metaData.recordEntryHistograms != null) {
+				outputStream.writeByte(1);
+				for (int recordEntryIndex = 2; recordEntryIndex < metaData.recordEntryCount; ++recordEntryIndex) {
+					writeBinaryHistogram(outputStream, metaData.recordEntryHistograms.get(recordEntryIndex));
+				}
+			} else {
+				outputStream.writeByte(0);
+			}
+
+			outputStream.writeInt(metaData.timeStepList.size());
+			long lastTimeStepMillis = 0;
+			for (DateTime timeStep : metaData.timeStepList) {
+				long timeStepMillis = timeStep.getMillis();
+				writeBinaryVarLong(outputStream, timeStepMillis - lastTimeStepMillis);
+				lastTimeStepMillis = timeStepMillis;
+			}
+
+			PRMSAnimationHRUIndex hruIndex = metaData.hruIndex;
+			if (hruIndex.isDense()) {
+				outputStream.writeByte(1);
+				outputStream.writeInt(hruIndex.getRecordCount() > 0 ? hruIndex.getHRU(0) : 0);
+			} else {
+				outputStream.writeByte(0);
+				int lastHRU = 0;
+				for (int recordOffset = 0; recordOffset < hruIndex.getRecordCount(); ++recordOffset) {
+					int hru = hruIndex.getHRU(recordOffset);
+					writeBinaryVarLong(outputStream, hru - lastHRU);
+					lastHRU = hru;
+				}
+			}
+		} finally {
+			if (outputStream != null) {
+				outputStream.close();
+			}
+		}
+		if (!metaDataFileTemp.renameTo(metaDataFile)) {
+			// rename doesn't replace an existing file on every platform
+			metaDataFile.delete();
+			if (!metaDataFileTemp.renameTo(metaDataFile)) {
+				metaDataFileTemp.delete();
+				throw new IOException("Unable to rename " + metaDataFileTemp.getPath());
+			}
+		}
+	}
+
+	private static void writeBinaryHistogram(DataOutputStream outputStream, RecordEntryHistogram histogram) throws IOException {
+		outputStream.writeInt(histogram.getBinCount());
+		outputStream.writeDouble(histogram.getBinLower());
+		outputStream.writeDouble(histogram.getBinWidth());
+		outputStream.writeDouble(histogram.getMinimum());
+		outputStream.writeDouble(histogram.getMaximum());
+		for (int binIndex = 0; binIndex < histogram.getBinCount(); ++binIndex) {
+			writeBinaryVarLong(outputStream, histogram.getCount(binIndex));
+		}
+	}
+
+	private static RecordEntryHistogram readBinaryHistogram(ByteBuffer buffer) {
+		long[] binCounts = new long[buffer.getInt()];
+		double binLower = buffer.getDouble();
+		double binWidth = buffer.getDouble();
+		double minimum = buffer.getDouble();
+		double maximum = buffer.getDouble();
+		for (int binIndex = 0; binIndex < binCounts.length; ++binIndex) {
+			binCounts[binIndex] = readBinaryVarLong(buffer);
+		}
+		return new RecordEntryHistogram(binLower, binWidth, minimum, maximum, binCounts);
+	}
+
+	private static void writeBinaryString(DataOutputStream outputStream, String value) throws IOException {
+		byte[] bytes = value.getBytes(BINARY_CHARSET);
+		outputStream.writeInt(bytes.length);
+		outputStream.write(bytes);
+	}
+
+	private static String readBinaryString(ByteBuffer buffer) throws IOException {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, BINARY_CHARSET);
+	}
+
+	private static void writeBinaryVarLong(DataOutputStream outputStream, long value) throws IOException {
+		// zig-zag so negative deltas stay small
+		value = (value << 1) ^ (value >> 63);
+		while ((value & ~0x7FL) != 0) {
+			outputStream.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		outputStream.writeByte((int) value);
+	}
+
+	private static long readBinaryVarLong(ByteBuffer buffer) {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
 	private String animationFilePath;
 	private int recordEntryCount; // number of entry per record
 	private List<RecordEntryDescriptor> recordEntryDescriptors;
@@ -124,6 +418,21 @@ public class PRMSAnimationFileMetaData {
 	private int timeStepSizeBytes;
     private ArrayList<DateTime> timeStepList;
     
+    // HRU layout shared by every timestep, XStream metadata predates it
+    private transient PRMSAnimationHRUIndex hruIndex;
+    
+    // indexed by record entry, null for timestamp and nhru. XStream metadata
+    // predates them, the list is null when migrated
+    private transient List<RecordEntryHistogram> recordEntryHistograms;
+
+    // derived from timeStepList after load, not persisted
+    private transient long[] timeStepMillis;
+    private transient long timeStepStrideMillis; // 0 if timesteps are irregular
+    
+    // state of the animation file when loaded, not persisted
+    private transient long animationFileLastModified;
+    private transient long animationFileSizeBytes;
+    
     private Map<String, Integer> recordEntryNameToIndex = new LinkedHashMap<String, Integer>();
 
 	private PRMSAnimationFileMetaData() {
@@ -135,6 +444,17 @@ public class PRMSAnimationFileMetaData {
 		r.parse();
 	}
 
+	/**
+	 * Extends metadata read from a stale sidecar with the timesteps appended
+	 * to the animation file since, only the appended records are scanned.
+	 *
+	 * @return false if the file changed other than by appending records.
+	 */
+	private boolean parseAppended(File file) throws IOException {
+		Reader r = new Reader(file);
+		return r.parseAppended();
+	}
+
 	public String getAnimationFilePath() {
 		return animationFilePath;
 	}
@@ -150,6 +470,16 @@ public class PRMSAnimationFileMetaData {
     public List<RecordEntryRange> getRecordEntryRanges() {
         return recordEntryRanges;
     }
+    
+    /**
+     * @return distribution of a value column's values over every complete
+     *         timestep, e.g. for quantile classification without scanning
+     *         the file.  null for the timestamp and nhru columns and for
+     *         metadata migrated from XML.
+     */
+    public RecordEntryHistogram getRecordEntryHistogram(int recordEntryIndex) {
+        return recordEntryHistograms == null ? null : recordEntryHistograms.get(recordEntryIndex);
+    }
 
 	public long getDataSizeBytes() {
 		return dataSizeBytes;
@@ -187,10 +517,144 @@ public class PRMSAnimationFileMetaData {
         return Collections.unmodifiableList(timeStepList);
     }
     
+    public PRMSAnimationHRUIndex getHRUIndex() {
+        return hruIndex;
+    }
+    
+    /**
+     * @return false if the animation file was modified since this metadata
+     *         was loaded, e.g. a model run appended timesteps.
+     */
+    public boolean isCurrent() {
+        File file = new File(animationFilePath);
+        return file.lastModified() == animationFileLastModified && file.length() == animationFileSizeBytes;
+    }
+    
+    /**
+     * @return true if this metadata describes the same file as
+     *         <code>previous</code> with zero or more timesteps appended, in
+     *         which case values decoded using <code>previous</code> are still
+     *         valid.
+     */
+    public boolean isAppendOf(PRMSAnimationFileMetaData previous) {
+        if (!animationFilePath.equals(previous.animationFilePath) ||
+                headerSizeBytes != previous.headerSizeBytes ||
+                recordSizeBytes != previous.recordSizeBytes ||
+                recordEntryCount != previous.recordEntryCount ||
+                timeStepRecordCount != previous.timeStepRecordCount ||
+                timeStepCount < previous.timeStepCount) {
+            return false;
+        }
+        for (int timeStepIndex = 0; timeStepIndex < previous.timeStepCount; ++timeStepIndex) {
+            if (timeStepMillis[timeStepIndex] != previous.timeStepMillis[timeStepIndex]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * @return index of the timestep equal to <code>dateTime</code> or -1 if
+     *         there is no such timestep.
+     */
     public int getTimeStepIndex(DateTime dateTime) {
-        return timeStepList.indexOf(dateTime);
+        int timeStepIndex = findTimeStepIndex(dateTime.getMillis());
+        return timeStepIndex < 0 ? -1 : timeStepIndex;
+    }
+
+    /**
+     * @return index of the last timestep at or before <code>dateTime</code>
+     *         or -1 if <code>dateTime</code> precedes the first timestep.
+     */
+    public int getTimeStepIndexPrevious(DateTime dateTime) {
+        int timeStepIndex = findTimeStepIndex(dateTime.getMillis());
+        return timeStepIndex < 0 ? -timeStepIndex - 2 : timeStepIndex;
+    }
+
+    /**
+     * @return index of the first timestep at or after <code>dateTime</code>
+     *         or -1 if <code>dateTime</code> follows the last timestep.
+     */
+    public int getTimeStepIndexNext(DateTime dateTime) {
+        int timeStepIndex = findTimeStepIndex(dateTime.getMillis());
+        if (timeStepIndex < 0) {
+            timeStepIndex = -timeStepIndex - 1;
+            return timeStepIndex < timeStepMillis.length ? timeStepIndex : -1;
+        }
+        return timeStepIndex;
+    }
+
+    /**
+     * @return index of the timestep closest to <code>dateTime</code>, ties
+     *         resolve to the earlier timestep.
+     */
+    public int getTimeStepIndexNearest(DateTime dateTime) {
+        long millis = dateTime.getMillis();
+        int timeStepIndex = findTimeStepIndex(millis);
+        if (timeStepIndex < 0) {
+            int insertionIndex = -timeStepIndex - 1;
+            if (insertionIndex == 0) {
+                timeStepIndex = 0;
+            } else if (insertionIndex == timeStepMillis.length) {
+                timeStepIndex = insertionIndex - 1;
+            } else {
+                timeStepIndex = (timeStepMillis[insertionIndex] - millis) < (millis - timeStepMillis[insertionIndex - 1]) ?
+                        insertionIndex :
+                        insertionIndex - 1;
+            }
+        }
+        return timeStepIndex;
+    }
+
+    // same contract as Arrays.binarySearch(...)
+    private int findTimeStepIndex(long millis) {
+        if (timeStepStrideMillis > 0) {
+            long offset = millis - timeStepMillis[0];
+            if (offset < 0) {
+                return -1;
+            }
+            long timeStepIndex = offset / timeStepStrideMillis;
+            if (timeStepIndex >= timeStepMillis.length) {
+                return -timeStepMillis.length - 1;
+            }
+            return offset % timeStepStrideMillis == 0 ?
+                    (int) timeStepIndex :
+                    (int) -timeStepIndex - 2;
+        }
+        return Arrays.binarySearch(timeStepMillis, millis);
+    }
+
+    private void initializeTimeStepIndex() {
+        int timeStepListSize = timeStepList.size();
+        timeStepMillis = new long[timeStepListSize];
+        for (int timeStepIndex = 0; timeStepIndex < timeStepListSize; ++timeStepIndex) {
+            timeStepMillis[timeStepIndex] = timeStepList.get(timeStepIndex).getMillis();
+        }
+        // PRMS timesteps are typically regular (daily), if so we can compute
+        // the index instead of searching for it.
+        long strideMillis = timeStepListSize > 1 ? timeStepMillis[1] - timeStepMillis[0] : 0;
+        for (int timeStepIndex = 2; timeStepIndex < timeStepListSize && strideMillis > 0; ++timeStepIndex) {
+            if (timeStepMillis[timeStepIndex] - timeStepMillis[timeStepIndex - 1] != strideMillis) {
+                strideMillis = 0;
+            }
+        }
+        timeStepStrideMillis = strideMillis > 0 ? strideMillis : 0;
     }
     
+    // layout of the first timestep, only used when migrating XML metadata
+    private void initializeHRUIndex() throws IOException {
+        int[] recordOffsetToHRU = new int[timeStepRecordCount];
+        PRMSAnimationRecordBuffer recordBuffer = new PRMSAnimationRecordBuffer(this, 0, timeStepRecordCount);
+        try {
+            for (int recordOffset = 0; recordOffset < timeStepRecordCount; ++recordOffset) {
+                recordOffsetToHRU[recordOffset] = recordBuffer.getRecord(recordOffset).getNHRU();
+            }
+        } finally {
+            recordBuffer.close();
+        }
+        hruIndex = PRMSAnimationHRUIndex.create(recordOffsetToHRU);
+    }
+
     public int getRecordEntryIndex(String name) {
         Integer i = recordEntryNameToIndex.get(name);
         if (i != null) {
@@ -210,6 +674,7 @@ public class PRMSAnimationFileMetaData {
 			long start = System.currentTimeMillis();
 			parseHeader();
 			parseData();
+			initializeTimeStepIndex();
 			long delta = System.currentTimeMillis() - start;
 			float deltaSeconds = (float)delta / (float)1000;
 			float sizeMB = (float)(headerSizeBytes + dataSizeBytes) / (float)(1 << 20);
@@ -217,6 +682,58 @@ public class PRMSAnimationFileMetaData {
 			System.out.println("parsed " + animationFilePath + " in " + deltaSeconds + "s (" + rate + " MiB/s)");
 		}
 
+		private boolean parseAppended() throws IOException {
+			// metadata from older versions counted the records of a trailing
+			// incomplete timestep, it can't be resumed
+			if (recordCount <= 0 || recordCount != timeStepCount * timeStepRecordCount || recordEntryHistograms == null) {
+				return false;
+			}
+			long start = System.currentTimeMillis();
+			long fileDataSizeBytes = new File(animationFilePath).length() - headerSizeBytes;
+			if (fileDataSizeBytes < dataSizeBytes) {
+				return false;
+			}
+			int parsedRecordCount = recordCount;
+			int fileRecordCount = (int) (fileDataSizeBytes / (long) recordSizeBytes);
+			// only complete timesteps
+			int recordIndexEnd = parsedRecordCount + (fileRecordCount - parsedRecordCount) / timeStepRecordCount * timeStepRecordCount;
+
+			PRMSAnimationRecordStream recordStream = null;
+			try {
+				recordStream = new PRMSAnimationRecordStream(PRMSAnimationFileMetaData.this, parsedRecordCount - 1, recordIndexEnd, PRMSAnimationRecordStream.DEFAULT_BUFFER_SIZE_BYTES);
+
+				// a rewritten file is unlikely to still have the last parsed
+				// record at the same offset
+				recordStream.next();
+				if (!recordStream.getTimeStamp().equals(timeStepList.get(timeStepList.size() - 1)) ||
+						recordStream.getNHRU() != hruIndex.getHRU(timeStepRecordCount - 1)) {
+					return false;
+				}
+
+				recordCount = fileRecordCount;
+				dataSizeBytes = fileDataSizeBytes;
+
+				MetaDataRecordHandler mdrh = new MetaDataRecordHandler();
+
+				mdrh.resume(fileRecordCount, recordIndexEnd);
+				while (recordStream.hasNext() && mdrh.hasNext(recordStream)) {
+					recordStream.next();
+					mdrh.process(recordStream);
+				}
+				mdrh.finish();
+			} finally {
+				if (recordStream != null) {
+					recordStream.close();
+					recordStream = null;
+				}
+			}
+			initializeTimeStepIndex();
+			long delta = System.currentTimeMillis() - start;
+			float deltaSeconds = (float)delta / (float)1000;
+			System.out.println("parsed " + (recordIndexEnd - parsedRecordCount) + " appended records of " + animationFilePath + " in " + deltaSeconds + "s");
+			return true;
+		}
+
 		private void parseHeader() throws IOException {
 
 			RandomAccessFile randomAccessFile = new RandomAccessFile(animationFilePath, "r");
@@ -225,7 +742,9 @@ public class PRMSAnimationFileMetaData {
 
 			endOfLineSizeBytes = (int) randomAccessFile.getFilePointer() - line.length();
 
+			List<String> commentLines = new ArrayList<String>();
 			while (line.charAt(0) == COMMENT_DELIMITER) {
+				commentLines.add(line);
 				line = randomAccessFile.readLine();
 			}
 
@@ -240,8 +759,7 @@ public class PRMSAnimationFileMetaData {
 			// first data line
 			line = randomAccessFile.readLine();
 
-			recordEntryDescriptors = generateRecordEntryDescriptors(line, recordEntryNames);
-            recordEntryRanges = new ArrayList<RecordEntryRange>(recordEntryNames.length);
+			recordEntryDescriptors = generateRecordEntryDescriptors(line, recordEntryNames, parseDeclaredTypes(commentLines));
 
 			recordSizeBytes = (int) (randomAccessFile.getFilePointer() - headerSizeBytes);
 			dataSizeBytes = randomAccessFile.length() - headerSizeBytes;
@@ -258,21 +776,24 @@ public class PRMSAnimationFileMetaData {
 
 		private void parseData() throws IOException {
 
-			PRMSAnimationRecordBuffer recordBuffer = null;
+			// stream rather than map, a mapping is limited to 2 GiB
+			PRMSAnimationRecordStream recordStream = null;
 			try {
-				recordBuffer = new PRMSAnimationRecordBuffer(PRMSAnimationFileMetaData.this);
+				recordStream = new PRMSAnimationRecordStream(PRMSAnimationFileMetaData.this);
 				
 				MetaDataRecordHandler mdrh = new MetaDataRecordHandler();
 
-				mdrh.initialize(recordBuffer.getRecord(0));
-				for (int recordIndex = 1; recordIndex < recordCount; ++recordIndex) {
-					mdrh.process(recordBuffer.getRecord(recordIndex));
+				recordStream.next();
+				mdrh.initialize(recordStream);
+				while (mdrh.hasNext(recordStream)) {
+					recordStream.next();
+					mdrh.process(recordStream);
 				}
-				mdrh.finish(recordCount);
+				mdrh.finish();
 			} finally {
-				if (recordBuffer != null) {
-					recordBuffer.close();
-					recordBuffer = null;
+				if (recordStream != null) {
+					recordStream.close();
+					recordStream = null;
 				}
 			}
 		}
@@ -282,66 +803,164 @@ public class PRMSAnimationFileMetaData {
 			// TimeStep tracking
 			DateTime currentTimeStep;
             int currentTimeStepRecordCount;
+            
+            // HRU layout of the first timestep, later timesteps must match
+            int[] recordOffsetToHRU;
+
+            // value columns, ranges are derived from these once complete
+            RecordEntryHistogram[] histograms;
+
+            // records of a trailing incomplete timestep aren't processed, they
+            // would be counted again once the timestep is appended to
+            int fileRecordCount;
+            int recordIndexEnd;
+            boolean truncated;
+
+			// continues after the last (complete) timestep of parsed metadata
+			public void resume(int fileRecordCount, int recordIndexEnd) {
+				timeStepCount = timeStepList.size();
+				timeStepRecordCount = hruIndex.getRecordCount();
+				currentTimeStep = timeStepList.get(timeStepCount - 1);
+				currentTimeStepRecordCount = timeStepRecordCount;
+				recordOffsetToHRU = new int[timeStepRecordCount];
+				for (int recordOffset = 0; recordOffset < timeStepRecordCount; ++recordOffset) {
+					recordOffsetToHRU[recordOffset] = hruIndex.getHRU(recordOffset);
+				}
+				histograms = recordEntryHistograms.toArray(new RecordEntryHistogram[recordEntryCount]);
+				this.fileRecordCount = fileRecordCount;
+				this.recordIndexEnd = recordIndexEnd;
+			}
+
+			public void initialize(PRMSAnimationRecordStream record) {
 
-			public MetaDataRecordHandler() {
                 timeStepCount = 1;
 				timeStepRecordCount = -1;
                 timeStepList = new ArrayList<DateTime>();
-			}
-
-			public void initialize(PRMSAnimationRecord record) {
+                recordOffsetToHRU = new int[1024];
 
 				currentTimeStep = record.getTimeStamp();
-                currentTimeStepRecordCount = 0;
+                currentTimeStepRecordCount = 1;
                 timeStepList.add(currentTimeStep);
+                recordOffsetToHRU[0] = record.getNHRU();
 
-				initializeRanges(record);
+                histograms = new RecordEntryHistogram[recordEntryCount];
+                for (int recordEntryIndex = 2; recordEntryIndex < recordEntryCount; ++recordEntryIndex) {
+                    histograms[recordEntryIndex] = new RecordEntryHistogram();
+                }
+                updateHistograms(record);
 
+                fileRecordCount = recordCount;
+                recordIndexEnd = recordCount;
 			}
 
-			public void process(PRMSAnimationRecord record) {
+			// the end is only known once the first timestep is complete
+			public boolean hasNext(PRMSAnimationRecordStream record) {
+				return record.getIndex() + 1 < recordIndexEnd;
+			}
+
+			public void process(PRMSAnimationRecordStream record) {
 
 				DateTime recordTimeStep = record.getTimeStamp();
 
-                updateRangesFromRecord(record);
+                updateHistograms(record);
                 
 				if (!recordTimeStep.equals(currentTimeStep)) {
-                    timeStepList.add(recordTimeStep);
-                    if (currentTimeStep == null) {
-                        if (currentTimeStepRecordCount != timeStepRecordCount) {
-                            throw new IllegalStateException(
-                                    "timestep record mismatch, expected " + timeStepRecordCount +
-                                    " but found " + currentTimeStepRecordCount +
-                                    " for " + currentTimeStep.toString());
-                        }
-                    } else {
+                    if (timeStepRecordCount < 0) {
                         timeStepRecordCount = currentTimeStepRecordCount;
                         timeStepSizeBytes = currentTimeStepRecordCount * recordSizeBytes;
+                        recordIndexEnd = recordIndexEnd / timeStepRecordCount * timeStepRecordCount;
+                    } else if (currentTimeStepRecordCount != timeStepRecordCount) {
+                        truncate("timestep record mismatch, expected " + timeStepRecordCount +
+                                " but found " + currentTimeStepRecordCount +
+                                " for " + currentTimeStep.toString());
+                        return;
                     }
+                    timeStepList.add(recordTimeStep);
                     ++timeStepCount;
                     currentTimeStepRecordCount = 0;
 				}
+                
+                int hru = record.getNHRU();
+                if (timeStepRecordCount < 0) {
+                    if (currentTimeStepRecordCount == recordOffsetToHRU.length) {
+                        recordOffsetToHRU = Arrays.copyOf(recordOffsetToHRU, recordOffsetToHRU.length << 1);
+                    }
+                    recordOffsetToHRU[currentTimeStepRecordCount] = hru;
+                } else if (currentTimeStepRecordCount >= timeStepRecordCount || recordOffsetToHRU[currentTimeStepRecordCount] != hru) {
+                    truncate("HRU layout mismatch, expected " +
+                            (currentTimeStepRecordCount < timeStepRecordCount ? recordOffsetToHRU[currentTimeStepRecordCount] : "end of timestep") +
+                            " but found " + hru +
+                            " for " + recordTimeStep.toString());
+                    return;
+                }
                 ++currentTimeStepRecordCount;
                 currentTimeStep = recordTimeStep;
 			}
 
-			public void finish(int recordIndex) {
+			/**
+			 * Records are joined by their offset within a timestep, which is
+			 * only valid while every timestep has the layout of the first.  The
+			 * timestep that differs and everything after it are ignored, as
+			 * the records of an incomplete timestep are.
+			 */
+			private void truncate(String reason) {
+				DateTime timeStep = timeStepList.remove(timeStepList.size() - 1);
+				--timeStepCount;
+				recordIndexEnd = timeStepCount * timeStepRecordCount;
+				truncated = true;
+				System.out.println("Ignoring timesteps from " + timeStep + " on in " + animationFilePath + ", " + reason);
+			}
 
+			public void finish() {
+                if (timeStepRecordCount < 0) {
+                    // single timestep
+                    timeStepRecordCount = currentTimeStepRecordCount;
+                    timeStepSizeBytes = currentTimeStepRecordCount * recordSizeBytes;
+                }
+                if (recordIndexEnd < fileRecordCount && !truncated) {
+                    // file is still being written, only complete timesteps are usable
+                    System.out.println("Ignoring " + (fileRecordCount - recordIndexEnd) + " records of an incomplete timestep in " + animationFilePath);
+                }
+                // only complete timesteps are covered so appended records can
+                // be parsed by resuming at the end of the last timestep
+                recordCount = timeStepCount * timeStepRecordCount;
+                dataSizeBytes = (long) recordCount * recordSizeBytes;
+                hruIndex = PRMSAnimationHRUIndex.create(Arrays.copyOf(recordOffsetToHRU, timeStepRecordCount));
+                recordEntryHistograms = Arrays.asList(histograms);
+                initializeRanges();
 			}
 
-			private void initializeRanges(PRMSAnimationRecord record) {
-                recordEntryRanges.add(new RecordEntryRange(record.getTimeStamp()));
-                recordEntryRanges.add(new RecordEntryRange(record.getNHRU()));
+			private void updateHistograms(PRMSAnimationRecordStream record) {
                 for (int recordEntryIndex = 2; recordEntryIndex < recordEntryCount; ++recordEntryIndex) {
-                    recordEntryRanges.add(new RecordEntryRange(record.getValue(recordEntryIndex)));
+                    histograms[recordEntryIndex].add(record.getDouble(recordEntryIndex));
                 }
 			}
 
-			private void updateRangesFromRecord(PRMSAnimationRecord record) {
-                recordEntryRanges.get(0).update(record.getTimeStamp());
-                recordEntryRanges.get(1).update(record.getNHRU());
+			private void initializeRanges() {
+                DateTime timeStepMinimum = timeStepList.get(0);
+                DateTime timeStepMaximum = timeStepMinimum;
+                for (DateTime timeStep : timeStepList) {
+                    if (timeStep.getMillis() < timeStepMinimum.getMillis()) {
+                        timeStepMinimum = timeStep;
+                    } else if (timeStep.getMillis() > timeStepMaximum.getMillis()) {
+                        timeStepMaximum = timeStep;
+                    }
+                }
+                int hruMinimum = recordOffsetToHRU[0];
+                int hruMaximum = hruMinimum;
+                for (int recordOffset = 1; recordOffset < timeStepRecordCount; ++recordOffset) {
+                    hruMinimum = Math.min(hruMinimum, recordOffsetToHRU[recordOffset]);
+                    hruMaximum = Math.max(hruMaximum, recordOffsetToHRU[recordOffset]);
+                }
+                recordEntryRanges = new ArrayList<RecordEntryRange>(recordEntryCount);
+                recordEntryRanges.add(new RecordEntryRange<DateTime>(timeStepMinimum, timeStepMaximum));
+                recordEntryRanges.add(new RecordEntryRange<Integer>(hruMinimum, hruMaximum));
                 for (int recordEntryIndex = 2; recordEntryIndex < recordEntryCount; ++recordEntryIndex) {
-                    recordEntryRanges.get(recordEntryIndex).update(record.getValue(recordEntryIndex));
+                    RecordEntryHistogram histogram = histograms[recordEntryIndex];
+                    RecordEntryDecoder decoder = recordEntryDescriptors.get(recordEntryIndex).getDecoder();
+                    recordEntryRanges.add(new RecordEntryRange(
+                            (Comparable) decoder.box(histogram.getMinimum()),
+                            (Comparable) decoder.box(histogram.getMaximum())));
                 }
 			}
 		}
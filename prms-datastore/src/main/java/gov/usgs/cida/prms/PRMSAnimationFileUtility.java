@@ -1,7 +1,11 @@
 package gov.usgs.cida.prms;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormat;
@@ -21,7 +25,23 @@ public class PRMSAnimationFileUtility {
 
     private final static DateTimeFormatter dateTimeFormatter = DateTimeFormat.forPattern(DATE_FORMAT).withZoneUTC();
 
+	// exactly representable as float
+	private final static float[] FLOAT_POWERS_OF_TEN = {
+		1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f
+	};
+
+	// float carries 7 significant digits, PRMS writes %.6e
+	private final static int FLOAT_DECIMALS = 7;
+
 	public static List<RecordEntryDescriptor> generateRecordEntryDescriptors(String record, String[] entryNames) {
+		return generateRecordEntryDescriptors(record, entryNames, new HashMap<String, RecordEntryDescriptor.Type>());
+	}
+
+	/**
+	 * @param declaredTypes value column types by name, see
+	 *        {@link #parseDeclaredTypes(List)}.  Columns not declared are FLOAT.
+	 */
+	public static List<RecordEntryDescriptor> generateRecordEntryDescriptors(String record, String[] entryNames, Map<String, RecordEntryDescriptor.Type> declaredTypes) {
 		int entryCount = entryNames.length;
 
 		List<RecordEntryDescriptor> list = new ArrayList<RecordEntryDescriptor>(entryCount);
@@ -31,7 +51,7 @@ public class PRMSAnimationFileUtility {
 		for(int entryIndex = 0; entryIndex < entryCountMinusOne; ++entryIndex) {
 			int currentOffset = record.indexOf('\t', lastOffset);
 			int length = currentOffset - lastOffset;
-			RecordEntryDescriptor.Type type = determineRecordType(entryIndex, record.substring(lastOffset, currentOffset));
+			RecordEntryDescriptor.Type type = determineRecordType(entryIndex, declaredTypes.get(entryNames[entryIndex]));
 			list.add(new RecordEntryDescriptor(
 					entryNames[entryIndex],
 					entryIndex,
@@ -43,7 +63,7 @@ public class PRMSAnimationFileUtility {
 		}
 
 		int length = record.length() - lastOffset;
-		RecordEntryDescriptor.Type type = determineRecordType(entryCountMinusOne, record.substring(lastOffset));
+		RecordEntryDescriptor.Type type = determineRecordType(entryCountMinusOne, declaredTypes.get(entryNames[entryCountMinusOne]));
 		list.add(new RecordEntryDescriptor(
 					entryNames[entryCountMinusOne],
 					entryCountMinusOne,
@@ -55,15 +75,70 @@ public class PRMSAnimationFileUtility {
 		return list;
 	}
 
-	private static RecordEntryDescriptor.Type determineRecordType(int index, String value) {
+	// the timestamp and nhru columns are the record key, whatever is declared,
+	// value columns are numeric, FLOAT if declared as dates
+	private static RecordEntryDescriptor.Type determineRecordType(int index, RecordEntryDescriptor.Type declaredType) {
 		switch (index) {
 			case 0:
 				return RecordEntryDescriptor.Type.STRING;
 			case 1:
 				return RecordEntryDescriptor.Type.INT;
 			default:
-				return RecordEntryDescriptor.Type.FLOAT;
+				return declaredType == null || declaredType == RecordEntryDescriptor.Type.STRING ?
+						RecordEntryDescriptor.Type.FLOAT : declaredType;
+		}
+	}
+
+	/**
+	 * Column types declared by the DBF block of the header comments, e.g.
+	 * <pre>
+	 * # Begin DBF
+	 * # nhru,-,-,#FIELD_DECIMAL,10,0
+	 * # soil_moist,average,in,FIELD_DECIMAL,14,6
+	 * # End DBF
+	 * </pre>
+	 * as name, statistic, units, field type, width and decimals.  Decimal
+	 * fields without decimals are INT and with more decimals than a float
+	 * carries are DOUBLE.
+	 *
+	 * @param commentLines header lines, including the comment delimiter.
+	 * @return types by column name, empty if there is no DBF block.
+	 */
+	public static Map<String, RecordEntryDescriptor.Type> parseDeclaredTypes(List<String> commentLines) {
+		Map<String, RecordEntryDescriptor.Type> declaredTypes = new HashMap<String, RecordEntryDescriptor.Type>();
+		boolean dbf = false;
+		for (String commentLine : commentLines) {
+			String line = commentLine.substring(1).trim();
+			if (line.equalsIgnoreCase("Begin DBF")) {
+				dbf = true;
+			} else if (line.equalsIgnoreCase("End DBF")) {
+				dbf = false;
+			} else if (dbf) {
+				String[] fields = line.split(",");
+				if (fields.length < 6) {
+					continue;
+				}
+				String fieldType = fields[3].trim().replace("#", "").toUpperCase(Locale.US);
+				int decimals;
+				try {
+					decimals = Integer.parseInt(fields[5].trim());
+				} catch (NumberFormatException e) {
+					decimals = -1;
+				}
+				RecordEntryDescriptor.Type type;
+				if (fieldType.contains("DATE")) {
+					type = RecordEntryDescriptor.Type.STRING;
+				} else if (fieldType.contains("INT") || fieldType.contains("LONG") || decimals == 0) {
+					type = RecordEntryDescriptor.Type.INT;
+				} else if (fieldType.contains("DOUBLE") || decimals > FLOAT_DECIMALS) {
+					type = RecordEntryDescriptor.Type.DOUBLE;
+				} else {
+					type = RecordEntryDescriptor.Type.FLOAT;
+				}
+				declaredTypes.put(fields[0].trim(), type);
+			}
 		}
+		return declaredTypes;
 	}
     
 	public static String quickExtractRecordAsString(char recordBuffer[], RecordEntryDescriptor descriptor) {
@@ -93,4 +168,168 @@ public class PRMSAnimationFileUtility {
 		return Float.parseFloat(quickExtractRecordAsString(recordBuffer, descriptor));
 	}
 
+	/**
+	 * Parses an ASCII float directly from file bytes without creating a
+	 * String.  Values with a mantissa of at most 24 bits and a decimal
+	 * exponent within +/-10 (PRMS writes 7 significant digits) are converted
+	 * with a single float multiply or divide by an exact power of ten, which
+	 * rounds the same as {@link Float#parseFloat(String)}.  Anything else is
+	 * handed to {@link Float#parseFloat(String)}.
+	 *
+	 * @param offset absolute index of the first byte in buffer.
+	 */
+	public static float parseFloat(ByteBuffer buffer, int offset, int length) {
+		int end = offset + length;
+		int index = offset;
+		while (index < end && buffer.get(index) == ' ') {
+			++index;
+		}
+		int start = index;
+
+		boolean negative = false;
+		if (index < end) {
+			byte b = buffer.get(index);
+			if (b == '-') {
+				negative = true;
+				++index;
+			} else if (b == '+') {
+				++index;
+			}
+		}
+
+		long mantissa = 0;
+		int exponent = 0;
+		boolean digits = false;
+		boolean overflow = false;
+		for (; index < end; ++index) {
+			int digit = buffer.get(index) - '0';
+			if (digit < 0 || digit > 9) {
+				break;
+			}
+			digits = true;
+			if (mantissa < Long.MAX_VALUE / 10 - 9) {
+				mantissa = mantissa * 10 + digit;
+			} else {
+				overflow = true;
+			}
+		}
+		if (index < end && buffer.get(index) == '.') {
+			for (++index; index < end; ++index) {
+				int digit = buffer.get(index) - '0';
+				if (digit < 0 || digit > 9) {
+					break;
+				}
+				digits = true;
+				if (mantissa < Long.MAX_VALUE / 10 - 9) {
+					mantissa = mantissa * 10 + digit;
+					--exponent;
+				} else {
+					overflow = true;
+				}
+			}
+		}
+		if (index < end && (buffer.get(index) == 'e' || buffer.get(index) == 'E')) {
+			++index;
+			boolean exponentNegative = false;
+			if (index < end) {
+				byte b = buffer.get(index);
+				if (b == '-') {
+					exponentNegative = true;
+					++index;
+				} else if (b == '+') {
+					++index;
+				}
+			}
+			int exponentValue = 0;
+			boolean exponentDigits = false;
+			for (; index < end; ++index) {
+				int digit = buffer.get(index) - '0';
+				if (digit < 0 || digit > 9) {
+					break;
+				}
+				exponentDigits = true;
+				if (exponentValue < 10000) {
+					exponentValue = exponentValue * 10 + digit;
+				}
+			}
+			if (!exponentDigits) {
+				digits = false;
+			}
+			exponent += exponentNegative ? -exponentValue : exponentValue;
+		}
+		while (index < end && buffer.get(index) == ' ') {
+			++index;
+		}
+
+		if (digits && !overflow && index == end) {
+			if (mantissa == 0) {
+				return negative ? -0f : 0f;
+			}
+			if (mantissa < (1 << 24) && exponent >= -10 && exponent <= 10) {
+				float value = exponent < 0 ?
+						(float) mantissa / FLOAT_POWERS_OF_TEN[-exponent] :
+						(float) mantissa * FLOAT_POWERS_OF_TEN[exponent];
+				return negative ? -value : value;
+			}
+		}
+
+		// NaN, Infinity, long mantissas, large exponents or malformed
+		return Float.parseFloat(toString(buffer, start, end));
+	}
+
+	/**
+	 * Parses an ASCII int directly from file bytes, leading and trailing
+	 * spaces are ignored.
+	 */
+	public static int parseInt(ByteBuffer buffer, int offset, int length) {
+		int end = offset + length;
+		int index = offset;
+		while (index < end && buffer.get(index) == ' ') {
+			++index;
+		}
+		int start = index;
+		boolean negative = false;
+		if (index < end && buffer.get(index) == '-') {
+			negative = true;
+			++index;
+		}
+		long value = 0;
+		int digitStart = index;
+		for (; index < end && index - digitStart < 10; ++index) {
+			int digit = buffer.get(index) - '0';
+			if (digit < 0 || digit > 9) {
+				break;
+			}
+			value = value * 10 + digit;
+		}
+		boolean digits = index > digitStart;
+		while (index < end && buffer.get(index) == ' ') {
+			++index;
+		}
+		if (digits && index == end) {
+			value = negative ? -value : value;
+			if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+				return (int) value;
+			}
+		}
+		// malformed or out of range, let Integer.parseInt(...) report it
+		return Integer.parseInt(toString(buffer, start, end).trim());
+	}
+
+	public static double parseDouble(ByteBuffer buffer, int offset, int length) {
+		return Double.parseDouble(toString(buffer, offset, offset + length).trim());
+	}
+
+	public static DateTime parseDateTime(ByteBuffer buffer, int offset, int length) {
+		return dateTimeFormatter.parseDateTime(toString(buffer, offset, offset + length).trim());
+	}
+
+	private static String toString(ByteBuffer buffer, int start, int end) {
+		char[] chars = new char[end - start];
+		for (int charIndex = 0; charIndex < chars.length; ++charIndex) {
+			chars[charIndex] = (char) (buffer.get(start + charIndex) & 255);
+		}
+		return new String(chars);
+	}
+
 }
@@ -0,0 +1,234 @@
+package gov.usgs.cida.prms;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of decoded timestep frames.  A frame is the values of one
+ * column for every HRU in a timestep, indexed by the record offset of the HRU
+ * within the timestep, as decoded by the column's {@link RecordEntryDecoder}
+ * (float[] or double[]).  Frames are keyed by animation file, timestep and
+ * column so a single cache may be shared by readers of several files.
+ *
+ * Cached frames are shared, callers must not modify them.
+ *
+ * @author tkunicki
+ */
+public class PRMSAnimationFrameCache {
+
+	public final static long DEFAULT_MAXIMUM_SIZE_BYTES = 64L << 20;
+
+	private final long maximumSizeBytes;
+
+	private final LinkedHashMap<FrameKey, Object> frameMap = new LinkedHashMap<FrameKey, Object>(16, 0.75f, true);
+	private long sizeBytes;
+	// incremented when frames are dropped by invalidate() or clear() so a
+	// frame decoded concurrently from the old file isn't cached afterwards
+	private long generation;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	public PRMSAnimationFrameCache() {
+		this(DEFAULT_MAXIMUM_SIZE_BYTES);
+	}
+
+	public PRMSAnimationFrameCache(long maximumSizeBytes) {
+		this.maximumSizeBytes = maximumSizeBytes;
+	}
+
+	/**
+	 * Returns the frames for the columns at a timestep, columns that aren't
+	 * cached are decoded together in a single pass over the timestep's
+	 * records.
+	 *
+	 * @return frames indexed the same as columnIndices.
+	 */
+	public Object[] getFrames(PRMSAnimationFileMetaData metaData, int timeStepIndex, int[] columnIndices) throws IOException {
+		String animationFilePath = metaData.getAnimationFilePath();
+		Object[] frames = new Object[columnIndices.length];
+		List<Integer> missingSlots = null;
+		long decodeGeneration;
+		synchronized (frameMap) {
+			decodeGeneration = generation;
+			for (int slot = 0; slot < columnIndices.length; ++slot) {
+				frames[slot] = frameMap.get(new FrameKey(animationFilePath, timeStepIndex, columnIndices[slot]));
+				if (frames[slot] == null) {
+					if (missingSlots == null) {
+						missingSlots = new ArrayList<Integer>(columnIndices.length);
+					}
+					missingSlots.add(slot);
+				}
+			}
+		}
+		hitCount.addAndGet(columnIndices.length - (missingSlots == null ? 0 : missingSlots.size()));
+		if (missingSlots == null) {
+			return frames;
+		}
+		missCount.addAndGet(missingSlots.size());
+
+		int[] missingColumnIndices = new int[missingSlots.size()];
+		for (int index = 0; index < missingColumnIndices.length; ++index) {
+			missingColumnIndices[index] = columnIndices[missingSlots.get(index)];
+		}
+		// decode outside the lock, concurrent misses on the same frame decode
+		// it twice which is cheaper than serializing all decoding.
+		Object[] missingFrames = decodeFrames(metaData, timeStepIndex, missingColumnIndices);
+		for (int index = 0; index < missingColumnIndices.length; ++index) {
+			frames[missingSlots.get(index)] = missingFrames[index];
+		}
+		synchronized (frameMap) {
+			if (decodeGeneration != generation) {
+				return frames; // invalidated while decoding
+			}
+			for (int index = 0; index < missingColumnIndices.length; ++index) {
+				Object frame = missingFrames[index];
+				if (frameMap.put(new FrameKey(animationFilePath, timeStepIndex, missingColumnIndices[index]), frame) == null) {
+					sizeBytes += getSizeBytes(frame);
+				}
+			}
+			evict();
+		}
+		return frames;
+	}
+
+	private static Object[] decodeFrames(PRMSAnimationFileMetaData metaData, int timeStepIndex, int[] columnIndices) throws IOException {
+		int timeStepRecordCount = metaData.getTimeStepRecordCount();
+		int recordIndexOffset = timeStepIndex * timeStepRecordCount;
+		Object[] frames = PRMSAnimationRecordBuffer.createValues(metaData, columnIndices, timeStepRecordCount);
+		PRMSAnimationRecordBuffer recordBuffer = null;
+		try {
+			recordBuffer = new PRMSAnimationRecordBuffer(
+					metaData,
+					recordIndexOffset,
+					recordIndexOffset + timeStepRecordCount);
+			recordBuffer.fillColumns(columnIndices, recordIndexOffset, timeStepRecordCount, 1, frames, 0);
+		} finally {
+			if (recordBuffer != null) {
+				recordBuffer.close();
+			}
+		}
+		return frames;
+	}
+
+	// call while holding frameMap lock
+	private void evict() {
+		Iterator<Object> iterator = frameMap.values().iterator();
+		while (sizeBytes > maximumSizeBytes && iterator.hasNext()) {
+			sizeBytes -= getSizeBytes(iterator.next());
+			iterator.remove();
+			evictionCount.incrementAndGet();
+		}
+	}
+
+	private static long getSizeBytes(Object frame) {
+		return frame instanceof double[] ?
+				8L * ((double[]) frame).length :
+				4L * ((float[]) frame).length;
+	}
+
+	/**
+	 * Drops every cached frame of an animation file.
+	 */
+	public void invalidate(String animationFilePath) {
+		synchronized (frameMap) {
+			++generation;
+			Iterator<Map.Entry<FrameKey, Object>> iterator = frameMap.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<FrameKey, Object> entry = iterator.next();
+				if (entry.getKey().animationFilePath.equals(animationFilePath)) {
+					sizeBytes -= getSizeBytes(entry.getValue());
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	public void clear() {
+		synchronized (frameMap) {
+			++generation;
+			frameMap.clear();
+			sizeBytes = 0;
+		}
+	}
+
+	public long getMaximumSizeBytes() {
+		return maximumSizeBytes;
+	}
+
+	public long getSizeBytes() {
+		synchronized (frameMap) {
+			return sizeBytes;
+		}
+	}
+
+	public int getFrameCount() {
+		synchronized (frameMap) {
+			return frameMap.size();
+		}
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "PRMSAnimationFrameCache[frames=" + getFrameCount() +
+				", sizeBytes=" + getSizeBytes() +
+				", maximumSizeBytes=" + maximumSizeBytes +
+				", hits=" + getHitCount() +
+				", misses=" + getMissCount() +
+				", evictions=" + getEvictionCount() + "]";
+	}
+
+	private final static class FrameKey {
+
+		private final String animationFilePath;
+		private final int timeStepIndex;
+		private final int columnIndex;
+
+		private FrameKey(String animationFilePath, int timeStepIndex, int columnIndex) {
+			this.animationFilePath = animationFilePath;
+			this.timeStepIndex = timeStepIndex;
+			this.columnIndex = columnIndex;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof FrameKey)) {
+				return false;
+			}
+			FrameKey other = (FrameKey) o;
+			return timeStepIndex == other.timeStepIndex &&
+					columnIndex == other.columnIndex &&
+					animationFilePath.equals(other.animationFilePath);
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = animationFilePath.hashCode();
+			hash = 31 * hash + timeStepIndex;
+			hash = 31 * hash + columnIndex;
+			return hash;
+		}
+	}
+
+}
@@ -0,0 +1,118 @@
+package gov.usgs.cida.prms;
+
+import java.util.Arrays;
+
+/**
+ * Maps HRU ids to the offset of their record within a timestep.  Every
+ * timestep of an animation file has the same HRU layout.  Dense layouts (ids
+ * ascending by one from the first record) are resolved arithmetically, any
+ * other layout is resolved by binary search over sorted primitive arrays.
+ *
+ * @author tkunicki
+ */
+public class PRMSAnimationHRUIndex {
+
+	public final static int INVALID_RECORD_OFFSET = -1;
+
+	private final int recordCount;
+
+	// dense
+	private final int hruMinimum;
+
+	// sparse, null if dense
+	private final int[] recordOffsetToHRU;
+	private final int[] sortedHRUs;
+	private final int[] sortedRecordOffsets;
+
+	private PRMSAnimationHRUIndex(int recordCount, int hruMinimum) {
+		this.recordCount = recordCount;
+		this.hruMinimum = hruMinimum;
+		this.recordOffsetToHRU = null;
+		this.sortedHRUs = null;
+		this.sortedRecordOffsets = null;
+	}
+
+	private PRMSAnimationHRUIndex(int[] recordOffsetToHRU) {
+		this.recordCount = recordOffsetToHRU.length;
+		this.hruMinimum = 0;
+		this.recordOffsetToHRU = recordOffsetToHRU;
+		// pack id and offset so a single primitive sort orders both, ties
+		// (duplicate ids) resolve to the first record
+		long[] packed = new long[recordCount];
+		for (int recordOffset = 0; recordOffset < recordCount; ++recordOffset) {
+			packed[recordOffset] = ((long) recordOffsetToHRU[recordOffset] << 32) | recordOffset;
+		}
+		Arrays.sort(packed);
+		sortedHRUs = new int[recordCount];
+		sortedRecordOffsets = new int[recordCount];
+		for (int index = 0; index < recordCount; ++index) {
+			sortedHRUs[index] = (int) (packed[index] >> 32);
+			sortedRecordOffsets[index] = (int) packed[index];
+		}
+	}
+
+	/**
+	 * @param recordOffsetToHRU HRU id of each record in a timestep, in record
+	 *        order.
+	 */
+	public static PRMSAnimationHRUIndex create(int[] recordOffsetToHRU) {
+		int recordCount = recordOffsetToHRU.length;
+		if (recordCount == 0) {
+			return new PRMSAnimationHRUIndex(0, 0);
+		}
+		int hruMinimum = recordOffsetToHRU[0];
+		for (int recordOffset = 1; recordOffset < recordCount; ++recordOffset) {
+			if (recordOffsetToHRU[recordOffset] != hruMinimum + recordOffset) {
+				return new PRMSAnimationHRUIndex(Arrays.copyOf(recordOffsetToHRU, recordCount));
+			}
+		}
+		return new PRMSAnimationHRUIndex(recordCount, hruMinimum);
+	}
+
+	/**
+	 * @return index for records with ids ascending by one from hruMinimum.
+	 */
+	public static PRMSAnimationHRUIndex createDense(int hruMinimum, int recordCount) {
+		return new PRMSAnimationHRUIndex(recordCount, hruMinimum);
+	}
+
+	public boolean isDense() {
+		return recordOffsetToHRU == null;
+	}
+
+	public int getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * @return offset of the HRU's record within a timestep or
+	 *         {@link #INVALID_RECORD_OFFSET} if the HRU isn't in the file.
+	 */
+	public int getRecordOffset(int hru) {
+		if (recordOffsetToHRU == null) {
+			long recordOffset = (long) hru - hruMinimum;
+			return recordOffset >= 0 && recordOffset < recordCount ?
+					(int) recordOffset :
+					INVALID_RECORD_OFFSET;
+		}
+		int index = Arrays.binarySearch(sortedHRUs, hru);
+		if (index < 0) {
+			return INVALID_RECORD_OFFSET;
+		}
+		// binarySearch doesn't guarantee the first of duplicates
+		while (index > 0 && sortedHRUs[index - 1] == hru) {
+			--index;
+		}
+		return sortedRecordOffsets[index];
+	}
+
+	public int getHRU(int recordOffset) {
+		if (recordOffset < 0 || recordOffset >= recordCount) {
+			throw new IndexOutOfBoundsException("record offset " + recordOffset);
+		}
+		return recordOffsetToHRU == null ?
+				hruMinimum + recordOffset :
+				recordOffsetToHRU[recordOffset];
+	}
+
+}
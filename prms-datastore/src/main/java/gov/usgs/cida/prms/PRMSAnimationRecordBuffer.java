@@ -8,6 +8,7 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel.MapMode;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 public class PRMSAnimationRecordBuffer implements Iterator<PRMSAnimationRecord>, Iterable<PRMSAnimationRecord> {
@@ -63,8 +64,8 @@ public class PRMSAnimationRecordBuffer implements Iterator<PRMSAnimationRecord>,
 		recordSizeBytes = metaData.getRecordSizeBytes();
 		endOfLineSizeBytes = metaData.getEndOfLineSizeBytes();
 
-		bufferOffsetBytes = headerSizeBytes + (recordIndexStart * recordSizeBytes);
-		bufferLengthBytes = (recordIndexEnd - recordIndexStart) * recordSizeBytes;
+		bufferOffsetBytes = headerSizeBytes + ((long) recordIndexStart * recordSizeBytes);
+		bufferLengthBytes = (long) (recordIndexEnd - recordIndexStart) * recordSizeBytes;
 
 		// prime value for validity test in getRecordFromInputStream(...) and
 		// iterator();
@@ -126,6 +127,88 @@ public class PRMSAnimationRecordBuffer implements Iterator<PRMSAnimationRecord>,
 		}
 	}
 
+	/**
+	 * @return arrays for length values of each column, as filled by
+	 *         {@link #fillColumns(int[], int, int, int, Object[], int)}.
+	 */
+	public static Object[] createValues(PRMSAnimationFileMetaData metaData, int[] columnIndices, int length) {
+		List<RecordEntryDescriptor> recordEntryDescriptors = metaData.getRecordEntryDescriptors();
+		Object[] values = new Object[columnIndices.length];
+		for (int slot = 0; slot < columnIndices.length; ++slot) {
+			values[slot] = recordEntryDescriptors.get(columnIndices[slot]).getDecoder().createValues(length);
+		}
+		return values;
+	}
+
+	/**
+	 * Decodes one value column of a run of records, see
+	 * {@link #fillColumns(int[], int, int, int, Object[], int)}.
+	 */
+	public void fillColumn(int columnIndex, int recordIndex, int recordCount, int recordIndexStride, Object values, int valuesOffset) throws IOException {
+		fillColumns(new int[] { columnIndex }, recordIndex, recordCount, recordIndexStride, new Object[] { values }, valuesOffset);
+	}
+
+	/**
+	 * Decodes value columns of a run of records straight from the mapped
+	 * bytes, no record is created and no value is boxed.  The records are
+	 * recordIndex, recordIndex + recordIndexStride, ... so a stride of 1
+	 * decodes consecutive records (e.g. a timestep) and a stride of the
+	 * timestep record count decodes the time series of a single HRU.
+	 *
+	 * @param values one array per column index from {@link #createValues},
+	 *        typed by the column's decoder, filled from valuesOffset.
+	 */
+	public void fillColumns(int[] columnIndices, int recordIndex, int recordCount, int recordIndexStride, Object[] values, int valuesOffset) throws IOException {
+		if (recordCount < 1) {
+			return;
+		}
+		long recordIndexLast = recordIndex + (long) (recordCount - 1) * recordIndexStride;
+		if (recordIndex < recordIndexStart || recordIndexLast >= recordIndexEnd) {
+			throw new NoSuchElementException();
+		}
+		int columnCount = columnIndices.length;
+		int[] columnOffsets = new int[columnCount];
+		int[] columnLengths = new int[columnCount];
+		RecordEntryDecoder[] columnDecoders = new RecordEntryDecoder[columnCount];
+		for (int slot = 0; slot < columnCount; ++slot) {
+			int columnIndex = columnIndices[slot];
+			if (columnIndex < 2) {
+				throw new IllegalArgumentException("Can't use this method for column indices < 2");
+			}
+			columnOffsets[slot] = recordEntryDescriptors[columnIndex].getOffset();
+			columnLengths[slot] = recordEntryDescriptors[columnIndex].getLength();
+			columnDecoders[slot] = recordEntryDescriptors[columnIndex].getDecoder();
+		}
+		if (MAPPED_IO) {
+			int recordPositionStride = recordIndexStride * recordSizeBytes;
+			int recordPosition = (recordIndex - recordIndexStart) * recordSizeBytes;
+			for (int valueIndex = valuesOffset; valueIndex < valuesOffset + recordCount; ++valueIndex) {
+				for (int slot = 0; slot < columnCount; ++slot) {
+					columnDecoders[slot].decodeValue(
+							mappedBuffer,
+							recordPosition + columnOffsets[slot],
+							columnLengths[slot],
+							values[slot],
+							valueIndex);
+				}
+				recordPosition += recordPositionStride;
+			}
+		} else {
+			for (int valueIndex = valuesOffset; valueIndex < valuesOffset + recordCount; ++valueIndex) {
+				PRMSAnimationRecord record = getRecord(recordIndex);
+				for (int slot = 0; slot < columnCount; ++slot) {
+					float value = record.getValue(columnIndices[slot]);
+					if (values[slot] instanceof double[]) {
+						((double[]) values[slot])[valueIndex] = value;
+					} else {
+						((float[]) values[slot])[valueIndex] = value;
+					}
+				}
+				recordIndex += recordIndexStride;
+			}
+		}
+	}
+
 	private PRMSAnimationRecord getRecordFromInputStream(int recordIndex) throws IOException {
 		if (recordIndex == this.recordIndex + 1) {
 			if (recordIndex < recordIndexStart) {
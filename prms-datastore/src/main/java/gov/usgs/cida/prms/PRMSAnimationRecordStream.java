@@ -0,0 +1,189 @@
+package gov.usgs.cida.prms;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.joda.time.DateTime;
+
+/**
+ * Sequential cursor over a run of records.  Records are read ahead in large
+ * chunks with plain FileChannel reads into a single reused direct buffer, so
+ * files of any size can be streamed (a mapping is limited to 2 GiB) and the
+ * OS sees a sequential access pattern it can read ahead for.  Fields are
+ * parsed in place on demand.
+ *
+ * The cursor itself is the current record, it is only valid until
+ * {@link #next()} is called again.
+ *
+ * @author tkunicki
+ */
+public class PRMSAnimationRecordStream implements PRMSAnimationRecord<Float> {
+
+	public final static int DEFAULT_BUFFER_SIZE_BYTES = 4 << 20;
+
+	private final int[] columnOffsets;
+	private final int[] columnLengths;
+	private final RecordEntryDecoder[] columnDecoders;
+
+	private final int recordSizeBytes;
+	private final int recordIndexEnd;
+
+	private RandomAccessFile randomAccessFile;
+	private FileChannel channel;
+	private final ByteBuffer buffer;
+	private long channelPosition;
+
+	private int recordIndex;
+	private int recordPosition; // of the current record within buffer
+
+	// timestamps repeat for every record of a timestep, reuse the last one
+	private final byte[] timeStampBytes;
+	private final byte[] lastTimeStampBytes;
+	private DateTime lastTimeStamp;
+
+	public PRMSAnimationRecordStream(PRMSAnimationFileMetaData metaData) throws IOException {
+		this(metaData, 0, metaData.getRecordCount(), DEFAULT_BUFFER_SIZE_BYTES);
+	}
+
+	/**
+	 * @param recordIndexStart first record (inclusive).
+	 * @param recordIndexEnd last record (exclusive).
+	 * @param bufferSizeBytes read ahead size, rounded down to whole records.
+	 */
+	public PRMSAnimationRecordStream(PRMSAnimationFileMetaData metaData, int recordIndexStart, int recordIndexEnd, int bufferSizeBytes) throws IOException {
+		List<RecordEntryDescriptor> recordEntryDescriptors = metaData.getRecordEntryDescriptors();
+		int columnCount = recordEntryDescriptors.size();
+		columnOffsets = new int[columnCount];
+		columnLengths = new int[columnCount];
+		columnDecoders = new RecordEntryDecoder[columnCount];
+		for (int columnIndex = 0; columnIndex < columnCount; ++columnIndex) {
+			columnOffsets[columnIndex] = recordEntryDescriptors.get(columnIndex).getOffset();
+			columnLengths[columnIndex] = recordEntryDescriptors.get(columnIndex).getLength();
+			columnDecoders[columnIndex] = recordEntryDescriptors.get(columnIndex).getDecoder();
+		}
+		timeStampBytes = new byte[columnLengths[0]];
+		lastTimeStampBytes = new byte[columnLengths[0]];
+
+		this.recordSizeBytes = metaData.getRecordSizeBytes();
+		this.recordIndexEnd = recordIndexEnd;
+
+		int bufferRecordCount = Math.max(1, bufferSizeBytes / recordSizeBytes);
+		buffer = ByteBuffer.allocateDirect(bufferRecordCount * recordSizeBytes);
+		buffer.limit(0);
+
+		randomAccessFile = new RandomAccessFile(metaData.getAnimationFilePath(), "r");
+		channel = randomAccessFile.getChannel();
+		channelPosition = metaData.getHeaderSizeBytes() + (long) recordIndexStart * recordSizeBytes;
+
+		recordIndex = recordIndexStart - 1;
+		recordPosition = -recordSizeBytes;
+	}
+
+	public boolean hasNext() {
+		return recordIndex + 1 < recordIndexEnd;
+	}
+
+	/**
+	 * Advances to the next record.
+	 */
+	public void next() throws IOException {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		recordPosition += recordSizeBytes;
+		if (recordPosition + recordSizeBytes > buffer.limit()) {
+			fill();
+		}
+		++recordIndex;
+	}
+
+	private void fill() throws IOException {
+		long remainingBytes = (long) (recordIndexEnd - recordIndex - 1) * recordSizeBytes;
+		buffer.clear();
+		if (remainingBytes < buffer.capacity()) {
+			buffer.limit((int) remainingBytes);
+		}
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, channelPosition);
+			if (read < 0) {
+				throw new IOException("Incomplete read.");
+			}
+			channelPosition += read;
+		}
+		buffer.flip();
+		recordPosition = 0;
+	}
+
+	@Override
+	public int getIndex() {
+		return recordIndex;
+	}
+
+	@Override
+	public DateTime getTimeStamp() {
+		for (int byteIndex = 0; byteIndex < timeStampBytes.length; ++byteIndex) {
+			timeStampBytes[byteIndex] = buffer.get(recordPosition + columnOffsets[0] + byteIndex);
+		}
+		if (lastTimeStamp == null || !java.util.Arrays.equals(timeStampBytes, lastTimeStampBytes)) {
+			lastTimeStamp = PRMSAnimationFileUtility.parseDateTime(buffer, recordPosition + columnOffsets[0], columnLengths[0]);
+			System.arraycopy(timeStampBytes, 0, lastTimeStampBytes, 0, timeStampBytes.length);
+		}
+		return lastTimeStamp;
+	}
+
+	@Override
+	public Integer getNHRU() {
+		return PRMSAnimationFileUtility.parseInt(buffer, recordPosition + columnOffsets[1], columnLengths[1]);
+	}
+
+	@Override
+	public Float getValue(int columnIndex) {
+		return getFloat(columnIndex);
+	}
+
+	/**
+	 * @return the value without boxing.
+	 */
+	public float getFloat(int columnIndex) {
+		if (columnIndex > 1) {
+			return columnDecoders[columnIndex].decodeFloat(buffer, recordPosition + columnOffsets[columnIndex], columnLengths[columnIndex]);
+		} else {
+			throw new IllegalArgumentException("Can't use this method for column indices < 2");
+		}
+	}
+
+	/**
+	 * @return the value without boxing, full precision for DOUBLE columns.
+	 */
+	public double getDouble(int columnIndex) {
+		if (columnIndex > 1) {
+			return columnDecoders[columnIndex].decodeDouble(buffer, recordPosition + columnOffsets[columnIndex], columnLengths[columnIndex]);
+		} else {
+			throw new IllegalArgumentException("Can't use this method for column indices < 2");
+		}
+	}
+
+	/**
+	 * @return the value of any column as its decoder's binding.
+	 */
+	public Object decode(int columnIndex) {
+		return columnDecoders[columnIndex].decode(buffer, recordPosition + columnOffsets[columnIndex], columnLengths[columnIndex]);
+	}
+
+	@Override
+	public int getColumnCount() {
+		return columnOffsets.length;
+	}
+
+	public void close() throws IOException {
+		if (randomAccessFile != null) {
+			randomAccessFile.close();
+			randomAccessFile = null;
+			channel = null;
+		}
+	}
+
+}
@@ -0,0 +1,121 @@
+package gov.usgs.cida.prms;
+
+import java.io.IOException;
+import org.joda.time.DateTime;
+
+/**
+ * Values of a single HRU over a span of timesteps.  Every timestep has the
+ * same HRU layout so the HRU's record is at the same offset within each
+ * timestep, only those records are decoded through
+ * {@link PRMSAnimationRecordBuffer#fillColumns} instead of scanning the file.
+ *
+ * @author tkunicki
+ */
+public class PRMSAnimationTimeSeries {
+
+	private final static long MAPPED_SIZE_BYTES_MAXIMUM = 1L << 28;
+
+	private final PRMSAnimationFileMetaData metaData;
+	private final int hru;
+	private final int timeStepIndexStart;
+	private final int timeStepCount;
+	private final int[] columnIndices;
+	private final Object[] values; // typed by the column decoders
+	private final RecordEntryDecoder[] decoders;
+
+	private PRMSAnimationTimeSeries(PRMSAnimationFileMetaData metaData, int hru, int timeStepIndexStart, int timeStepCount, int[] columnIndices, Object[] values) {
+		this.metaData = metaData;
+		this.hru = hru;
+		this.timeStepIndexStart = timeStepIndexStart;
+		this.timeStepCount = timeStepCount;
+		this.columnIndices = columnIndices;
+		this.values = values;
+		this.decoders = new RecordEntryDecoder[columnIndices.length];
+		for (int slot = 0; slot < columnIndices.length; ++slot) {
+			decoders[slot] = metaData.getRecordEntryDescriptors().get(columnIndices[slot]).getDecoder();
+		}
+	}
+
+	/**
+	 * @param columnIndices value columns to read, all indices must be &gt; 1.
+	 * @param timeStepIndexStart first timestep (inclusive).
+	 * @param timeStepIndexEnd last timestep (inclusive), the series is empty
+	 *        if this precedes timeStepIndexStart.
+	 * @return the time series, empty if the HRU isn't in the file.
+	 */
+	public static PRMSAnimationTimeSeries read(PRMSAnimationFileMetaData metaData, int hru, int[] columnIndices, int timeStepIndexStart, int timeStepIndexEnd) throws IOException {
+		int recordOffset = metaData.getHRUIndex().getRecordOffset(hru);
+		int timeStepCount = recordOffset == PRMSAnimationHRUIndex.INVALID_RECORD_OFFSET ?
+				0 :
+				Math.max(0, timeStepIndexEnd - timeStepIndexStart + 1);
+		if (timeStepCount > 0 && (timeStepIndexStart < 0 || timeStepIndexEnd >= metaData.getTimeStepCount())) {
+			throw new IndexOutOfBoundsException("timesteps " + timeStepIndexStart + " to " + timeStepIndexEnd);
+		}
+		columnIndices = columnIndices.clone();
+		Object[] values = PRMSAnimationRecordBuffer.createValues(metaData, columnIndices, timeStepCount);
+		if (timeStepCount == 0 || columnIndices.length == 0) {
+			return new PRMSAnimationTimeSeries(metaData, hru, timeStepIndexStart, timeStepCount, columnIndices, values);
+		}
+
+		// the HRU's records are a timestep apart, decode them with a stride
+		// of the timestep record count mapping at most MAPPED_SIZE_BYTES_MAXIMUM
+		// at a time as a long series spans most of the file
+		int timeStepRecordCount = metaData.getTimeStepRecordCount();
+		long timeStepSizeBytes = (long) timeStepRecordCount * metaData.getRecordSizeBytes();
+		int chunkTimeStepCount = (int) Math.max(1, Math.min(timeStepCount, MAPPED_SIZE_BYTES_MAXIMUM / timeStepSizeBytes));
+		for (int index = 0; index < timeStepCount; index += chunkTimeStepCount) {
+			int chunkCount = Math.min(chunkTimeStepCount, timeStepCount - index);
+			int recordIndex = (timeStepIndexStart + index) * timeStepRecordCount + recordOffset;
+			PRMSAnimationRecordBuffer recordBuffer = new PRMSAnimationRecordBuffer(
+					metaData,
+					recordIndex,
+					recordIndex + (chunkCount - 1) * timeStepRecordCount + 1);
+			try {
+				recordBuffer.fillColumns(columnIndices, recordIndex, chunkCount, timeStepRecordCount, values, index);
+			} finally {
+				recordBuffer.close();
+			}
+		}
+		return new PRMSAnimationTimeSeries(metaData, hru, timeStepIndexStart, timeStepCount, columnIndices, values);
+	}
+
+	public int getHRU() {
+		return hru;
+	}
+
+	public int getTimeStepIndexStart() {
+		return timeStepIndexStart;
+	}
+
+	public int getTimeStepCount() {
+		return timeStepCount;
+	}
+
+	public DateTime getTimeStep(int index) {
+		return metaData.getTimeStepList().get(timeStepIndexStart + index);
+	}
+
+	/**
+	 * @return the slot of the column's values, -1 if the column wasn't read.
+	 */
+	public int getSlot(int columnIndex) {
+		for (int slot = 0; slot < columnIndices.length; ++slot) {
+			if (columnIndices[slot] == columnIndex) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the value as the column's binding.
+	 */
+	public Object getValue(int slot, int index) {
+		return decoders[slot].box(values[slot], index);
+	}
+
+	public double getDouble(int slot, int index) {
+		return decoders[slot].getDouble(values[slot], index);
+	}
+
+}
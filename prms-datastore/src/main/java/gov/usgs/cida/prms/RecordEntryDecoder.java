@@ -0,0 +1,206 @@
+package gov.usgs.cida.prms;
+
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+/**
+ * Decodes the field of a column from record bytes, chosen once per column
+ * from its {@link RecordEntryDescriptor.Type} so readers don't switch on the
+ * type (or assume it from the column index) per value.
+ *
+ * Decoded runs of values (frames, time series) are kept in arrays from
+ * {@link #createValues(int)}: float[] for FLOAT columns, double[] for INT and
+ * DOUBLE columns so neither loses precision.  Aggregates are kept, bound and
+ * returned as Float whatever the column's binding.
+ *
+ * @author tkunicki
+ */
+public abstract class RecordEntryDecoder {
+
+	public static RecordEntryDecoder getDecoder(RecordEntryDescriptor.Type type) {
+		switch (type) {
+			case STRING:
+				return TIMESTAMP;
+			case INT:
+				return INT;
+			case DOUBLE:
+				return DOUBLE;
+			default:
+				return FLOAT;
+		}
+	}
+
+	/**
+	 * @return the type of the values returned by {@link #decode(ByteBuffer, int, int)}
+	 *         and {@link #box(double)}.
+	 */
+	public abstract Class<?> getBinding();
+
+	/**
+	 * @param offset absolute index of the first byte of the field in buffer.
+	 */
+	public abstract Object decode(ByteBuffer buffer, int offset, int length);
+
+	/**
+	 * @throws UnsupportedOperationException if the column isn't numeric.
+	 */
+	public abstract double decodeDouble(ByteBuffer buffer, int offset, int length);
+
+	/**
+	 * @throws UnsupportedOperationException if the column isn't numeric.
+	 */
+	public float decodeFloat(ByteBuffer buffer, int offset, int length) {
+		return (float) decodeDouble(buffer, offset, length);
+	}
+
+	/**
+	 * @return the value as the column's binding, e.g. an Integer for an INT
+	 *         column.
+	 * @throws UnsupportedOperationException if the column isn't numeric.
+	 */
+	public abstract Object box(double value);
+
+	/**
+	 * @return an array for length values of the column.
+	 * @throws UnsupportedOperationException if the column isn't numeric.
+	 */
+	public Object createValues(int length) {
+		return new float[length];
+	}
+
+	/**
+	 * Decodes the field into values[index], values is from
+	 * {@link #createValues(int)}.
+	 */
+	public void decodeValue(ByteBuffer buffer, int offset, int length, Object values, int index) {
+		((float[]) values)[index] = decodeFloat(buffer, offset, length);
+	}
+
+	/**
+	 * @param values from {@link #createValues(int)}
+	 */
+	public double getDouble(Object values, int index) {
+		return ((float[]) values)[index];
+	}
+
+	/**
+	 * @param values from {@link #createValues(int)}
+	 * @return values[index] as the column's binding.
+	 */
+	public Object box(Object values, int index) {
+		return box(getDouble(values, index));
+	}
+
+	private final static RecordEntryDecoder TIMESTAMP = new RecordEntryDecoder() {
+		@Override
+		public Class<?> getBinding() {
+			return Date.class;
+		}
+		@Override
+		public Object decode(ByteBuffer buffer, int offset, int length) {
+			return PRMSAnimationFileUtility.parseDateTime(buffer, offset, length).toDate();
+		}
+		@Override
+		public double decodeDouble(ByteBuffer buffer, int offset, int length) {
+			throw new UnsupportedOperationException("timestamp isn't numeric");
+		}
+		@Override
+		public Object box(double value) {
+			throw new UnsupportedOperationException("timestamp isn't numeric");
+		}
+		@Override
+		public Object createValues(int length) {
+			throw new UnsupportedOperationException("timestamp isn't numeric");
+		}
+	};
+
+	private final static RecordEntryDecoder INT = new RecordEntryDecoder() {
+		@Override
+		public Class<?> getBinding() {
+			return Integer.class;
+		}
+		@Override
+		public Object decode(ByteBuffer buffer, int offset, int length) {
+			return PRMSAnimationFileUtility.parseInt(buffer, offset, length);
+		}
+		@Override
+		public double decodeDouble(ByteBuffer buffer, int offset, int length) {
+			return PRMSAnimationFileUtility.parseInt(buffer, offset, length);
+		}
+		@Override
+		public Object box(double value) {
+			return Double.isNaN(value) ? null : Integer.valueOf((int) value);
+		}
+		@Override
+		public Object createValues(int length) {
+			return new double[length]; // exact for every int
+		}
+		@Override
+		public void decodeValue(ByteBuffer buffer, int offset, int length, Object values, int index) {
+			((double[]) values)[index] = PRMSAnimationFileUtility.parseInt(buffer, offset, length);
+		}
+		@Override
+		public double getDouble(Object values, int index) {
+			return ((double[]) values)[index];
+		}
+	};
+
+	private final static RecordEntryDecoder FLOAT = new RecordEntryDecoder() {
+		@Override
+		public Class<?> getBinding() {
+			return Float.class;
+		}
+		@Override
+		public Object decode(ByteBuffer buffer, int offset, int length) {
+			return PRMSAnimationFileUtility.parseFloat(buffer, offset, length);
+		}
+		@Override
+		public double decodeDouble(ByteBuffer buffer, int offset, int length) {
+			return PRMSAnimationFileUtility.parseFloat(buffer, offset, length);
+		}
+		@Override
+		public float decodeFloat(ByteBuffer buffer, int offset, int length) {
+			return PRMSAnimationFileUtility.parseFloat(buffer, offset, length);
+		}
+		@Override
+		public Object box(double value) {
+			return Float.valueOf((float) value);
+		}
+		@Override
+		public Object box(Object values, int index) {
+			return Float.valueOf(((float[]) values)[index]);
+		}
+	};
+
+	private final static RecordEntryDecoder DOUBLE = new RecordEntryDecoder() {
+		@Override
+		public Class<?> getBinding() {
+			return Double.class;
+		}
+		@Override
+		public Object decode(ByteBuffer buffer, int offset, int length) {
+			return PRMSAnimationFileUtility.parseDouble(buffer, offset, length);
+		}
+		@Override
+		public double decodeDouble(ByteBuffer buffer, int offset, int length) {
+			return PRMSAnimationFileUtility.parseDouble(buffer, offset, length);
+		}
+		@Override
+		public Object box(double value) {
+			return Double.valueOf(value);
+		}
+		@Override
+		public Object createValues(int length) {
+			return new double[length];
+		}
+		@Override
+		public void decodeValue(ByteBuffer buffer, int offset, int length, Object values, int index) {
+			((double[]) values)[index] = PRMSAnimationFileUtility.parseDouble(buffer, offset, length);
+		}
+		@Override
+		public double getDouble(Object values, int index) {
+			return ((double[]) values)[index];
+		}
+	};
+
+}
@@ -12,9 +12,10 @@ package gov.usgs.cida.prms;
 public class RecordEntryDescriptor {
 
 	public enum Type {
-		STRING,
+		STRING, // the timestamp
 		INT,
-		FLOAT
+		FLOAT,
+		DOUBLE
 	}
 
 	private String name;
@@ -57,6 +58,10 @@ public class RecordEntryDescriptor {
 		return type;
 	}
 
+	public RecordEntryDecoder getDecoder() {
+		return RecordEntryDecoder.getDecoder(type);
+	}
+
 	@Override
 	public String toString() {
 		return name;
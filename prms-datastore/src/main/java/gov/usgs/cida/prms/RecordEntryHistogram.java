@@ -0,0 +1,194 @@
+package gov.usgs.cida.prms;
+
+/**
+ * Distribution of a value column, accumulated in a single pass without
+ * knowing the range of the values up front.  Bins are of equal width and
+ * the bin width is a power of two with the lower bin edge a multiple of it,
+ * when a value falls outside the bins the width is doubled and neighboring
+ * bins are merged.  Counts are exact per bin so quantiles are accurate to
+ * within a bin width (the range over the bin count, or better).
+ *
+ * NaN and infinite values aren't counted.
+ *
+ * @author tkunicki
+ */
+public class RecordEntryHistogram {
+
+	public final static int DEFAULT_BIN_COUNT = 1024;
+
+	private final long[] binCounts;
+	private double binLower; // lower edge of the first bin
+	private double binWidth; // 0 until two distinct values were added
+
+	private long count;
+	private double minimum = Double.NaN;
+	private double maximum = Double.NaN;
+
+	public RecordEntryHistogram() {
+		this(DEFAULT_BIN_COUNT);
+	}
+
+	/**
+	 * @param binCount must be even.
+	 */
+	public RecordEntryHistogram(int binCount) {
+		if (binCount < 2 || (binCount & 1) != 0) {
+			throw new IllegalArgumentException("binCount must be even, " + binCount);
+		}
+		binCounts = new long[binCount];
+	}
+
+	RecordEntryHistogram(double binLower, double binWidth, double minimum, double maximum, long[] binCounts) {
+		this.binLower = binLower;
+		this.binWidth = binWidth;
+		this.minimum = minimum;
+		this.maximum = maximum;
+		this.binCounts = binCounts;
+		for (long binCount : binCounts) {
+			count += binCount;
+		}
+	}
+
+	public void add(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return;
+		}
+		if (count == 0) {
+			binLower = value;
+			minimum = value;
+			maximum = value;
+			++binCounts[0];
+			++count;
+			return;
+		}
+		if (value < minimum) {
+			minimum = value;
+		} else if (value > maximum) {
+			maximum = value;
+		}
+		if (binWidth == 0) {
+			if (value == binLower) {
+				++binCounts[0];
+				++count;
+				return;
+			}
+			// second distinct value, the values seen so far span no more
+			// than half of the bins.
+			double first = binLower;
+			binWidth = Math.pow(2, Math.getExponent(2 * Math.abs(value - first) / binCounts.length) + 1);
+			binLower = Math.floor(Math.min(first, value) / binWidth) * binWidth;
+			long firstCount = binCounts[0];
+			binCounts[0] = 0;
+			binCounts[binIndex(first)] += firstCount;
+		}
+		++binCounts[binIndex(value)];
+		++count;
+	}
+
+	private int binIndex(double value) {
+		while (true) {
+			double offset = Math.floor((value - binLower) / binWidth);
+			if (offset >= 0 && offset < binCounts.length) {
+				return (int) offset;
+			}
+			grow(offset < 0);
+		}
+	}
+
+	private void grow(boolean downward) {
+		int binCount = binCounts.length;
+		double grownWidth = binWidth * 2;
+		// the old bins must still be covered, downward growth keeps the upper
+		// edge and upward growth keeps the lower edge (give or take a bin)
+		double grownLower = downward ?
+				Math.ceil((binLower - binCount * binWidth) / grownWidth) * grownWidth :
+				Math.floor(binLower / grownWidth) * grownWidth;
+		long[] grownCounts = new long[binCount];
+		for (int binIndex = 0; binIndex < binCount; ++binIndex) {
+			if (binCounts[binIndex] != 0) {
+				int grownIndex = (int) Math.floor((binLower + binIndex * binWidth - grownLower) / grownWidth);
+				grownCounts[grownIndex] += binCounts[binIndex];
+			}
+		}
+		System.arraycopy(grownCounts, 0, binCounts, 0, binCount);
+		binLower = grownLower;
+		binWidth = grownWidth;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the smallest value added, NaN if there are none.
+	 */
+	public double getMinimum() {
+		return minimum;
+	}
+
+	/**
+	 * @return the largest value added, NaN if there are none.
+	 */
+	public double getMaximum() {
+		return maximum;
+	}
+
+	/**
+	 * @param probability in [0, 1], e.g. 0.5 for the median.
+	 * @return the value below which the given fraction of values fall,
+	 *         interpolated within the bin.  NaN if there are no values.
+	 */
+	public double getQuantile(double probability) {
+		if (count == 0) {
+			return Double.NaN;
+		}
+		if (binWidth == 0) {
+			return binLower;
+		}
+		double rank = probability * count;
+		long cumulativeCount = 0;
+		for (int binIndex = 0; binIndex < binCounts.length; ++binIndex) {
+			long binCount = binCounts[binIndex];
+			if (binCount > 0 && cumulativeCount + binCount >= rank) {
+				double quantile = binLower + binWidth * (binIndex + (rank - cumulativeCount) / binCount);
+				return Math.max(minimum, Math.min(maximum, quantile));
+			}
+			cumulativeCount += binCount;
+		}
+		return maximum;
+	}
+
+	/**
+	 * Class breaks for equal count (quantile) classification, e.g. 10 classes
+	 * for deciles.
+	 *
+	 * @return classCount + 1 breaks, the first is the minimum and the last is
+	 *         the maximum.
+	 */
+	public double[] getQuantileBreaks(int classCount) {
+		double[] breaks = new double[classCount + 1];
+		breaks[0] = minimum;
+		for (int classIndex = 1; classIndex < classCount; ++classIndex) {
+			breaks[classIndex] = getQuantile((double) classIndex / classCount);
+		}
+		breaks[classCount] = maximum;
+		return breaks;
+	}
+
+	public int getBinCount() {
+		return binCounts.length;
+	}
+
+	public double getBinLower() {
+		return binLower;
+	}
+
+	public double getBinWidth() {
+		return binWidth;
+	}
+
+	public long getCount(int binIndex) {
+		return binCounts[binIndex];
+	}
+
+}
@@ -6,6 +6,10 @@ public class RecordEntryRange<N extends Comparable<N>> extends Range<N> {
 		super(initialValue, initialValue);
 	}
 
+	public RecordEntryRange(N minimum, N maximum) {
+		super(minimum, maximum);
+	}
+
 	public void update(N value) {
 		if (value.compareTo(minimum) < 0) {
 			minimum = value;
@@ -0,0 +1,74 @@
+package gov.usgs.cida.geotools.datastore;
+
+import gov.usgs.cida.prms.PRMSAnimationFileMetaData;
+import gov.usgs.cida.prms.Utilities;
+import java.io.File;
+import java.util.Date;
+import java.util.List;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.joda.time.DateTime;
+import org.junit.*;
+import static org.junit.Assert.*;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ *
+ * @author tkunicki
+ */
+public class PRMSAnimationAttributeReaderTest {
+
+    private final static int VALUE_COLUMN_COUNT = 3;
+
+    @Test
+    public void testReadAllRecords() throws Exception {
+        int[] hruIds = new int[] { 12, 3, 40 };
+        int timeStepCount = 4;
+        File animationFile = Utilities.createAnimationFile(timeStepCount, hruIds, VALUE_COLUMN_COUNT);
+        try {
+            PRMSAnimationFileMetaData metaData = PRMSAnimationFileMetaData.getMetaData(animationFile);
+            List<DateTime> timeStepList = metaData.getTimeStepList();
+
+            SimpleFeatureTypeBuilder sftBuilder = new SimpleFeatureTypeBuilder();
+            sftBuilder.setName("test");
+            sftBuilder.add("timestamp", Date.class);
+            sftBuilder.add("nhru", Integer.class);
+            sftBuilder.add("value3", Float.class);
+            SimpleFeatureType featureType = sftBuilder.buildFeatureType();
+
+            PRMSAnimationAttributeReader reader = new PRMSAnimationAttributeReader(metaData, featureType);
+            try {
+                for (int timeStepIndex = 0; timeStepIndex < timeStepCount; ++timeStepIndex) {
+                    for (int hruId : hruIds) {
+                        assertTrue(reader.hasNext());
+                        reader.next();
+                        assertEquals(timeStepList.get(timeStepIndex).toDate(), reader.read(0));
+                        assertEquals(hruId, reader.read(1));
+                        float expected = Utilities.getSyntheticValue(timeStepIndex, hruId, 3);
+                        assertEquals(expected, (Float) reader.read(2), expected * 1e-6f);
+                    }
+                }
+                assertFalse(reader.hasNext());
+            } finally {
+                reader.close();
+            }
+
+            sftBuilder = new SimpleFeatureTypeBuilder();
+            sftBuilder.setName("test");
+            sftBuilder.add("timestamp", Date.class);
+            PRMSAnimationTimeStampAttributeReader timeStampReader = new PRMSAnimationTimeStampAttributeReader(metaData, sftBuilder.buildFeatureType());
+            try {
+                for (int timeStepIndex = 0; timeStepIndex < timeStepCount; ++timeStepIndex) {
+                    assertTrue(timeStampReader.hasNext());
+                    timeStampReader.next();
+                    assertEquals(timeStepList.get(timeStepIndex).toDate(), timeStampReader.read(0));
+                }
+                assertFalse(timeStampReader.hasNext());
+            } finally {
+                timeStampReader.close();
+            }
+        } finally {
+            Utilities.deleteAnimationFile(animationFile);
+        }
+    }
+
+}
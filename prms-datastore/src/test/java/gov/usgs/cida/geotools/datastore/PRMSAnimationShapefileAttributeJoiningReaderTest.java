@@ -0,0 +1,251 @@
+package gov.usgs.cida.geotools.datastore;
+
+import static gov.usgs.cida.geotools.datastore.PRMSAnimationShapefileDataStore.NHRU_FILE_ATTRIB_COLUMN;
+import gov.usgs.cida.prms.PRMSAnimationFileMetaData;
+import gov.usgs.cida.prms.PRMSAnimationFrameCache;
+import gov.usgs.cida.prms.Utilities;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.geotools.data.shapefile.ShapefileAttributeReader;
+import org.geotools.feature.AttributeTypeBuilder;
+import org.joda.time.DateTime;
+import org.junit.*;
+import static org.junit.Assert.*;
+import org.opengis.feature.type.AttributeDescriptor;
+
+/**
+ *
+ * @author tkunicki
+ */
+public class PRMSAnimationShapefileAttributeJoiningReaderTest {
+
+    private final static int VALUE_COLUMN_COUNT = 12;
+
+    @Test
+    public void testJoin() throws Exception {
+        File animationFile = Utilities.createAnimationFile(5, Utilities.createHRUIds(50), VALUE_COLUMN_COUNT);
+        try {
+            PRMSAnimationFileMetaData metaData = PRMSAnimationFileMetaData.getMetaData(animationFile);
+            List<DateTime> timeStepList = metaData.getTimeStepList();
+            int[] joinValues = new int[] { 7, 1, 50, 23 };
+            int[] columnIndices = new int[] { 4, 2 };
+            PRMSAnimationShapefileAttributeJoiningReader reader = new PRMSAnimationShapefileAttributeJoiningReader(
+                    new JoinValueAttributeReader(createAttributeDescriptors(columnIndices), joinValues),
+                    metaData, 0, 1, 3, null, new PRMSAnimationFrameCache());
+            try {
+                for (int joinValue : joinValues) {
+                    for (int timeStepIndex = 1; timeStepIndex <= 3; ++timeStepIndex) {
+                        assertTrue(reader.hasNext());
+                        reader.next();
+                        assertEquals(joinValue, reader.read(0));
+                        assertEquals(timeStepList.get(timeStepIndex).toDate(), reader.read(1));
+                        assertEquals(joinValue, reader.read(2));
+                        for (int index = 0; index < columnIndices.length; ++index) {
+                            float expected = Utilities.getSyntheticValue(timeStepIndex, joinValue, columnIndices[index]);
+                            assertEquals(expected, (Float) reader.read(3 + index), expected * 1e-6f);
+                        }
+                    }
+                }
+                assertFalse(reader.hasNext());
+            } finally {
+                reader.close();
+            }
+        } finally {
+            Utilities.deleteAnimationFile(animationFile);
+        }
+    }
+
+    @Test
+    public void testSpanFramesPinned() throws Exception {
+        File animationFile = Utilities.createAnimationFile(4, Utilities.createHRUIds(20), VALUE_COLUMN_COUNT);
+        try {
+            PRMSAnimationFileMetaData metaData = PRMSAnimationFileMetaData.getMetaData(animationFile);
+            int[] joinValues = new int[] { 2, 9, 14, 20, 5 };
+            int[] columnIndices = new int[] { 5 };
+            // too small to hold a single frame, every lookup misses
+            PRMSAnimationFrameCache frameCache = new PRMSAnimationFrameCache(1);
+            PRMSAnimationShapefileAttributeJoiningReader reader = new PRMSAnimationShapefileAttributeJoiningReader(
+                    new JoinValueAttributeReader(createAttributeDescriptors(columnIndices), joinValues),
+                    metaData, 0, 0, 3, null, frameCache);
+            try {
+                for (int joinValue : joinValues) {
+                    for (int timeStepIndex = 0; timeStepIndex <= 3; ++timeStepIndex) {
+                        reader.next();
+                        float expected = Utilities.getSyntheticValue(timeStepIndex, joinValue, 5);
+                        assertEquals(expected, (Float) reader.read(3), expected * 1e-6f);
+                    }
+                }
+                assertFalse(reader.hasNext());
+            } finally {
+                reader.close();
+            }
+            // decoded once per timestep, not once per record and timestep
+            assertEquals(4, frameCache.getMissCount());
+        } finally {
+            Utilities.deleteAnimationFile(animationFile);
+        }
+    }
+
+    @Test
+    public void testTimeStepSpanFIDs() throws Exception {
+        File animationFile = Utilities.createAnimationFile(3, Utilities.createHRUIds(10), VALUE_COLUMN_COUNT);
+        try {
+            PRMSAnimationFileMetaData metaData = PRMSAnimationFileMetaData.getMetaData(animationFile);
+            int[] joinValues = new int[] { 3, 8 };
+            PRMSAnimationShapefileAttributeJoiningReader reader = new PRMSAnimationShapefileAttributeJoiningReader(
+                    new JoinValueAttributeReader(createAttributeDescriptors(new int[] { 2 }), joinValues),
+                    metaData, 0, 0, 2, null, new PRMSAnimationFrameCache());
+            assertTrue(reader.isTimeStepSpan());
+            PRMSAnimationFIDReader fidReader = new PRMSAnimationFIDReader("test", reader);
+            try {
+                Set<String> fids = new HashSet<String>();
+                for (int recordIndex = 0; recordIndex < joinValues.length; ++recordIndex) {
+                    for (int timeStepIndex = 0; timeStepIndex <= 2; ++timeStepIndex) {
+                        assertTrue(fidReader.hasNext());
+                        reader.next();
+                        String fid = fidReader.next();
+                        assertEquals("test." + (recordIndex + 1) + "." + timeStepIndex, fid);
+                        assertTrue(fids.add(fid));
+                    }
+                }
+                assertFalse(fidReader.hasNext());
+            } finally {
+                fidReader.close();
+            }
+        } finally {
+            Utilities.deleteAnimationFile(animationFile);
+        }
+    }
+
+    @Test
+    public void testSparseJoin() throws Exception {
+        int[] hruIds = new int[] { 30, 4, 17, 100, 5 };
+        File animationFile = Utilities.createAnimationFile(3, hruIds, VALUE_COLUMN_COUNT);
+        try {
+            PRMSAnimationFileMetaData metaData = PRMSAnimationFileMetaData.getMetaData(animationFile);
+            assertFalse(metaData.getHRUIndex().isDense());
+            int[] joinValues = new int[] { 100, 6, 4 };
+            int[] columnIndices = new int[] { 3 };
+            PRMSAnimationShapefileAttributeJoiningReader reader = new PRMSAnimationShapefileAttributeJoiningReader(
+                    new JoinValueAttributeReader(createAttributeDescriptors(columnIndices), joinValues),
+                    metaData, 0, 2, 2, null, new PRMSAnimationFrameCache());
+            try {
+                for (int joinValue : joinValues) {
+                    assertTrue(reader.hasNext());
+                    reader.next();
+                    if (joinValue == 6) {
+                        // not in the animation file
+                        assertNull(reader.read(2));
+                        assertNull(reader.read(3));
+                    } else {
+                        assertEquals(joinValue, reader.read(2));
+                        float expected = Utilities.getSyntheticValue(2, joinValue, 3);
+                        assertEquals(expected, (Float) reader.read(3), expected * 1e-6f);
+                    }
+                }
+                assertFalse(reader.hasNext());
+            } finally {
+                reader.close();
+            }
+        } finally {
+            Utilities.deleteAnimationFile(animationFile);
+        }
+    }
+
+    @Test
+    @Ignore
+    public void testReadBenchmark() throws Exception {
+        int hruCount = 100000;
+        File animationFile = Utilities.createAnimationFile(3, Utilities.createHRUIds(hruCount), VALUE_COLUMN_COUNT);
+        try {
+            PRMSAnimationFileMetaData metaData = PRMSAnimationFileMetaData.getMetaData(animationFile);
+            int[] columnIndices = new int[VALUE_COLUMN_COUNT];
+            for (int index = 0; index < columnIndices.length; ++index) {
+                columnIndices[index] = index + 2;
+            }
+            List<AttributeDescriptor> attributeDescriptors = createAttributeDescriptors(columnIndices);
+            int attributeCount = attributeDescriptors.size();
+            PRMSAnimationFrameCache frameCache = new PRMSAnimationFrameCache();
+            for (int iteration = 0; iteration < 10; ++iteration) {
+                long start = System.nanoTime();
+                PRMSAnimationShapefileAttributeJoiningReader reader = new PRMSAnimationShapefileAttributeJoiningReader(
+                        new JoinValueAttributeReader(attributeDescriptors, Utilities.createHRUIds(hruCount)),
+                        metaData, 0, 1, 1, null, frameCache);
+                try {
+                    while (reader.hasNext()) {
+                        reader.next();
+                        for (int attributeIndex = 0; attributeIndex < attributeCount; ++attributeIndex) {
+                            reader.read(attributeIndex);
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+                long elapsed = System.nanoTime() - start;
+                System.out.println(String.format("iteration %d: %.1f ms, %.1f ns/attribute",
+                        iteration, elapsed / 1e6, (double) elapsed / ((long) hruCount * attributeCount)));
+            }
+            System.out.println(frameCache);
+        } finally {
+            Utilities.deleteAnimationFile(animationFile);
+        }
+    }
+
+    // join value, timestamp, nhru then the value columns
+    private static List<AttributeDescriptor> createAttributeDescriptors(int[] columnIndices) {
+        List<AttributeDescriptor> attributeDescriptors = new ArrayList<AttributeDescriptor>();
+        AttributeTypeBuilder atBuilder = new AttributeTypeBuilder();
+        attributeDescriptors.add(atBuilder.binding(Integer.class).buildDescriptor("hru_id"));
+        atBuilder.addUserData(NHRU_FILE_ATTRIB_COLUMN, 0);
+        attributeDescriptors.add(atBuilder.binding(Date.class).buildDescriptor("timestamp"));
+        atBuilder.addUserData(NHRU_FILE_ATTRIB_COLUMN, 1);
+        attributeDescriptors.add(atBuilder.binding(Integer.class).buildDescriptor("nhru"));
+        for (int columnIndex : columnIndices) {
+            atBuilder.addUserData(NHRU_FILE_ATTRIB_COLUMN, columnIndex);
+            attributeDescriptors.add(atBuilder.binding(Float.class).buildDescriptor("value" + columnIndex));
+        }
+        return attributeDescriptors;
+    }
+
+    /**
+     * Stands in for the shapefile, only the join attribute (index 0) is read.
+     */
+    private static class JoinValueAttributeReader extends ShapefileAttributeReader {
+
+        private final int[] joinValues;
+        private int recordIndex = -1;
+
+        JoinValueAttributeReader(List<AttributeDescriptor> attributeDescriptors, int[] joinValues) {
+            super(attributeDescriptors, null, null);
+            this.joinValues = joinValues;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return recordIndex + 1 < joinValues.length;
+        }
+
+        @Override
+        public void next() {
+            ++recordIndex;
+        }
+
+        @Override
+        public Object read(int attributeIndex) {
+            return joinValues[recordIndex];
+        }
+
+        @Override
+        public int getRecordNumber() {
+            return recordIndex + 1;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -1,8 +1,20 @@
 package gov.usgs.cida.prms;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
 import java.net.URL;
+import java.util.List;
+import java.util.Locale;
+import org.joda.time.DateTime;
 import org.junit.*;
+import static org.junit.Assert.*;
 
 /**
  *
@@ -13,10 +25,7 @@ public class PRMSAnimationFileMetaDataTest {
     @Test
     public void testOldAnimationFile() throws Exception {
         URL url = getClass().getClassLoader().getResource("pcm.a1fi.1980-2099.annual.animation.nhru");
-        File oldMetaData = new File(url.getPath() + ".xml");
-        if (oldMetaData.exists()) {
-            oldMetaData.delete();
-        }
+        deleteMetaData(url);
        PRMSAnimationFileMetaData result = PRMSAnimationFileMetaData.getMetaData(url);
        System.out.println(result);
     }
@@ -24,12 +33,335 @@ public class PRMSAnimationFileMetaDataTest {
     @Test
     public void testNewAnimationFile() throws Exception {
         URL url = getClass().getClassLoader().getResource("cccma_post-processed.nhru");
-        File oldMetaData = new File(url.getPath() + ".xml");
-        if (oldMetaData.exists()) {
-            oldMetaData.delete();
-        }
+        deleteMetaData(url);
        PRMSAnimationFileMetaData result = PRMSAnimationFileMetaData.getMetaData(url);
        System.out.println(result);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testBinaryMetaDataRoundTrip() throws Exception {
+        URL url = getClass().getClassLoader().getResource("cccma_post-processed.nhru");
+        deleteMetaData(url);
+        PRMSAnimationFileMetaData generated = PRMSAnimationFileMetaData.getMetaData(url);
+        assertTrue(new File(url.getPath() + ".meta").exists());
+        PRMSAnimationFileMetaData cached = PRMSAnimationFileMetaData.getMetaData(url);
+        assertNotSame(generated, cached);
+        assertEquals(generated.getRecordCount(), cached.getRecordCount());
+        assertEquals(generated.getRecordSizeBytes(), cached.getRecordSizeBytes());
+        assertEquals(generated.getHeaderSizeBytes(), cached.getHeaderSizeBytes());
+        assertEquals(generated.getTimeStepCount(), cached.getTimeStepCount());
+        assertEquals(generated.getTimeStepRecordCount(), cached.getTimeStepRecordCount());
+        assertEquals(generated.getTimeStepList(), cached.getTimeStepList());
+        for (int index = 0; index < generated.getRecordEntryCount(); ++index) {
+            assertEquals(generated.getRecordEntryDescriptors().get(index).getName(), cached.getRecordEntryDescriptors().get(index).getName());
+            assertEquals(generated.getRecordEntryRanges().get(index).getMinimum(), cached.getRecordEntryRanges().get(index).getMinimum());
+            assertEquals(generated.getRecordEntryRanges().get(index).getMaximum(), cached.getRecordEntryRanges().get(index).getMaximum());
+            if (index > 1) {
+                assertHistogramEquals(generated.getRecordEntryHistogram(index), cached.getRecordEntryHistogram(index));
+            } else {
+                assertNull(cached.getRecordEntryHistogram(index));
+            }
+        }
+    }
+
+    @Test
+    public void testTimeStepIndex() throws Exception {
+        URL url = getClass().getClassLoader().getResource("cccma_post-processed.nhru");
+        PRMSAnimationFileMetaData metaData = PRMSAnimationFileMetaData.getMetaData(url);
+        List<DateTime> timeStepList = metaData.getTimeStepList();
+        for (int timeStepIndex = 0; timeStepIndex < timeStepList.size(); ++timeStepIndex) {
+            long timeStepMillis = timeStepList.get(timeStepIndex).getMillis();
+            assertEquals(timeStepIndex, metaData.getTimeStepIndex(new DateTime(timeStepMillis)));
+            assertEquals(-1, metaData.getTimeStepIndex(new DateTime(timeStepMillis + 1)));
+            assertEquals(timeStepIndex, metaData.getTimeStepIndexPrevious(new DateTime(timeStepMillis + 1)));
+            assertEquals(timeStepIndex - 1, metaData.getTimeStepIndexPrevious(new DateTime(timeStepMillis - 1)));
+            assertEquals(timeStepIndex, metaData.getTimeStepIndexNearest(new DateTime(timeStepMillis - 1)));
+            assertEquals(timeStepIndex, metaData.getTimeStepIndexNearest(new DateTime(timeStepMillis + 1)));
+        }
+    }
+
+    @Test
+    public void testAggregate() throws Exception {
+        URL url = getClass().getClassLoader().getResource("cccma_post-processed.nhru");
+        PRMSAnimationFileMetaData metaData = PRMSAnimationFileMetaData.getMetaData(url);
+        int columnIndex = 2;
+        int timeStepIndexStart = 3;
+        int timeStepIndexEnd = 9;
+        PRMSAnimationAggregate aggregate = PRMSAnimationAggregate.compute(metaData, new int[] { columnIndex }, timeStepIndexStart, timeStepIndexEnd, null);
+        int timeStepRecordCount = metaData.getTimeStepRecordCount();
+        PRMSAnimationRecordBuffer recordBuffer = new PRMSAnimationRecordBuffer(metaData);
+        try {
+            for (int recordOffset = 0; recordOffset < timeStepRecordCount; ++recordOffset) {
+                float minimum = Float.POSITIVE_INFINITY;
+                float maximum = Float.NEGATIVE_INFINITY;
+                double sum = 0;
+                for (int timeStepIndex = timeStepIndexStart; timeStepIndex <= timeStepIndexEnd; ++timeStepIndex) {
+                    float value = recordBuffer.getRecord(timeStepIndex * timeStepRecordCount + recordOffset).getValue(columnIndex);
+                    minimum = Math.min(minimum, value);
+                    maximum = Math.max(maximum, value);
+                    sum += value;
+                }
+                assertEquals(minimum, aggregate.getValue(columnIndex, PRMSAnimationAggregate.Statistic.MIN, recordOffset), 0f);
+                assertEquals(maximum, aggregate.getValue(columnIndex, PRMSAnimationAggregate.Statistic.MAX, recordOffset), 0f);
+                assertEquals(sum / (timeStepIndexEnd - timeStepIndexStart + 1), aggregate.getValue(columnIndex, PRMSAnimationAggregate.Statistic.MEAN, recordOffset), 1e-4);
+            }
+        } finally {
+            recordBuffer.close();
+        }
+    }
+
+    @Test
+    public void testAggregatePyramidClose() throws Exception {
+        File file = Utilities.createAnimationFile(70, Utilities.createHRUIds(5), 2);
+        try {
+            PRMSAnimationFileMetaData metaData = PRMSAnimationFileMetaData.getMetaData(file);
+            int[] columnIndices = new int[] { 2, 3 };
+            PRMSAnimationAggregate expected = PRMSAnimationAggregate.compute(metaData, columnIndices, 5, 68, null);
+            PRMSAnimationAggregatePyramid pyramid = PRMSAnimationAggregatePyramid.getPyramid(metaData);
+            // a reader holding a reference keeps the pyramid open past close()
+            assertTrue(pyramid.acquire());
+            pyramid.close();
+            assertAggregateEquals(expected, PRMSAnimationAggregate.compute(metaData, columnIndices, 5, 68, pyramid), columnIndices, metaData.getTimeStepRecordCount());
+            pyramid.release();
+            // closed, raw timesteps are read instead
+            assertFalse(pyramid.acquire());
+            assertAggregateEquals(expected, PRMSAnimationAggregate.compute(metaData, columnIndices, 5, 68, pyramid), columnIndices, metaData.getTimeStepRecordCount());
+        } finally {
+            Utilities.deleteAnimationFile(file);
+        }
+    }
+
+    private static void assertAggregateEquals(PRMSAnimationAggregate expected, PRMSAnimationAggregate actual, int[] columnIndices, int timeStepRecordCount) {
+        for (int columnIndex : columnIndices) {
+            for (PRMSAnimationAggregate.Statistic statistic : PRMSAnimationAggregate.Statistic.values()) {
+                for (int recordOffset = 0; recordOffset < timeStepRecordCount; ++recordOffset) {
+                    float value = expected.getValue(columnIndex, statistic, recordOffset);
+                    assertEquals(value, actual.getValue(columnIndex, statistic, recordOffset), Math.abs(value) * 1e-6f);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTimeStepRecordCount() throws Exception {
+        int[] hruIds = new int[] { 12, 3, 40, 7 };
+        for (int timeStepCount = 1; timeStepCount <= 3; ++timeStepCount) {
+            File file = File.createTempFile("test", ".animation.nhru");
+            try {
+                Utilities.writeSyntheticAnimationFile(file, timeStepCount, hruIds, 2);
+                PRMSAnimationFileMetaData metaData = PRMSAnimationFileMetaData.getMetaData(file);
+                assertEquals(timeStepCount, metaData.getTimeStepCount());
+                assertEquals(hruIds.length, metaData.getTimeStepRecordCount());
+                PRMSAnimationHRUIndex hruIndex = metaData.getHRUIndex();
+                assertFalse(hruIndex.isDense());
+                for (int recordOffset = 0; recordOffset < hruIds.length; ++recordOffset) {
+                    assertEquals(recordOffset, hruIndex.getRecordOffset(hruIds[recordOffset]));
+                }
+                // and from the binary sidecar
+                hruIndex = PRMSAnimationFileMetaData.getMetaData(file).getHRUIndex();
+                for (int recordOffset = 0; recordOffset < hruIds.length; ++recordOffset) {
+                    assertEquals(recordOffset, hruIndex.getRecordOffset(hruIds[recordOffset]));
+                }
+            } finally {
+                new File(file.getPath() + ".meta").delete();
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testAppendedTimeSteps() throws Exception {
+        int[] hruIds = new int[] { 12, 3, 40, 7 };
+        File completeFile = File.createTempFile("test", ".animation.nhru");
+        File file = File.createTempFile("test", ".animation.nhru");
+        try {
+            Utilities.writeSyntheticAnimationFile(completeFile, 8, hruIds, 2);
+            PRMSAnimationFileMetaData completeMetaData = PRMSAnimationFileMetaData.getMetaData(completeFile);
+            int headerSizeBytes = completeMetaData.getHeaderSizeBytes();
+            int recordSizeBytes = completeMetaData.getRecordSizeBytes();
+
+            // model run in progress, 3 timesteps and part of the 4th
+            copy(completeFile, file, headerSizeBytes + (3 * hruIds.length + 2) * recordSizeBytes);
+            PRMSAnimationFileMetaData metaData = PRMSAnimationFileMetaData.getMetaData(file);
+            assertEquals(3, metaData.getTimeStepCount());
+            assertEquals(3 * hruIds.length, metaData.getRecordCount());
+            assertTrue(metaData.isCurrent());
+
+            // run completes, only the appended records are parsed
+            copy(completeFile, file, completeFile.length());
+            file.setLastModified(new File(file.getPath() + ".meta").lastModified() + 2000);
+            assertFalse(metaData.isCurrent());
+            PRMSAnimationFileMetaData appendedMetaData = PRMSAnimationFileMetaData.getMetaData(file);
+            assertTrue(appendedMetaData.isCurrent());
+            assertTrue(appendedMetaData.isAppendOf(metaData));
+            assertEquals(completeMetaData.getTimeStepCount(), appendedMetaData.getTimeStepCount());
+            assertEquals(completeMetaData.getRecordCount(), appendedMetaData.getRecordCount());
+            assertEquals(completeMetaData.getTimeStepList(), appendedMetaData.getTimeStepList());
+            for (int recordEntryIndex = 0; recordEntryIndex < completeMetaData.getRecordEntryCount(); ++recordEntryIndex) {
+                assertEquals(completeMetaData.getRecordEntryRanges().get(recordEntryIndex).getMinimum(), appendedMetaData.getRecordEntryRanges().get(recordEntryIndex).getMinimum());
+                assertEquals(completeMetaData.getRecordEntryRanges().get(recordEntryIndex).getMaximum(), appendedMetaData.getRecordEntryRanges().get(recordEntryIndex).getMaximum());
+            }
+            for (int recordEntryIndex = 2; recordEntryIndex < completeMetaData.getRecordEntryCount(); ++recordEntryIndex) {
+                assertHistogramEquals(completeMetaData.getRecordEntryHistogram(recordEntryIndex), appendedMetaData.getRecordEntryHistogram(recordEntryIndex));
+            }
+            assertFalse(metaData.isAppendOf(appendedMetaData));
+        } finally {
+            new File(completeFile.getPath() + ".meta").delete();
+            completeFile.delete();
+            new File(file.getPath() + ".meta").delete();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testHRULayoutMismatch() throws Exception {
+        int[] hruIds = new int[] { 12, 3, 40, 7 };
+        File file = Utilities.createAnimationFile(5, hruIds, 2);
+        try {
+            PRMSAnimationFileMetaData metaData = PRMSAnimationFileMetaData.getMetaData(file);
+            int headerSizeBytes = metaData.getHeaderSizeBytes();
+            int recordSizeBytes = metaData.getRecordSizeBytes();
+            new File(file.getPath() + ".meta").delete();
+
+            // swap the first two records of the 3rd timestep
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                byte[] first = new byte[recordSizeBytes];
+                byte[] second = new byte[recordSizeBytes];
+                long offset = headerSizeBytes + 2L * hruIds.length * recordSizeBytes;
+                randomAccessFile.seek(offset);
+                randomAccessFile.readFully(first);
+                randomAccessFile.readFully(second);
+                randomAccessFile.seek(offset);
+                randomAccessFile.write(second);
+                randomAccessFile.write(first);
+            } finally {
+                randomAccessFile.close();
+            }
+
+            // timesteps from the mismatch on are ignored
+            metaData = PRMSAnimationFileMetaData.getMetaData(file);
+            assertEquals(2, metaData.getTimeStepCount());
+            assertEquals(2 * hruIds.length, metaData.getRecordCount());
+            for (int recordOffset = 0; recordOffset < hruIds.length; ++recordOffset) {
+                assertEquals(hruIds[recordOffset], metaData.getHRUIndex().getHRU(recordOffset));
+            }
+        } finally {
+            Utilities.deleteAnimationFile(file);
+        }
+    }
+
+    @Test
+    public void testDeclaredTypes() throws Exception {
+        File file = File.createTempFile("test", ".animation.nhru");
+        try {
+            Writer writer = new FileWriter(file);
+            try {
+                writer.write("#\n# Begin DBF\n# timestamp,-,-,#FIELD_ISODATETIME,19,0\n# nhru,-,-,#FIELD_DECIMAL,10,0\n");
+                writer.write("# seg_count,sum,-,FIELD_DECIMAL,10,0\n# soil_moist,average,in,FIELD_DECIMAL,14,6\n# seg_outflow,average,cfs,FIELD_DECIMAL,24,15\n");
+                writer.write("# End DBF\n#\ntimestamp\tnhru\tseg_count\tsoil_moist\tseg_outflow\n19d\t10n\t10n\t10n\t10n\n");
+                for (int hru = 1; hru <= 3; ++hru) {
+                    writer.write(String.format(Locale.US, "2000-01-01:00:00:00\t%6d\t%6d\t%.6e\t%.15e\n", hru, hru * 7, hru / 3f, hru / 3d));
+                }
+            } finally {
+                writer.close();
+            }
+            PRMSAnimationFileMetaData metaData = PRMSAnimationFileMetaData.getMetaData(file);
+            List<RecordEntryDescriptor> recordEntryDescriptors = metaData.getRecordEntryDescriptors();
+            assertEquals(RecordEntryDescriptor.Type.STRING, recordEntryDescriptors.get(0).getType());
+            assertEquals(RecordEntryDescriptor.Type.INT, recordEntryDescriptors.get(1).getType());
+            assertEquals(RecordEntryDescriptor.Type.INT, recordEntryDescriptors.get(2).getType());
+            assertEquals(RecordEntryDescriptor.Type.FLOAT, recordEntryDescriptors.get(3).getType());
+            assertEquals(RecordEntryDescriptor.Type.DOUBLE, recordEntryDescriptors.get(4).getType());
+            assertEquals(7, metaData.getRecordEntryRanges().get(2).getMinimum());
+            assertEquals(21, metaData.getRecordEntryRanges().get(2).getMaximum());
+            assertEquals(1 / 3d, metaData.getRecordEntryRanges().get(4).getMinimum());
+
+            PRMSAnimationRecordStream recordStream = new PRMSAnimationRecordStream(metaData);
+            try {
+                for (int hru = 1; hru <= 3; ++hru) {
+                    recordStream.next();
+                    assertEquals(hru * 7, recordStream.decode(2));
+                    assertEquals(Float.parseFloat(String.format(Locale.US, "%.6e", hru / 3f)), recordStream.decode(3));
+                    assertEquals(Double.parseDouble(String.format(Locale.US, "%.15e", hru / 3d)), recordStream.decode(4));
+                }
+            } finally {
+                recordStream.close();
+            }
+
+            // and from the binary sidecar
+            PRMSAnimationFileMetaData cached = PRMSAnimationFileMetaData.getMetaData(file);
+            for (int recordEntryIndex = 0; recordEntryIndex < recordEntryDescriptors.size(); ++recordEntryIndex) {
+                assertEquals(recordEntryDescriptors.get(recordEntryIndex).getType(), cached.getRecordEntryDescriptors().get(recordEntryIndex).getType());
+                assertEquals(metaData.getRecordEntryRanges().get(recordEntryIndex).getMinimum(), cached.getRecordEntryRanges().get(recordEntryIndex).getMinimum());
+                assertEquals(metaData.getRecordEntryRanges().get(recordEntryIndex).getMaximum(), cached.getRecordEntryRanges().get(recordEntryIndex).getMaximum());
+            }
+        } finally {
+            new File(file.getPath() + ".meta").delete();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testDeclaredDateValueColumn() throws Exception {
+        File file = File.createTempFile("test", ".animation.nhru");
+        try {
+            Writer writer = new FileWriter(file);
+            try {
+                writer.write("#\n# Begin DBF\n# timestamp,-,-,#FIELD_ISODATETIME,19,0\n# nhru,-,-,#FIELD_DECIMAL,10,0\n");
+                writer.write("# soil_moist,average,in,FIELD_DATE,14,6\n");
+                writer.write("# End DBF\n#\ntimestamp\tnhru\tsoil_moist\n19d\t10n\t10n\n");
+                for (int hru = 1; hru <= 3; ++hru) {
+                    writer.write(String.format(Locale.US, "2000-01-01:00:00:00\t%6d\t%.6e\n", hru, hru / 3f));
+                }
+            } finally {
+                writer.close();
+            }
+            // value columns are numeric whatever is declared
+            PRMSAnimationFileMetaData metaData = PRMSAnimationFileMetaData.getMetaData(file);
+            assertEquals(RecordEntryDescriptor.Type.FLOAT, metaData.getRecordEntryDescriptors().get(2).getType());
+            assertEquals(Float.parseFloat(String.format(Locale.US, "%.6e", 1 / 3f)), ((Number) metaData.getRecordEntryRanges().get(2).getMinimum()).floatValue(), 0);
+        } finally {
+            new File(file.getPath() + ".meta").delete();
+            file.delete();
+        }
+    }
+
+    private static void assertHistogramEquals(RecordEntryHistogram expected, RecordEntryHistogram actual) {
+        assertEquals(expected.getCount(), actual.getCount());
+        assertEquals(expected.getBinLower(), actual.getBinLower(), 0);
+        assertEquals(expected.getBinWidth(), actual.getBinWidth(), 0);
+        for (int binIndex = 0; binIndex < expected.getBinCount(); ++binIndex) {
+            assertEquals(expected.getCount(binIndex), actual.getCount(binIndex));
+        }
+    }
+
+    private static void copy(File source, File destination, long sizeBytes) throws IOException {
+        InputStream inputStream = new FileInputStream(source);
+        try {
+            OutputStream outputStream = new FileOutputStream(destination);
+            try {
+                byte[] buffer = new byte[(int) sizeBytes];
+                int offset = 0;
+                while (offset < buffer.length) {
+                    offset += inputStream.read(buffer, offset, buffer.length - offset);
+                }
+                outputStream.write(buffer);
+            } finally {
+                outputStream.close();
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static void deleteMetaData(URL url) {
+        for (String suffix : new String[] { ".xml", ".meta" }) {
+            File oldMetaData = new File(url.getPath() + suffix);
+            if (oldMetaData.exists()) {
+                oldMetaData.delete();
+            }
+        }
+    }
+
+}
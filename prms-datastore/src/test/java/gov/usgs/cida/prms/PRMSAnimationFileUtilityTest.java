@@ -1,6 +1,9 @@
 package gov.usgs.cida.prms;
 
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.Locale;
+import java.util.Random;
 import java.util.regex.Pattern;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -34,6 +37,53 @@ public class PRMSAnimationFileUtilityTest {
 	public void tearDown() {
 	}
 
+	@Test
+	public void testParseFloat() throws Exception {
+		String[] fixed = new String[] {
+			"0", "-0.0", "  1.5", "12.25  ", "+3.000000e+00", "1.234567e-01", "-9.999999E+09",
+			"1e-45", "3.4028235e38", "123456789012345678901234", "NaN", "-Infinity", ".5", "5."
+		};
+		for (String value : fixed) {
+			assertParseFloat(value);
+		}
+		Random random = new Random(0);
+		for (int iteration = 0; iteration < 100000; ++iteration) {
+			float value = Float.intBitsToFloat(random.nextInt());
+			if (Float.isNaN(value)) {
+				continue;
+			}
+			assertParseFloat(String.format(Locale.US, "%.6e", value));
+			assertParseFloat(String.format(Locale.US, "%.3f", random.nextFloat() * 1000f));
+			assertParseFloat(Float.toString(value));
+		}
+	}
+
+	private static void assertParseFloat(String value) throws Exception {
+		ByteBuffer buffer = ByteBuffer.wrap(("\t" + value + "\t").getBytes(PRMSAnimationFileUtility.CHARSET));
+		Assert.assertEquals(value,
+				Float.floatToIntBits(Float.parseFloat(value)),
+				Float.floatToIntBits(PRMSAnimationFileUtility.parseFloat(buffer, 1, value.length())));
+	}
+
+	@Test
+	public void testParseInt() throws Exception {
+		String[] values = new String[] {
+			"0", "  42", "-17  ", "   100000", "2147483647", "-2147483648"
+		};
+		for (String value : values) {
+			ByteBuffer buffer = ByteBuffer.wrap(("\t" + value + "\t").getBytes(PRMSAnimationFileUtility.CHARSET));
+			Assert.assertEquals(value,
+					Integer.parseInt(value.trim()),
+					PRMSAnimationFileUtility.parseInt(buffer, 1, value.length()));
+		}
+		try {
+			PRMSAnimationFileUtility.parseInt(ByteBuffer.wrap("2147483648".getBytes(PRMSAnimationFileUtility.CHARSET)), 0, 10);
+			Assert.fail();
+		} catch (NumberFormatException e) {
+			// expected
+		}
+	}
+
 //	@Test
 //	public void testQuickSplit() {
 //
@@ -0,0 +1,60 @@
+package gov.usgs.cida.prms;
+
+import java.net.URL;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tkunicki
+ */
+public class PRMSAnimationFrameCacheTest {
+
+    @Test
+    public void testFrameValues() throws Exception {
+        URL url = getClass().getClassLoader().getResource("cccma_post-processed.nhru");
+        PRMSAnimationFileMetaData metaData = PRMSAnimationFileMetaData.getMetaData(url);
+        PRMSAnimationFrameCache cache = new PRMSAnimationFrameCache();
+        int timeStepIndex = 5;
+        int[] columnIndices = new int[] { 2, 7 };
+        Object[] frames = cache.getFrames(metaData, timeStepIndex, columnIndices);
+        assertEquals(0, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+
+        int timeStepRecordCount = metaData.getTimeStepRecordCount();
+        PRMSAnimationRecordBuffer recordBuffer = new PRMSAnimationRecordBuffer(metaData);
+        try {
+            for (int recordOffset = 0; recordOffset < timeStepRecordCount; ++recordOffset) {
+                PRMSAnimationRecord record = recordBuffer.getRecord(timeStepIndex * timeStepRecordCount + recordOffset);
+                assertEquals(record.getValue(2), ((float[]) frames[0])[recordOffset], 0f);
+                assertEquals(record.getValue(7), ((float[]) frames[1])[recordOffset], 0f);
+            }
+        } finally {
+            recordBuffer.close();
+        }
+
+        assertSame(frames[1], cache.getFrames(metaData, timeStepIndex, new int[] { 7 })[0]);
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        URL url = getClass().getClassLoader().getResource("cccma_post-processed.nhru");
+        PRMSAnimationFileMetaData metaData = PRMSAnimationFileMetaData.getMetaData(url);
+        long frameSizeBytes = 4L * metaData.getTimeStepRecordCount();
+        PRMSAnimationFrameCache cache = new PRMSAnimationFrameCache(2 * frameSizeBytes);
+        int[] columnIndices = new int[] { 2 };
+        cache.getFrames(metaData, 0, columnIndices);
+        cache.getFrames(metaData, 1, columnIndices);
+        cache.getFrames(metaData, 0, columnIndices); // 0 most recently used
+        cache.getFrames(metaData, 2, columnIndices); // evicts 1
+        assertEquals(2, cache.getFrameCount());
+        assertEquals(1, cache.getEvictionCount());
+        cache.getFrames(metaData, 0, columnIndices);
+        assertEquals(2, cache.getHitCount());
+        cache.getFrames(metaData, 1, columnIndices);
+        assertEquals(4, cache.getMissCount());
+        assertTrue(cache.getSizeBytes() <= cache.getMaximumSizeBytes());
+    }
+
+}
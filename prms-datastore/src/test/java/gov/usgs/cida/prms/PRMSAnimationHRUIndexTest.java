@@ -0,0 +1,37 @@
+package gov.usgs.cida.prms;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tkunicki
+ */
+public class PRMSAnimationHRUIndexTest {
+
+    @Test
+    public void testDense() {
+        PRMSAnimationHRUIndex index = PRMSAnimationHRUIndex.create(new int[] { 5, 6, 7, 8 });
+        assertTrue(index.isDense());
+        assertEquals(0, index.getRecordOffset(5));
+        assertEquals(3, index.getRecordOffset(8));
+        assertEquals(PRMSAnimationHRUIndex.INVALID_RECORD_OFFSET, index.getRecordOffset(4));
+        assertEquals(PRMSAnimationHRUIndex.INVALID_RECORD_OFFSET, index.getRecordOffset(9));
+        assertEquals(7, index.getHRU(2));
+    }
+
+    @Test
+    public void testSparse() {
+        int[] recordOffsetToHRU = new int[] { 10, 3, 42, 7, 11 };
+        PRMSAnimationHRUIndex index = PRMSAnimationHRUIndex.create(recordOffsetToHRU);
+        assertFalse(index.isDense());
+        for (int recordOffset = 0; recordOffset < recordOffsetToHRU.length; ++recordOffset) {
+            assertEquals(recordOffset, index.getRecordOffset(recordOffsetToHRU[recordOffset]));
+            assertEquals(recordOffsetToHRU[recordOffset], index.getHRU(recordOffset));
+        }
+        assertEquals(PRMSAnimationHRUIndex.INVALID_RECORD_OFFSET, index.getRecordOffset(1));
+        assertEquals(PRMSAnimationHRUIndex.INVALID_RECORD_OFFSET, index.getRecordOffset(8));
+        assertEquals(PRMSAnimationHRUIndex.INVALID_RECORD_OFFSET, index.getRecordOffset(43));
+    }
+
+}
@@ -0,0 +1,97 @@
+package gov.usgs.cida.prms;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.Locale;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tkunicki
+ */
+public class PRMSAnimationRecordBufferTest {
+
+    @Test
+    public void testFillColumns() throws Exception {
+        int[] hruIds = new int[] { 12, 3, 40, 7 };
+        int timeStepCount = 5;
+        File file = Utilities.createAnimationFile(timeStepCount, hruIds, 3);
+        try {
+            PRMSAnimationFileMetaData metaData = PRMSAnimationFileMetaData.getMetaData(file);
+            PRMSAnimationRecordBuffer recordBuffer = new PRMSAnimationRecordBuffer(metaData);
+            try {
+                // one timestep, consecutive records
+                int[] columnIndices = new int[] { 4, 2 };
+                Object[] values = PRMSAnimationRecordBuffer.createValues(metaData, columnIndices, hruIds.length + 1);
+                recordBuffer.fillColumns(columnIndices, 2 * hruIds.length, hruIds.length, 1, values, 1);
+                for (int slot = 0; slot < columnIndices.length; ++slot) {
+                    for (int recordOffset = 0; recordOffset < hruIds.length; ++recordOffset) {
+                        assertEquals(
+                                recordBuffer.getRecord(2 * hruIds.length + recordOffset).getValue(columnIndices[slot]),
+                                ((float[]) values[slot])[recordOffset + 1]);
+                    }
+                }
+
+                // time series of one HRU, strided records
+                int recordOffset = 2;
+                float[] timeSeries = new float[timeStepCount];
+                recordBuffer.fillColumn(3, recordOffset, timeStepCount, hruIds.length, timeSeries, 0);
+                for (int timeStepIndex = 0; timeStepIndex < timeStepCount; ++timeStepIndex) {
+                    float expected = Utilities.getSyntheticValue(timeStepIndex, hruIds[recordOffset], 3);
+                    assertEquals(expected, timeSeries[timeStepIndex], expected * 1e-6f);
+                }
+            } finally {
+                recordBuffer.close();
+            }
+        } finally {
+            Utilities.deleteAnimationFile(file);
+        }
+    }
+
+    @Test
+    public void testFillTypedColumns() throws Exception {
+        File file = File.createTempFile("test", ".animation.nhru");
+        try {
+            Writer writer = new FileWriter(file);
+            try {
+                writer.write("#\n# Begin DBF\n# timestamp,-,-,#FIELD_ISODATETIME,19,0\n# nhru,-,-,#FIELD_DECIMAL,10,0\n");
+                writer.write("# seg_id,-,-,FIELD_DECIMAL,10,0\n# seg_outflow,average,cfs,FIELD_DECIMAL,24,15\n");
+                writer.write("# End DBF\n#\ntimestamp\tnhru\tseg_id\tseg_outflow\n19d\t10n\t10n\t10n\n");
+                for (int hru = 1; hru <= 3; ++hru) {
+                    writer.write(String.format(Locale.US, "2000-01-01:00:00:00\t%6d\t%10d\t%.15e\n", hru, getIntValue(hru), getDoubleValue(hru)));
+                }
+            } finally {
+                writer.close();
+            }
+            PRMSAnimationFileMetaData metaData = PRMSAnimationFileMetaData.getMetaData(file);
+            int[] columnIndices = new int[] { 2, 3 };
+            Object[] values = PRMSAnimationRecordBuffer.createValues(metaData, columnIndices, 3);
+            PRMSAnimationRecordBuffer recordBuffer = new PRMSAnimationRecordBuffer(metaData);
+            try {
+                recordBuffer.fillColumns(columnIndices, 0, 3, 1, values, 0);
+            } finally {
+                recordBuffer.close();
+            }
+            // neither fits in a float
+            RecordEntryDecoder intDecoder = metaData.getRecordEntryDescriptors().get(2).getDecoder();
+            RecordEntryDecoder doubleDecoder = metaData.getRecordEntryDescriptors().get(3).getDecoder();
+            for (int hru = 1; hru <= 3; ++hru) {
+                assertEquals(Integer.valueOf(getIntValue(hru)), intDecoder.box(values[0], hru - 1));
+                assertEquals(Double.valueOf(Double.parseDouble(String.format(Locale.US, "%.15e", getDoubleValue(hru)))), doubleDecoder.box(values[1], hru - 1));
+            }
+        } finally {
+            Utilities.deleteAnimationFile(file);
+        }
+    }
+
+    private static int getIntValue(int hru) {
+        return (1 << 24) + 2 * hru + 1;
+    }
+
+    private static double getDoubleValue(int hru) {
+        return 1 + hru / 3d;
+    }
+
+}
@@ -0,0 +1,101 @@
+package gov.usgs.cida.prms;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tkunicki
+ */
+public class PRMSAnimationRecordStreamTest {
+
+    private final static int VALUE_COLUMN_COUNT = 3;
+
+    @Test
+    public void testStream() throws Exception {
+        int[] hruIds = new int[] { 12, 3, 40, 7, 25 };
+        int timeStepCount = 4;
+        File file = Utilities.createAnimationFile(timeStepCount, hruIds, VALUE_COLUMN_COUNT);
+        try {
+            PRMSAnimationFileMetaData metaData = PRMSAnimationFileMetaData.getMetaData(file);
+            // buffer of 3 records, refills don't line up with timesteps
+            assertStream(metaData, 0, metaData.getRecordCount(), 3 * metaData.getRecordSizeBytes() + 1);
+            assertStream(metaData, 0, metaData.getRecordCount(), PRMSAnimationRecordStream.DEFAULT_BUFFER_SIZE_BYTES);
+            assertStream(metaData, 7, 13, 1);
+            assertStream(metaData, 9, 9, 1);
+        } finally {
+            Utilities.deleteAnimationFile(file);
+        }
+    }
+
+    @Test
+    @Ignore
+    public void testReadBenchmark() throws Exception {
+        File file = Utilities.createAnimationFile(20, Utilities.createHRUIds(100000), VALUE_COLUMN_COUNT);
+        try {
+            PRMSAnimationFileMetaData metaData = PRMSAnimationFileMetaData.getMetaData(file);
+            int recordCount = metaData.getRecordCount();
+            float sizeMB = (float) metaData.getDataSizeBytes() / (float) (1 << 20);
+            for (int iteration = 0; iteration < 5; ++iteration) {
+                float sum = 0;
+                long start = System.nanoTime();
+                PRMSAnimationRecordBuffer recordBuffer = new PRMSAnimationRecordBuffer(metaData);
+                try {
+                    for (int recordIndex = 0; recordIndex < recordCount; ++recordIndex) {
+                        PRMSAnimationRecord<Float> record = recordBuffer.getRecord(recordIndex);
+                        for (int columnIndex = 2; columnIndex < record.getColumnCount(); ++columnIndex) {
+                            sum += record.getValue(columnIndex);
+                        }
+                    }
+                } finally {
+                    recordBuffer.close();
+                }
+                long bufferElapsed = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                PRMSAnimationRecordStream recordStream = new PRMSAnimationRecordStream(metaData);
+                try {
+                    while (recordStream.hasNext()) {
+                        recordStream.next();
+                        for (int columnIndex = 2; columnIndex < recordStream.getColumnCount(); ++columnIndex) {
+                            sum -= recordStream.getFloat(columnIndex);
+                        }
+                    }
+                } finally {
+                    recordStream.close();
+                }
+                long streamElapsed = System.nanoTime() - start;
+                System.out.println(String.format("iteration %d: mapped %.1f MiB/s, streamed %.1f MiB/s (%f)",
+                        iteration, sizeMB / (bufferElapsed / 1e9), sizeMB / (streamElapsed / 1e9), sum));
+            }
+        } finally {
+            Utilities.deleteAnimationFile(file);
+        }
+    }
+
+    private static void assertStream(PRMSAnimationFileMetaData metaData, int recordIndexStart, int recordIndexEnd, int bufferSizeBytes) throws IOException {
+        PRMSAnimationRecordBuffer recordBuffer = new PRMSAnimationRecordBuffer(metaData);
+        PRMSAnimationRecordStream recordStream = new PRMSAnimationRecordStream(metaData, recordIndexStart, recordIndexEnd, bufferSizeBytes);
+        try {
+            for (int recordIndex = recordIndexStart; recordIndex < recordIndexEnd; ++recordIndex) {
+                assertTrue(recordStream.hasNext());
+                recordStream.next();
+                PRMSAnimationRecord<Float> record = recordBuffer.getRecord(recordIndex);
+                assertEquals(recordIndex, recordStream.getIndex());
+                assertEquals(record.getTimeStamp(), recordStream.getTimeStamp());
+                assertEquals(record.getNHRU(), recordStream.getNHRU());
+                assertEquals(record.getColumnCount(), recordStream.getColumnCount());
+                for (int columnIndex = 2; columnIndex < record.getColumnCount(); ++columnIndex) {
+                    assertEquals(record.getValue(columnIndex), recordStream.getValue(columnIndex));
+                }
+            }
+            assertFalse(recordStream.hasNext());
+        } finally {
+            recordStream.close();
+            recordBuffer.close();
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+package gov.usgs.cida.prms;
+
+import java.io.File;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tkunicki
+ */
+public class PRMSAnimationTimeSeriesTest {
+
+    @Test
+    public void testRead() throws Exception {
+        int[] hruIds = new int[] { 30, 4, 17, 100, 5 };
+        File file = Utilities.createAnimationFile(10, hruIds, 4);
+        try {
+            PRMSAnimationFileMetaData metaData = PRMSAnimationFileMetaData.getMetaData(file);
+            int[] columnIndices = new int[] { 5, 2 };
+            for (int hru : hruIds) {
+                PRMSAnimationTimeSeries timeSeries = PRMSAnimationTimeSeries.read(metaData, hru, columnIndices, 3, 8);
+                assertEquals(hru, timeSeries.getHRU());
+                assertEquals(6, timeSeries.getTimeStepCount());
+                assertEquals(-1, timeSeries.getSlot(3));
+                for (int index = 0; index < timeSeries.getTimeStepCount(); ++index) {
+                    assertEquals(metaData.getTimeStepList().get(3 + index), timeSeries.getTimeStep(index));
+                    for (int columnIndex : columnIndices) {
+                        float expected = Utilities.getSyntheticValue(3 + index, hru, columnIndex);
+                        assertEquals(expected, (Float) timeSeries.getValue(timeSeries.getSlot(columnIndex), index), expected * 1e-6f);
+                    }
+                }
+            }
+            // not in the file
+            assertEquals(0, PRMSAnimationTimeSeries.read(metaData, 6, columnIndices, 0, 9).getTimeStepCount());
+            // empty span
+            assertEquals(0, PRMSAnimationTimeSeries.read(metaData, 17, columnIndices, 5, 4).getTimeStepCount());
+        } finally {
+            Utilities.deleteAnimationFile(file);
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+package gov.usgs.cida.prms;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tkunicki
+ */
+public class RecordEntryHistogramTest {
+
+    @Test
+    public void testQuantiles() throws Exception {
+        Random random = new Random(0);
+        // skewed, mostly small values with a long tail, added in an order
+        // that grows the bins both upward and downward
+        float[] values = new float[100000];
+        for (int index = 0; index < values.length; ++index) {
+            values[index] = (float) (Math.exp(random.nextGaussian() * 2) - 1);
+        }
+        RecordEntryHistogram histogram = new RecordEntryHistogram();
+        for (float value : values) {
+            histogram.add(value);
+        }
+        histogram.add(Float.NaN);
+        assertEquals(values.length, histogram.getCount());
+
+        float[] sorted = values.clone();
+        Arrays.sort(sorted);
+        assertEquals(sorted[0], histogram.getMinimum(), 0);
+        assertEquals(sorted[sorted.length - 1], histogram.getMaximum(), 0);
+
+        double[] breaks = histogram.getQuantileBreaks(10);
+        assertEquals(11, breaks.length);
+        assertEquals(sorted[0], breaks[0], 0);
+        assertEquals(sorted[sorted.length - 1], breaks[10], 0);
+        for (int classIndex = 1; classIndex < 10; ++classIndex) {
+            double expected = sorted[classIndex * sorted.length / 10];
+            assertEquals(expected, breaks[classIndex], histogram.getBinWidth());
+            assertTrue(breaks[classIndex] >= breaks[classIndex - 1]);
+        }
+    }
+
+    @Test
+    public void testConstant() throws Exception {
+        RecordEntryHistogram histogram = new RecordEntryHistogram();
+        assertTrue(Double.isNaN(histogram.getQuantile(0.5)));
+        for (int index = 0; index < 10; ++index) {
+            histogram.add(3.5f);
+        }
+        assertEquals(10, histogram.getCount());
+        assertEquals(3.5, histogram.getQuantile(0.1), 0);
+        assertEquals(3.5, histogram.getQuantile(0.9), 0);
+        histogram.add(-1f);
+        assertEquals(11, histogram.getCount());
+        assertEquals(-1, histogram.getQuantile(0), 0);
+        assertEquals(3.5, histogram.getQuantile(1), 0);
+        assertEquals(3.5, histogram.getQuantile(0.5), histogram.getBinWidth());
+    }
+
+}
@@ -1,7 +1,15 @@
 package gov.usgs.cida.prms;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
 import org.junit.Test;
 
 /**
@@ -29,4 +37,81 @@ public class Utilities {
     public static String getDefaultShapefileNHRUAttribute() {
         return DEFALT_SHAPEFILE_NHRU_ATTRIBUTE;
     }
+
+    /**
+     * Writes a daily animation file starting 2000-01-01 with the same layout
+     * as the model output.  Values are from {@link #getSyntheticValue(int, int, int)}
+     * so readers can be verified without parsing the file independently.
+     */
+    public static void writeSyntheticAnimationFile(File file, int timeStepCount, int[] hruIds, int valueColumnCount) throws IOException {
+        SimpleDateFormat timeStampFormat = new SimpleDateFormat("yyyy-MM-dd:HH:mm:ss");
+        timeStampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Writer writer = new BufferedWriter(new FileWriter(file), 1 << 20);
+        try {
+            writer.write("#\n# Begin DBF\n# timestamp,-,-,#FIELD_ISODATETIME,19,0\n# nhru,-,-,#FIELD_DECIMAL,10,0\n");
+            for (int columnIndex = 2; columnIndex < valueColumnCount + 2; ++columnIndex) {
+                writer.write("# value" + columnIndex + ",average,in,FIELD_DECIMAL,14,6\n");
+            }
+            writer.write("#\n# End DBF\n#\ntimestamp\tnhru");
+            for (int columnIndex = 2; columnIndex < valueColumnCount + 2; ++columnIndex) {
+                writer.write("\tvalue" + columnIndex);
+            }
+            writer.write("\n19d\t10n");
+            for (int columnIndex = 2; columnIndex < valueColumnCount + 2; ++columnIndex) {
+                writer.write("\t10n");
+            }
+            writer.write("\n");
+            long startMillis = 946684800000L; // 2000-01-01T00:00:00Z
+            for (int timeStepIndex = 0; timeStepIndex < timeStepCount; ++timeStepIndex) {
+                String timeStamp = timeStampFormat.format(new Date(startMillis + timeStepIndex * 86400000L));
+                for (int hruId : hruIds) {
+                    writer.write(timeStamp);
+                    writer.write(String.format(Locale.US, "\t%6d", hruId));
+                    for (int columnIndex = 2; columnIndex < valueColumnCount + 2; ++columnIndex) {
+                        writer.write(String.format(Locale.US, "\t%.6e", getSyntheticValue(timeStepIndex, hruId, columnIndex)));
+                    }
+                    writer.write("\n");
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @return a temporary synthetic animation file, remove it with
+     *         {@link #deleteAnimationFile(File)}.
+     */
+    public static File createAnimationFile(int timeStepCount, int[] hruIds, int valueColumnCount) throws IOException {
+        File file = File.createTempFile("test", ".animation.nhru");
+        try {
+            writeSyntheticAnimationFile(file, timeStepCount, hruIds, valueColumnCount);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        return file;
+    }
+
+    /**
+     * Deletes an animation file and the sidecars written next to it.
+     */
+    public static void deleteAnimationFile(File file) {
+        new File(file.getPath() + ".meta").delete();
+        new File(file.getPath() + PRMSAnimationAggregatePyramid.SUFFIX).delete();
+        file.delete();
+    }
+
+    public static int[] createHRUIds(int hruCount) {
+        int[] hruIds = new int[hruCount];
+        for (int hruIndex = 0; hruIndex < hruCount; ++hruIndex) {
+            hruIds[hruIndex] = hruIndex + 1;
+        }
+        return hruIds;
+    }
+
+    // written with 7 significant digits, compare with a relative tolerance
+    public static float getSyntheticValue(int timeStepIndex, int hruId, int columnIndex) {
+        return (timeStepIndex * 10 + columnIndex) + (hruId % 1000) / 1000f;
+    }
 }
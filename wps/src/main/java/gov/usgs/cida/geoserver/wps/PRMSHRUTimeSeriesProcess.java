@@ -0,0 +1,93 @@
+package gov.usgs.cida.geoserver.wps;
+
+import static gov.usgs.cida.geotools.datastore.PRMSAnimationShapefileDataStore.ATTRIBUTE_NHRU;
+import static gov.usgs.cida.geotools.datastore.PRMSAnimationShapefileDataStore.ATTRIBUTE_TIMESTAMP;
+import static gov.usgs.cida.geotools.datastore.PRMSAnimationShapefileDataStore.NHRU_FILE_ATTRIB_AGGREGATE;
+import static gov.usgs.cida.geotools.datastore.PRMSAnimationShapefileDataStore.NHRU_FILE_ATTRIB_COLUMN;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.wps.gs.GeoServerProcess;
+import org.geotools.data.DataAccess;
+import org.geotools.data.DataStore;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.process.ProcessException;
+import org.geotools.process.factory.DescribeParameter;
+import org.geotools.process.factory.DescribeProcess;
+import org.geotools.process.factory.DescribeResult;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+
+/**
+ * Time series of a single HRU from a PRMS animation layer.  The query is made
+ * against the layer's native store with only the animation attributes and an
+ * nhru equality filter so the store reads the HRU's record in each timestep
+ * directly instead of scanning the file.
+ *
+ * @author tkunicki
+ */
+@DescribeProcess(
+        title = "PRMS HRU Time Series",
+        description = "Time series of a single HRU from a PRMS animation layer",
+        version = "1.0.0")
+public class PRMSHRUTimeSeriesProcess implements GeoServerProcess {
+
+    private final static FilterFactory2 FILTER_FACTORY = CommonFactoryFinder.getFilterFactory2(null);
+
+    private final Catalog catalog;
+
+    public PRMSHRUTimeSeriesProcess(Catalog catalog) {
+        this.catalog = catalog;
+    }
+
+    @DescribeResult(name = "result", description = "one feature per timestep")
+    public SimpleFeatureCollection execute(
+            @DescribeParameter(name = "layer", description = "PRMS animation layer name", min = 1, max = 1) String layer,
+            @DescribeParameter(name = "hru", min = 1, max = 1) Integer hru,
+            @DescribeParameter(name = "start", min = 0, max = 1) Date start,
+            @DescribeParameter(name = "end", min = 0, max = 1) Date end) throws Exception {
+
+        FeatureTypeInfo featureTypeInfo = catalog.getFeatureTypeByName(layer);
+        if (featureTypeInfo == null) {
+            throw new ProcessException("Unknown layer " + layer);
+        }
+        DataAccess dataAccess = featureTypeInfo.getStore().getDataStore(null);
+        if (!(dataAccess instanceof DataStore)) {
+            throw new ProcessException(layer + " isn't a PRMS animation layer");
+        }
+        DataStore dataStore = (DataStore) dataAccess;
+        String typeName = featureTypeInfo.getNativeName();
+
+        // the native schema, GeoServer's doesn't carry the descriptor user data
+        SimpleFeatureType featureType = dataStore.getSchema(typeName);
+        List<String> propertyNames = new ArrayList<String>();
+        for (AttributeDescriptor attributeDescriptor : featureType.getAttributeDescriptors()) {
+            if (attributeDescriptor.getUserData().containsKey(NHRU_FILE_ATTRIB_COLUMN) &&
+                    !attributeDescriptor.getUserData().containsKey(NHRU_FILE_ATTRIB_AGGREGATE)) {
+                propertyNames.add(attributeDescriptor.getLocalName());
+            }
+        }
+        if (propertyNames.isEmpty()) {
+            throw new ProcessException(layer + " isn't a PRMS animation layer");
+        }
+
+        List<Filter> filters = new ArrayList<Filter>();
+        filters.add(FILTER_FACTORY.equals(FILTER_FACTORY.property(ATTRIBUTE_NHRU), FILTER_FACTORY.literal(hru)));
+        if (start != null) {
+            filters.add(FILTER_FACTORY.greaterOrEqual(FILTER_FACTORY.property(ATTRIBUTE_TIMESTAMP), FILTER_FACTORY.literal(start)));
+        }
+        if (end != null) {
+            filters.add(FILTER_FACTORY.lessOrEqual(FILTER_FACTORY.property(ATTRIBUTE_TIMESTAMP), FILTER_FACTORY.literal(end)));
+        }
+        Query query = new Query(typeName, FILTER_FACTORY.and(filters), propertyNames.toArray(new String[0]));
+
+        return dataStore.getFeatureSource(typeName).getFeatures(query);
+    }
+
+}